@@ -0,0 +1,75 @@
+#!/bin/bash
+# Compares the Battenberg allele counts of io.seqware.pancancer.AlleleCounter with
+# those of alleleCounter for the same BAM and loci, run it in the image after a
+# change to either.
+#
+# USAGE: allele_counter_parity.sh install_base classes_dir [bam loci]
+#
+# install_base holds bin/alleleCounter and bin/samtools as given to wrapper.sh,
+# classes_dir the compiled workflow classes (Workflow_Bundle_CgpSomaticCore/*/classes).
+# Without a BAM a small one is built covering the filters both have to agree on:
+# flags (unmapped, secondary, QC fail, duplicate, supplementary), mapping quality
+# 35, base quality 20, overlapping mates counted twice, deletions, skips,
+# insertions, soft clips and N bases.
+
+set -eu
+set -o pipefail
+
+if [[ $# -ne 2 && $# -ne 4 ]]; then
+  echo "USAGE: allele_counter_parity.sh install_base classes_dir [bam loci]" >&2
+  exit 1
+fi
+
+export PATH="$1/bin:$PATH"
+classes=$2
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+if [[ $# -eq 4 ]]; then
+  bam=$3
+  loci=$4
+else
+  bam="$work/parity.bam"
+  loci="$work/parity.loci"
+  printf '1\t%s\n' 100 200 300 400 500 600 610 700 800 900 > "$loci"
+  # one case per locus, the base counted or not is at offset 4 of the 10 base reads
+  q='IIIIIIIIII'
+  cat > "$work/parity.sam" <<SAM
+@HD	VN:1.4	SO:coordinate
+@SQ	SN:1	LN:1000
+@RG	ID:p	SM:PARITY
+plain	0	1	96	60	10M	*	0	0	AAAAAAAAAA	$q	RG:Z:p
+reverse	16	1	96	60	10M	*	0	0	AAAAAAAAAA	$q	RG:Z:p
+mapq34	0	1	196	34	10M	*	0	0	CCCCCCCCCC	$q	RG:Z:p
+mapq35	0	1	196	35	10M	*	0	0	CCCCCCCCCC	$q	RG:Z:p
+baseq19	0	1	296	60	10M	*	0	0	GGGGGGGGGG	IIII4IIIII	RG:Z:p
+baseq20	0	1	296	60	10M	*	0	0	GGGGGGGGGG	IIII5IIIII	RG:Z:p
+unmapped	4	1	396	60	10M	*	0	0	TTTTTTTTTT	$q	RG:Z:p
+secondary	256	1	396	60	10M	*	0	0	TTTTTTTTTT	$q	RG:Z:p
+qcfail	512	1	396	60	10M	*	0	0	TTTTTTTTTT	$q	RG:Z:p
+duplicate	1024	1	396	60	10M	*	0	0	TTTTTTTTTT	$q	RG:Z:p
+counted	0	1	396	60	10M	*	0	0	TTTTTTTTTT	$q	RG:Z:p
+mates	99	1	496	60	10M	=	496	10	GGGGGGGGGG	$q	RG:Z:p
+mates	147	1	496	60	10M	=	496	-10	GGGGGGGGGG	$q	RG:Z:p
+deletion	0	1	596	60	3M2D5M	*	0	0	AAAAAAAA	IIIIIIII	RG:Z:p
+skip	0	1	596	60	2M10N5M	*	0	0	AAAATAA	IIIIIII	RG:Z:p
+insertion	0	1	606	60	2S2M3I6M	*	0	0	AAAAAAAAACAAA	IIIIIIIIIIIII	RG:Z:p
+nbase	0	1	696	60	10M	*	0	0	AAAANAAAAA	$q	RG:Z:p
+supplementary	2048	1	796	60	10M	*	0	0	AAAAAAAAAA	$q	RG:Z:p
+primary	0	1	796	60	10M	*	0	0	AAAAAAAAAA	$q	RG:Z:p
+SAM
+  samtools view -bS "$work/parity.sam" > "$bam"
+  samtools index "$bam"
+fi
+
+chr=$(grep -v '^#' "$loci" | head -n 1 | cut -f 1)
+mkdir "$work/java"
+alleleCounter -l "$loci" -b "$bam" -o "$work/alleleCounter.tsv" -q 35 -m 20
+java -cp "$classes" io.seqware.pancancer.AlleleCounter -l "$loci" -o "$work/java" -c "$chr" -q 35 -m 20 "$bam"
+
+if diff "$work/alleleCounter.tsv" "$work"/java/*."$chr".tsv; then
+  echo "AlleleCounter matches alleleCounter at $(grep -vc '^#' "$loci") loci"
+else
+  echo "AlleleCounter differs from alleleCounter (<) for $bam" >&2
+  exit 1
+fi
@@ -59,6 +59,13 @@ def collect_args():
                         help="battenberg reference file archive for CGP-Somatic-Core workflow. \
                         Available to download from: \
                         https://s3-eu-west-1.amazonaws.com/wtsi-pancancer/reference/GRCh37d5_battenberg.tar.gz")
+    parser.add_argument("--refCache",
+                        dest="ref_cache",
+                        type=str,
+                        help="directory in which unpacked reference bundles \
+                        are kept and shared between runs, written to the ini as \
+                        refCacheDir. It is not mounted by this script, bind mount \
+                        it into the container at the same path")
     parser.add_argument("--keep-all-seqware-intermediate-output-files",
                         dest='keep_all_seqware_output_files',
                         default=False,
@@ -179,6 +186,9 @@ def write_ini(args):
                  "memCavemanFlag={0}".format("5000"),
                  "memCavemanTbiClean={0}".format("4000")]
 
+    if args.ref_cache:
+        ini_parts.append("refCacheDir={0}".format(os.path.abspath(args.ref_cache)))
+
     ini = "\n".join(ini_parts)
     ini_filepath = os.path.join(outdir, "workflow.ini")
     with open(ini_filepath, 'wb') as f:
@@ -186,6 +196,29 @@ def write_ini(args):
     return ini_filepath
 
 
+# published result files, 'file size md5' per line, written by bin/publish.sh
+MANIFEST = "published.tsv"
+
+
+def read_manifest(output_dir):
+    manifest = {}
+    path = os.path.join(output_dir, MANIFEST)
+    if os.path.isfile(path):
+        with open(path) as f:
+            for line in f:
+                cols = line.rstrip("\n").split("\t")
+                manifest[cols[0]] = cols[1:]
+    return manifest
+
+
+def write_manifest(output_dir, manifest):
+    path = os.path.join(output_dir, MANIFEST)
+    with open(path + ".tmp", "w") as f:
+        for name in sorted(manifest):
+            f.write("\t".join([name] + manifest[name]) + "\n")
+    os.rename(path + ".tmp", path)
+
+
 def execute(cmd):
     print("RUNNING...\n", cmd, "\n")
     process = subprocess.Popen(cmd,
@@ -271,17 +304,20 @@ def main():
     file_base = os.path.basename(genotype_tar[0]).split('.')
     prefix = '.'.join(file_base[0:3])
 
-    # tar gzip *.bam.bas files and generate md5
-    execute("cd {0} && tar -cvzf {1}.bas.tar.gz *.bam.bas".format(output_dir, prefix))
-    execute("cat {0}/{1}.bas.tar.gz | md5sum | cut -b 1-33 > {0}/{1}.bas.tar.gz.md5".format(output_dir, prefix))
+    # tar gzip *.bam.bas files and generate md5 as the archive is written
+    execute("cd {0} && tar -cvz *.bam.bas | tee {1}.bas.tar.gz | md5sum | cut -b 1-33 > {1}.bas.tar.gz.md5".format(output_dir, prefix))
 
     # tar gzip timing_metrics json files and generate md5
-    execute("tar -cvzf {0}/{1}.timing_metrics.tar.gz -C {0} process_metrics.json".format(output_dir, prefix))
-    execute("cat {0}/{1}.timing_metrics.tar.gz | md5sum | cut -b 1-33 > {0}/{1}.timing_metrics.tar.gz.md5".format(output_dir, prefix))
+    execute("tar -cvz -C {0} process_metrics.json | tee {0}/{1}.timing_metrics.tar.gz | md5sum | cut -b 1-33 > {0}/{1}.timing_metrics.tar.gz.md5".format(output_dir, prefix))
 
     # tar gzip qc_metrics json files and generate md5
-    execute("tar -cvzf {0}/{1}.qc_metrics.tar.gz -C {0} qc_metrics.json".format(output_dir, prefix))
-    execute("cat {0}/{1}.qc_metrics.tar.gz | md5sum | cut -b 1-33 > {0}/{1}.qc_metrics.tar.gz.md5".format(output_dir, prefix))
+    execute("tar -cvz -C {0} qc_metrics.json | tee {0}/{1}.qc_metrics.tar.gz | md5sum | cut -b 1-33 > {0}/{1}.qc_metrics.tar.gz.md5".format(output_dir, prefix))
+
+    manifest = read_manifest(output_dir)
+    for archive in ["bas", "timing_metrics", "qc_metrics"]:
+        name = "{0}.{1}.tar.gz".format(prefix, archive)
+        with open(os.path.join(output_dir, name + ".md5")) as md5:
+            manifest[name] = [str(os.path.getsize(os.path.join(output_dir, name))), md5.read().strip()]
 
     if args.run_id is not None:
         # find all output file archives
@@ -290,6 +326,8 @@ def main():
         )
 
         for f in output_files:
+            if os.path.basename(f) == MANIFEST:
+                continue
             new_f = [args.run_id]
             f_base = os.path.basename(f).split(".")
             new_f += f_base[1:]
@@ -298,6 +336,10 @@ def main():
             execute("gosu root mv {0} {1}".format(
                 f, os.path.join(output_dir, ".".join(new_f))
             ))
+            if os.path.basename(f) in manifest:
+                manifest[".".join(new_f)] = manifest.pop(os.path.basename(f))
+
+    write_manifest(output_dir, manifest)
 
     if (args.keep_all_seqware_output_files):
         # find seqware tmp output path; it contains generated scripts w/
@@ -0,0 +1,274 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts alleles at the Battenberg loci of one chromosome for several BAMs in a
+ * single process.
+ *
+ * The loci file is loaded once and each BAM is walked over that chromosome in its
+ * own thread.  Output is written as 'outdir/SAMPLE.chr.tsv' in the alleleCounter
+ * format expected by ImputePackager, with the sample taken from the @RG SM field
+ * of each BAM.  Filtering follows alleleCounter defaults: unmapped, secondary,
+ * QC fail and duplicate reads are skipped, min mapping quality 35, min base
+ * quality 20, overlapping mates are both counted.  scripts/allele_counter_parity.sh
+ * compares the counts with those of alleleCounter.
+ *
+ * USAGE: AlleleCounter -l loci.txt -o outdir -c chr [-t threads] [-q minMapQ] [-m minBaseQ] bam...
+ */
+public class AlleleCounter {
+
+  private static final int CIGAR_M = 0, CIGAR_I = 1, CIGAR_D = 2, CIGAR_N = 3, CIGAR_S = 4, CIGAR_EQ = 7, CIGAR_X = 8;
+  private static final int SKIP_FLAGS = BamReader.FLAG_UNMAPPED | BamReader.FLAG_SECONDARY
+                                      | BamReader.FLAG_QCFAIL | BamReader.FLAG_DUPLICATE;
+
+  private final String contig;
+  // 0-based positions sorted ascending and the line each came from
+  private final int[] positions;
+  private final int[] lines;
+  private final int minMapQ;
+  private final int minBaseQ;
+
+  AlleleCounter(File loci, int minMapQ, int minBaseQ) throws IOException {
+    this.minMapQ = minMapQ;
+    this.minBaseQ = minBaseQ;
+    String name = null;
+    long[] keyed = new long[1 << 16];
+    int n = 0;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(loci), "UTF-8"), 1 << 16);
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        int tab = line.indexOf('\t');
+        if(tab < 0) {
+          throw new IOException("Malformed loci line in " + loci.getPath() + ": " + line);
+        }
+        String chr = line.substring(0, tab);
+        if(name == null) {
+          name = chr;
+        }
+        else if(!name.equals(chr)) {
+          throw new IOException("Loci file holds more than one chromosome (" + name + ", " + chr + "): " + loci.getPath());
+        }
+        int end = line.indexOf('\t', tab + 1);
+        long pos = Long.parseLong(end < 0 ? line.substring(tab + 1) : line.substring(tab + 1, end)) - 1;
+        if(n == keyed.length) {
+          keyed = Arrays.copyOf(keyed, n * 2);
+        }
+        keyed[n] = pos << 32 | n;
+        n++;
+      }
+    } finally {
+      reader.close();
+    }
+    if(name == null) {
+      throw new IOException("No loci found in " + loci.getPath());
+    }
+    contig = name;
+    Arrays.sort(keyed, 0, n);
+    positions = new int[n];
+    lines = new int[n];
+    for(int i=0; i<n; i++) {
+      positions[i] = (int) (keyed[i] >>> 32);
+      lines[i] = (int) (keyed[i] & 0xFFFFFFFFL);
+    }
+  }
+
+  /**
+   * @return Counts of A,C,G,T for each locus in file order (4 entries per locus)
+   */
+  int[] count(File bam, BamReader reader) throws IOException {
+    int[] counts = new int[positions.length * 4];
+    int refId = refIndex(reader.getRefNames(), contig);
+    if(refId < 0 || !reader.seekToReference(refId)) {
+      return counts;
+    }
+    int first = 0;
+    BamReader.Record rec;
+    while((rec = reader.next()) != null) {
+      if(rec.getRefId() != refId) {
+        if(rec.getRefId() < 0 || rec.getRefId() > refId) {
+          break;
+        }
+        continue;
+      }
+      if((rec.getFlag() & SKIP_FLAGS) != 0 || rec.getMapq() < minMapQ) {
+        continue;
+      }
+      int refPos = rec.getPos();
+      while(first < positions.length && positions[first] < refPos) {
+        first++;
+      }
+      if(first == positions.length) {
+        break;
+      }
+      int readPos = 0;
+      int li = first;
+      for(int c=0; c<rec.getCigarLength() && li < positions.length; c++) {
+        int op = rec.getCigarOp(c);
+        int len = rec.getCigarOpLength(c);
+        if(op == CIGAR_M || op == CIGAR_EQ || op == CIGAR_X) {
+          while(li < positions.length && positions[li] < refPos + len) {
+            int qpos = readPos + positions[li] - refPos;
+            if(qpos < rec.getReadLength() && rec.getQuality(qpos) >= minBaseQ) {
+              int base = baseIndex(rec.getBase(qpos));
+              if(base >= 0) {
+                counts[lines[li] * 4 + base]++;
+              }
+            }
+            li++;
+          }
+          refPos += len;
+          readPos += len;
+        }
+        else if(op == CIGAR_I || op == CIGAR_S) {
+          readPos += len;
+        }
+        else if(op == CIGAR_D || op == CIGAR_N) {
+          while(li < positions.length && positions[li] < refPos + len) {
+            li++;
+          }
+          refPos += len;
+        }
+      }
+    }
+    return counts;
+  }
+
+  void write(File out, int[] counts) throws IOException {
+    // positions are stored sorted, output is in loci file order
+    int[] byLine = new int[positions.length];
+    for(int i=0; i<positions.length; i++) {
+      byLine[lines[i]] = positions[i];
+    }
+    File tmp = new File(out.getParentFile(), "." + out.getName() + ".tmp");
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"), 1 << 16);
+    try {
+      writer.write("#CHR\tPOS\tCount_A\tCount_C\tCount_G\tCount_T\tGood_depth\n");
+      StringBuilder sb = new StringBuilder();
+      for(int i=0; i<byLine.length; i++) {
+        int a = counts[i*4], c = counts[i*4+1], g = counts[i*4+2], t = counts[i*4+3];
+        sb.setLength(0);
+        sb.append(contig).append('\t').append(byLine[i] + 1)
+          .append('\t').append(a).append('\t').append(c).append('\t').append(g).append('\t').append(t)
+          .append('\t').append(a + c + g + t).append('\n');
+        writer.write(sb.toString());
+      }
+    } finally {
+      writer.close();
+    }
+    if(!tmp.renameTo(out)) {
+      throw new IOException("Failed to move " + tmp.getPath() + " to " + out.getPath());
+    }
+  }
+
+  private static int refIndex(List<String> refNames, String contig) {
+    int idx = refNames.indexOf(contig);
+    if(idx < 0) {
+      if(contig.startsWith("chr")) {
+        idx = refNames.indexOf(contig.substring(3));
+      }
+      else {
+        idx = refNames.indexOf("chr" + contig);
+      }
+    }
+    return idx;
+  }
+
+  private static int baseIndex(char base) {
+    switch(base) {
+      case 'A': return 0;
+      case 'C': return 1;
+      case 'G': return 2;
+      case 'T': return 3;
+      default: return -1;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    File loci = null;
+    File outDir = null;
+    String chr = null;
+    int threads = 1, minMapQ = 35, minBaseQ = 20;
+    List<File> bams = new ArrayList<File>();
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-l")) {
+        loci = new File(args[++i]);
+      }
+      else if(args[i].equals("-o")) {
+        outDir = new File(args[++i]);
+      }
+      else if(args[i].equals("-c")) {
+        chr = args[++i];
+      }
+      else if(args[i].equals("-t")) {
+        threads = Integer.parseInt(args[++i]);
+      }
+      else if(args[i].equals("-q")) {
+        minMapQ = Integer.parseInt(args[++i]);
+      }
+      else if(args[i].equals("-m")) {
+        minBaseQ = Integer.parseInt(args[++i]);
+      }
+      else {
+        bams.add(new File(args[i]));
+      }
+    }
+    if(loci == null || outDir == null || chr == null || bams.isEmpty()) {
+      System.err.println("USAGE: AlleleCounter -l loci.txt -o outdir -c chr [-t threads] [-q minMapQ] [-m minBaseQ] bam...");
+      System.exit(1);
+    }
+
+    final AlleleCounter counter = new AlleleCounter(loci, minMapQ, minBaseQ);
+    final File dir = outDir;
+    final String label = chr;
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, bams.size())));
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for(final File bam : bams) {
+        results.add(pool.submit(new Callable<String>() {
+          @Override
+          public String call() throws IOException {
+            BamReader reader = new BamReader(bam);
+            try {
+              String sample = reader.getSampleName();
+              int[] counts = counter.count(bam, reader);
+              counter.write(new File(dir, sample + "." + label + ".tsv"), counts);
+              return sample;
+            } finally {
+              reader.close();
+            }
+          }
+        }));
+      }
+      for(Future<String> result : results) {
+        try {
+          System.out.println("Counted " + counter.positions.length + " loci for " + result.get());
+        } catch(ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
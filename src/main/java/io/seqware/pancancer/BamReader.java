@@ -0,0 +1,283 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Minimal sequential BAM reader, enough to read the header and walk the
+ * alignments of one reference sequence without htslib/samtools.
+ */
+public class BamReader implements Closeable {
+
+  public static final int FLAG_UNMAPPED = 0x4;
+  public static final int FLAG_SECONDARY = 0x100;
+  public static final int FLAG_QCFAIL = 0x200;
+  public static final int FLAG_DUPLICATE = 0x400;
+
+  // 4-bit base encoding from the SAM specification
+  private static final String SEQ_CODES = "=ACMGRSVTWYHKDBN";
+
+  // pseudo-bin holding index metadata rather than alignments
+  private static final int BAI_META_BIN = 37450;
+
+  /**
+   * One alignment, reused between calls to {@link BamReader#next()}.
+   */
+  public static class Record {
+    private byte[] data = new byte[1024];
+    private int refId, pos, mapq, flag, nCigar, lSeq, cigarOffset, seqOffset, qualOffset;
+
+    public int getRefId() {
+      return refId;
+    }
+
+    /**
+     * @return 0-based leftmost position
+     */
+    public int getPos() {
+      return pos;
+    }
+
+    public int getMapq() {
+      return mapq;
+    }
+
+    public int getFlag() {
+      return flag;
+    }
+
+    public int getCigarLength() {
+      return nCigar;
+    }
+
+    /**
+     * @return Op code 0-8 for MIDNSHP=X
+     */
+    public int getCigarOp(int i) {
+      return int32(data, cigarOffset + i*4) & 0xF;
+    }
+
+    public int getCigarOpLength(int i) {
+      return int32(data, cigarOffset + i*4) >>> 4;
+    }
+
+    public int getReadLength() {
+      return lSeq;
+    }
+
+    public char getBase(int i) {
+      int packed = data[seqOffset + i/2] & 0xFF;
+      return SEQ_CODES.charAt((i & 1) == 0 ? packed >>> 4 : packed & 0xF);
+    }
+
+    /**
+     * @return Phred quality, 255 when absent
+     */
+    public int getQuality(int i) {
+      return data[qualOffset + i] & 0xFF;
+    }
+  }
+
+  private final File bam;
+  private final BgzfInputStream in;
+  private final String headerText;
+  private final List<String> refNames = new ArrayList<String>();
+  private final byte[] sizeBuf = new byte[4];
+  private final Record record = new Record();
+
+  public BamReader(File bam) throws IOException {
+    this.bam = bam;
+    in = new BgzfInputStream(bam);
+    try {
+      byte[] fixed = new byte[4];
+      if(!in.readFully(fixed, 0, 4) || fixed[0] != 'B' || fixed[1] != 'A' || fixed[2] != 'M' || fixed[3] != 1) {
+        throw new IOException("Not a BAM file: " + bam.getPath());
+      }
+      int lText = readInt();
+      byte[] text = new byte[lText];
+      in.readFully(text, 0, lText);
+      int end = lText;
+      while(end > 0 && text[end-1] == 0) {
+        end--;
+      }
+      headerText = new String(text, 0, end, "UTF-8");
+      int nRef = readInt();
+      for(int i=0; i<nRef; i++) {
+        int lName = readInt();
+        byte[] name = new byte[lName];
+        in.readFully(name, 0, lName);
+        refNames.add(new String(name, 0, lName - 1, "UTF-8"));
+        readInt(); // l_ref
+      }
+    } catch(IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  public String getHeaderText() {
+    return headerText;
+  }
+
+  public List<String> getRefNames() {
+    return refNames;
+  }
+
+  /**
+   * @return The SM values found on the @RG lines of the header
+   */
+  public Set<String> getSampleNames() {
+    Set<String> samples = new LinkedHashSet<String>();
+    for(String line : headerText.split("\n")) {
+      if(!line.startsWith("@RG")) {
+        continue;
+      }
+      for(String field : line.split("\t")) {
+        if(field.startsWith("SM:")) {
+          samples.add(field.substring(3));
+        }
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * @return The single sample name of the BAM
+   * @throws IOException When the header holds no or several different SM entries
+   */
+  public String getSampleName() throws IOException {
+    Set<String> samples = getSampleNames();
+    if(samples.isEmpty()) {
+      throw new IOException("No SM entry found in: " + bam.getPath());
+    }
+    if(samples.size() > 1) {
+      throw new IOException("Multiple different SM entries: " + samples + " from: " + bam.getPath());
+    }
+    return samples.iterator().next();
+  }
+
+  /**
+   * Positions the reader at the first alignment that could belong to the reference
+   * using the BAM index (.bam.bai or .bai).  Alignments of other references may
+   * still be returned afterwards and must be checked by the caller.
+   *
+   * @param refId Reference index from the header
+   * @return false when the index shows no alignments for the reference
+   * @throws IOException When no index is found or it can't be read
+   */
+  public boolean seekToReference(int refId) throws IOException {
+    File bai = new File(bam.getPath() + ".bai");
+    if(!bai.exists()) {
+      String path = bam.getPath();
+      if(path.endsWith(".bam")) {
+        bai = new File(path.substring(0, path.length() - 4) + ".bai");
+      }
+    }
+    if(!bai.exists()) {
+      throw new IOException("No index found for " + bam.getPath());
+    }
+    long first = Long.MAX_VALUE;
+    DataInputStream idx = new DataInputStream(new BufferedInputStream(new FileInputStream(bai), 1 << 16));
+    try {
+      byte[] magic = new byte[4];
+      idx.readFully(magic);
+      if(magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1) {
+        throw new IOException("Not a BAI file: " + bai.getPath());
+      }
+      int nRef = leInt(idx);
+      if(refId >= nRef) {
+        return false;
+      }
+      for(int r=0; r<=refId; r++) {
+        int nBin = leInt(idx);
+        for(int b=0; b<nBin; b++) {
+          int bin = leInt(idx);
+          int nChunk = leInt(idx);
+          for(int c=0; c<nChunk; c++) {
+            long begin = leLong(idx);
+            leLong(idx); // end
+            if(r == refId && bin != BAI_META_BIN && begin < first) {
+              first = begin;
+            }
+          }
+        }
+        int nIntv = leInt(idx);
+        skipFully(idx, nIntv * 8L);
+      }
+    } finally {
+      idx.close();
+    }
+    if(first == Long.MAX_VALUE) {
+      return false;
+    }
+    in.seek(first);
+    return true;
+  }
+
+  /**
+   * @return The next alignment or null at the end of the file, the object is reused
+   */
+  public Record next() throws IOException {
+    if(!in.readFully(sizeBuf, 0, 4)) {
+      return null;
+    }
+    int blockSize = int32(sizeBuf, 0);
+    if(record.data.length < blockSize) {
+      record.data = new byte[blockSize * 2];
+    }
+    byte[] d = record.data;
+    in.readFully(d, 0, blockSize);
+    record.refId = int32(d, 0);
+    record.pos = int32(d, 4);
+    int lReadName = d[8] & 0xFF;
+    record.mapq = d[9] & 0xFF;
+    record.nCigar = (d[12] & 0xFF) | (d[13] & 0xFF) << 8;
+    record.flag = (d[14] & 0xFF) | (d[15] & 0xFF) << 8;
+    record.lSeq = int32(d, 16);
+    record.cigarOffset = 32 + lReadName;
+    record.seqOffset = record.cigarOffset + record.nCigar * 4;
+    record.qualOffset = record.seqOffset + (record.lSeq + 1) / 2;
+    return record;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private int readInt() throws IOException {
+    in.readFully(sizeBuf, 0, 4);
+    return int32(sizeBuf, 0);
+  }
+
+  private static int int32(byte[] b, int off) {
+    return (b[off] & 0xFF) | (b[off+1] & 0xFF) << 8 | (b[off+2] & 0xFF) << 16 | (b[off+3] & 0xFF) << 24;
+  }
+
+  private static int leInt(DataInputStream in) throws IOException {
+    return Integer.reverseBytes(in.readInt());
+  }
+
+  private static long leLong(DataInputStream in) throws IOException {
+    return Long.reverseBytes(in.readLong());
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while(n > 0) {
+      long skipped = in.skip(n);
+      if(skipped <= 0) {
+        throw new IOException("Truncated index");
+      }
+      n -= skipped;
+    }
+  }
+}
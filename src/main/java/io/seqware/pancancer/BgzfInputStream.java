@@ -0,0 +1,174 @@
+package io.seqware.pancancer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF compressed file (BAM, tabix'd VCF) as a plain stream and allows
+ * seeking to the virtual file offsets found in BAI/TBI indexes.
+ *
+ * Virtual offsets are (compressed block address << 16 | offset within the
+ * uncompressed block) as described in the SAM specification.
+ */
+public class BgzfInputStream extends InputStream {
+
+  private static final int MAX_BLOCK = 65536;
+
+  private final RandomAccessFile file;
+  private final Inflater inflater = new Inflater(true);
+  private final byte[] compressed = new byte[MAX_BLOCK];
+  private final byte[] block = new byte[MAX_BLOCK];
+  private int blockLength = 0;
+  private int blockPos = 0;
+  private long blockAddress = 0;
+  private long nextBlockAddress = 0;
+
+  public BgzfInputStream(File bgzf) throws IOException {
+    file = new RandomAccessFile(bgzf, "r");
+  }
+
+  /**
+   * @param virtualOffset Offset as found in a BAI/TBI index
+   * @throws IOException When the block can't be read
+   */
+  public void seek(long virtualOffset) throws IOException {
+    nextBlockAddress = virtualOffset >>> 16;
+    blockLength = 0;
+    blockPos = 0;
+    if(!readBlock()) {
+      return;
+    }
+    int within = (int) (virtualOffset & 0xFFFF);
+    if(within > blockLength) {
+      throw new IOException("Virtual offset beyond end of block: " + virtualOffset);
+    }
+    blockPos = within;
+  }
+
+  public long getVirtualOffset() {
+    if(blockPos == blockLength) {
+      return nextBlockAddress << 16;
+    }
+    return (blockAddress << 16) | blockPos;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if(blockPos == blockLength && !readBlock()) {
+      return -1;
+    }
+    return block[blockPos++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buf, int off, int len) throws IOException {
+    if(len == 0) {
+      return 0;
+    }
+    if(blockPos == blockLength && !readBlock()) {
+      return -1;
+    }
+    int n = Math.min(len, blockLength - blockPos);
+    System.arraycopy(block, blockPos, buf, off, n);
+    blockPos += n;
+    return n;
+  }
+
+  /**
+   * Fills the buffer completely.
+   *
+   * @return false if the stream was already at EOF, exception if EOF reached part way
+   */
+  public boolean readFully(byte[] buf, int off, int len) throws IOException {
+    int done = 0;
+    while(done < len) {
+      int n = read(buf, off + done, len - done);
+      if(n < 0) {
+        if(done == 0) {
+          return false;
+        }
+        throw new EOFException("Truncated BGZF stream");
+      }
+      done += n;
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    file.close();
+  }
+
+  // loads the next non-empty block, false at EOF
+  private boolean readBlock() throws IOException {
+    while(true) {
+      blockAddress = nextBlockAddress;
+      blockPos = 0;
+      blockLength = 0;
+      if(blockAddress >= file.length()) {
+        return false;
+      }
+      file.seek(blockAddress);
+      file.readFully(compressed, 0, 18);
+      if((compressed[0] & 0xFF) != 31 || (compressed[1] & 0xFF) != 139 || (compressed[3] & 4) == 0) {
+        throw new IOException("Not a BGZF block at offset " + blockAddress);
+      }
+      int xlen = u16(compressed, 10);
+      int blockSize = -1;
+      int extraEnd = 12 + xlen;
+      if(extraEnd > 18) {
+        file.readFully(compressed, 18, extraEnd - 18);
+      }
+      for(int p = 12; p + 4 <= extraEnd; ) {
+        int slen = u16(compressed, p + 2);
+        if(compressed[p] == 'B' && compressed[p+1] == 'C' && slen == 2) {
+          blockSize = u16(compressed, p + 4) + 1;
+        }
+        p += 4 + slen;
+      }
+      if(blockSize < 0) {
+        throw new IOException("BGZF block without BSIZE at offset " + blockAddress);
+      }
+      int headerRead = Math.max(18, extraEnd);
+      file.readFully(compressed, headerRead, blockSize - headerRead);
+      int dataLength = blockSize - extraEnd - 8;
+      int inflatedSize = (compressed[blockSize-4] & 0xFF)
+                       | (compressed[blockSize-3] & 0xFF) << 8
+                       | (compressed[blockSize-2] & 0xFF) << 16
+                       | (compressed[blockSize-1] & 0xFF) << 24;
+      nextBlockAddress = blockAddress + blockSize;
+      if(inflatedSize == 0) {
+        continue;
+      }
+      inflater.reset();
+      inflater.setInput(compressed, extraEnd, dataLength);
+      try {
+        int n = 0;
+        while(n < inflatedSize) {
+          int got = inflater.inflate(block, n, inflatedSize - n);
+          if(got == 0 && (inflater.finished() || inflater.needsInput())) {
+            break;
+          }
+          n += got;
+        }
+        if(n != inflatedSize) {
+          throw new IOException("BGZF block at " + blockAddress + " inflated to " + n + " bytes, expected " + inflatedSize);
+        }
+      } catch(DataFormatException e) {
+        throw new IOException("Corrupt BGZF block at offset " + blockAddress, e);
+      }
+      blockLength = inflatedSize;
+      return true;
+    }
+  }
+
+  private static int u16(byte[] b, int off) {
+    return (b[off] & 0xFF) | (b[off+1] & 0xFF) << 8;
+  }
+}
@@ -5,14 +5,23 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
 import net.sourceforge.seqware.pipeline.workflowV2.AbstractWorkflowDataModel;
 import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
 import net.sourceforge.seqware.pipeline.workflowV2.model.SqwFile;
 import org.apache.commons.lang.StringUtils;
 import io.seqware.pancancer.Version;
+import io.seqware.pancancer.ReferenceIndex.Contig;
 import java.util.UUID;
 
 /**
@@ -32,12 +41,57 @@ import java.util.UUID;
  */
 public class CgpSomaticCore extends AbstractWorkflowDataModel {
 
-  private static String OUTDIR = "outdir";
-  private static String TIMEDIR;
-  private static String COUNTDIR;
-  private static String BBDIR;
+  private String OUTDIR = "outdir";
+  // OUTDIR of the run, OUTDIR itself moves to OUTDIR/<donor> while building each donor of a batch
+  private String ROOTDIR;
+  private String TIMEDIR;
+  private String COUNTDIR;
+  private String BBDIR;
+  private String MANIFEST;
   private boolean cleanup = false;
   private boolean cleanupBams = false;
+  private boolean memoise = true;
+  private String memoInputs = "";
+  
+  // batch mode, donors processed by one run and how many may be in their callers at once
+  private List<String> donors = null;
+  private int donorsConcurrent = 1;
+  
+  // peak memory recorded by earlier runs, null when mem* properties are used as they are
+  private MemoryProfile memoryProfile = null;
+  
+  // SGE priorities from the critical path, weighed with the wall times of earlier runs
+  private boolean jobPriorities = true;
+  private final TimingLibrary timingHistory = new TimingLibrary();
+  
+  // lightweight jobs merged into their neighbours, see JobFuser
+  private boolean fuseJobs = true;
+  private int barrierMinJobs = 8;
+  
+  // status document of the running workflow, see ProgressMonitor
+  private boolean progressMonitor = false;
+  private int progressPort = 0;
+  private int progressInterval = 60;
+  
+  // seconds between resource samples of timed jobs, 0 for none, see bin/sample.sh and SampleReport
+  private int sampleInterval = 0;
+  
+  // node-local scratch the input BAMs are copied to, see bin/stage_bam.sh
+  private String stageDir = null;
+  private int stageStreams = 4;
+  
+  // steps of each caller and the steps whose output they read, see declareStep
+  private static final Map<String, String[]> ASCAT_STEPS = steps("allele_count", "ascat=allele_count", "finalise=ascat");
+  private static final Map<String, String[]> PINDEL_STEPS = steps("input", "pindel=input", "pin2vcf=pindel",
+                                                                  "merge=pin2vcf", "flag=merge");
+  private static final Map<String, String[]> BRASS_STEPS = steps("input", "cover=input", "merge=cover,input",
+                                                                 "group=merge", "isize=merge", "normcn=merge",
+                                                                 "filter=group,isize,normcn", "split=filter",
+                                                                 "assemble=split", "grass=assemble", "tabix=grass");
+  private static final Map<String, String[]> CAVEMAN_STEPS = steps("setup", "split=setup", "split_concat=split",
+                                                                   "mstep=split_concat", "merge=mstep", "estep=merge",
+                                                                   "merge_results=estep", "add_ids=merge_results",
+                                                                   "flag=add_ids");
   
   // datetime all upload files will be named with
   DateFormat df = new SimpleDateFormat("yyyyMMdd");
@@ -46,7 +100,7 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
   private String workflowName = Version.WORKFLOW_SHORT_NAME_VERSION;
   
   // MEMORY variables //
-  private String  memGenerateBasFile, memPackageResults, memMarkTime,
+  private String  memGenerateBasFile, memPackageResults, memMarkTime, memRefReady,
                   memQcMetrics, memGenotype, memContam,
                   memBbMerge,
                   // ascat memory
@@ -76,13 +130,35 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
                   // pindel variables
                   refExclude, pindelGermline,
                   //general variables
-                  installBase, refBase, genomeFa, testBase,
+                  installBase, refBase, genomeFa, testBase, planRefBase, refCacheDir,
                   //contamination variables
                   contamDownSampOneIn
                   ;
 
   private int coresAddressable, memWorkflowOverhead, memHostMbAvailable;
   
+  // unpacked reference bundles kept in refCacheDir
+  private int refCacheKeep = 4;
+  
+  // compression threads for each packaging job, see setPackageResources
+  private int packageThreads;
+  
+  // contig indexes handled by each CaVEMan split/pindel pin2vcf job, see planContigShards
+  private List<String> cavemanSplitShards, pinVcfShards;
+  
+  // jobs are built here and handed to SeqWare once threads have been planned, see buildWorkflow
+  private final JobGraph graph = new JobGraph();
+  
+  // job after which each part of reference_files can be read, see requireRef
+  private final Map<String, GraphJob> refReady = new HashMap<String, GraphJob>();
+  
+  // SM of each BAM (as linked into OUTDIR) read while building, see resolveSample
+  private final Map<String, String> sampleNames = new HashMap<String, String>();
+  
+  // set when the graph is built without SeqWare, see buildOffline
+  private Map<String, String> offlineConfig = null;
+  private String offlineBaseDir = null;
+  
   // UUID
   private String uuid = UUID.randomUUID().toString().toLowerCase();
 
@@ -115,12 +191,23 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
           OUTDIR = outPrefix + "/" + outDir;
         }
       }
+      if (hasPropertyAndNotNull("donors")) {
+        donors = Arrays.asList(getProperty("donors").split(","));
+      }
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
+    ROOTDIR = OUTDIR;
+    setOutDir(OUTDIR);
+  }
+  
+  // directories derived from the output directory of the run or donor being built
+  private void setOutDir(String outDir) {
+    OUTDIR = outDir;
     TIMEDIR = OUTDIR + "/timings";
     COUNTDIR = OUTDIR + "/ngsCounts";
     BBDIR = OUTDIR + "/bbCounts";
+    MANIFEST = OUTDIR + "/published.tsv";
   }
 
   @Override
@@ -132,6 +219,16 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     addDirectory(TIMEDIR);
     addDirectory(COUNTDIR);
     addDirectory(BBDIR);
+    if(donors != null) {
+      for(String donor : donors) {
+        setOutDir(ROOTDIR + "/" + donor);
+        addDirectory(OUTDIR);
+        addDirectory(TIMEDIR);
+        addDirectory(COUNTDIR);
+        addDirectory(BBDIR);
+      }
+      setOutDir(ROOTDIR);
+    }
   }
 
   @Override
@@ -146,13 +243,30 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
         cleanupBams = Boolean.valueOf(getProperty("cleanupBams"));
       }
       
+      if(hasPropertyAndNotNull("memoise")) {
+        memoise = Boolean.valueOf(getProperty("memoise"));
+      }
+      
       // used by steps that can use all available cores
       coresAddressable = Integer.valueOf(getProperty("coresAddressable"));
+      
+      if(hasPropertyAndNotNull("donorsConcurrent")) {
+        donorsConcurrent = Integer.valueOf(getProperty("donorsConcurrent"));
+      }
+      
+      packageThreads = Math.min(coresAddressable, 4);
+      if(hasPropertyAndNotNull("packageThreads")) {
+        packageThreads = Integer.valueOf(getProperty("packageThreads"));
+      }
 
       // MEMORY //
       memGenerateBasFile = getProperty("memGenerateBasFile");
       memPackageResults = getProperty("memPackageResults");
       memMarkTime = getProperty("memMarkTime");
+      memRefReady = "100";
+      if(hasPropertyAndNotNull("memRefReady")) {
+        memRefReady = getProperty("memRefReady");
+      }
       memQcMetrics = getProperty("memQcMetrics");
       memGenotype = getProperty("memGenotype");
       memContam = getProperty("memContam");
@@ -195,6 +309,64 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
       memWorkflowOverhead = Integer.valueOf(getProperty("memWorkflowOverhead"));
       memHostMbAvailable = Integer.valueOf(getProperty("memHostMbAvailable"));
       
+      // timed jobs request what they used before rather than the mem* guesses
+      if(hasPropertyAndNotNull("memProfileDirs")) {
+        double margin = 1.25;
+        if(hasPropertyAndNotNull("memProfileMargin")) {
+          margin = Double.valueOf(getProperty("memProfileMargin"));
+        }
+        int minimumMb = 500;
+        if(hasPropertyAndNotNull("memProfileMinimum")) {
+          minimumMb = Integer.valueOf(getProperty("memProfileMinimum"));
+        }
+        memoryProfile = new MemoryProfile(margin, minimumMb);
+        for(String dir : getProperty("memProfileDirs").split(":")) {
+          memoryProfile.load(new File(dir));
+        }
+        System.out.println("Memory profile: " + memoryProfile.size() + " timing records from " + getProperty("memProfileDirs"));
+      }
+      
+      if(hasPropertyAndNotNull("jobPriorities")) {
+        jobPriorities = Boolean.valueOf(getProperty("jobPriorities"));
+      }
+      String historyDirs = null;
+      if(hasPropertyAndNotNull("timingHistory")) {
+        historyDirs = getProperty("timingHistory");
+      }
+      else if(hasPropertyAndNotNull("memProfileDirs")) {
+        historyDirs = getProperty("memProfileDirs");
+      }
+      if(historyDirs != null) {
+        for(String dir : historyDirs.split(":")) {
+          timingHistory.load(new File(dir));
+        }
+      }
+      
+      if(hasPropertyAndNotNull("fuseJobs")) {
+        fuseJobs = Boolean.valueOf(getProperty("fuseJobs"));
+      }
+      if(hasPropertyAndNotNull("barrierMinJobs")) {
+        barrierMinJobs = Integer.valueOf(getProperty("barrierMinJobs"));
+      }
+      if(hasPropertyAndNotNull("progressMonitor")) {
+        progressMonitor = Boolean.valueOf(getProperty("progressMonitor"));
+      }
+      if(hasPropertyAndNotNull("progressPort")) {
+        progressPort = Integer.valueOf(getProperty("progressPort"));
+      }
+      if(hasPropertyAndNotNull("progressInterval")) {
+        progressInterval = Integer.valueOf(getProperty("progressInterval"));
+      }
+      if(hasPropertyAndNotNull("sampleInterval")) {
+        sampleInterval = Integer.valueOf(getProperty("sampleInterval"));
+      }
+      if(hasPropertyAndNotNull("stageDir")) {
+        stageDir = getProperty("stageDir");
+        if(hasPropertyAndNotNull("stageStreams")) {
+          stageStreams = Integer.valueOf(getProperty("stageStreams"));
+        }
+      }
+      
       contamDownSampOneIn = getProperty("contamDownSampOneIn");
 
       // REFERENCE INFO //
@@ -220,6 +392,24 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
       refBase = OUTDIR + "/reference_files";
       genomeFa = refBase + "/genome.fa";
       
+      // an already unpacked reference to plan per-contig jobs from at build time
+      planRefBase = refBase;
+      if(hasPropertyAndNotNull("planRefDir")) {
+        planRefBase = getProperty("planRefDir");
+      }
+      
+      // host level cache of unpacked reference bundles, see bin/ref_cache.sh
+      if(hasPropertyAndNotNull("refCacheDir")) {
+        refCacheDir = getProperty("refCacheDir");
+        if(hasPropertyAndNotNull("refCacheKeep")) {
+          refCacheKeep = Integer.valueOf(getProperty("refCacheKeep"));
+        }
+        String cached = cachedBundle(refFrom);
+        if(!hasPropertyAndNotNull("planRefDir") && cached != null) {
+          planRefBase = cached + "/reference_files";
+        }
+      }
+      
     } catch (Exception ex) {
       throw new RuntimeException(ex);
     }
@@ -227,167 +417,505 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     return getFiles();
   }
   
+  /**
+   * Builds and plans the job graph from ini properties without a SeqWare engine,
+   * for tools such as {@link WorkflowSimulator}.  Nothing is executed.
+   * 
+   * @param config Properties as found in the workflow ini file
+   * @param workflowBaseDir Path the bundle's workflow directory would be installed at
+   * @return The planned graph
+   */
+  public static JobGraph buildOffline(Map<String, String> config, String workflowBaseDir) {
+    CgpSomaticCore workflow = new CgpSomaticCore();
+    workflow.offlineConfig = config;
+    workflow.offlineBaseDir = workflowBaseDir;
+    workflow.setupDirectory();
+    workflow.setupFiles();
+    workflow.buildGraph();
+    return workflow.graph;
+  }
+  
+  @Override
+  public String getProperty(String key) throws Exception {
+    if(offlineConfig == null) {
+      return super.getProperty(key);
+    }
+    if(!offlineConfig.containsKey(key)) {
+      throw new Exception("Key " + key + " not found in offline config");
+    }
+    return offlineConfig.get(key);
+  }
+  
+  @Override
+  public boolean hasPropertyAndNotNull(String key) {
+    if(offlineConfig == null) {
+      try {
+        return super.hasPropertyAndNotNull(key);
+      } catch(Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return offlineConfig.get(key) != null;
+  }
+  
+  @Override
+  public String getWorkflowBaseDir() {
+    if(offlineConfig == null) {
+      return super.getWorkflowBaseDir();
+    }
+    return offlineBaseDir;
+  }
+  
   @Override
   public void buildWorkflow() {
-    Job startDownload = markTime("workflow", "start");
+    buildGraph();
+    submitGraph();
+  }
+  
+  private void buildGraph() {
+    GraphJob startDownload = markTime("workflow", "start");
     startDownload.setMaxMemory(memMarkTime);
     
     try {
+      StringBuilder inputs = new StringBuilder();
+      inputs.append(Memoiser.fileIdentity(refFrom)).append('\n');
+      inputs.append(Memoiser.fileIdentity(bbFrom));
+      memoInputs = inputs.toString();
       
-      List<String> rawBams = Arrays.asList(getProperty("tumourBams").split(":"));
-      if(rawBams.size() == 0) {
-        throw new RuntimeException("Property tumourBams has no list of BAM files");
-      }
-      List<Job> prepTumourBamJobs = new ArrayList<Job>();
-      List<String> tumourBams = new ArrayList<String>();
-      int tumBamCount = rawBams.size();
-      for(int i=0; i<tumBamCount; i++) {
-        File tumourBamFile = new File(rawBams.get(i));
-        String tumourBam = OUTDIR + "/" + tumourBamFile.getName();
-        tumourBams.add(tumourBam);
-        Job prepTumourBamJob = prepBam(rawBams.get(i), "tumour", i+1);
-        prepTumourBamJob.addParent(startDownload);
-        prepTumourBamJob.setMaxMemory(memMarkTime);
-        prepTumourBamJobs.add(prepTumourBamJob);
+      // reference parts as found in reference_files (genome.fa* at the top level)
+      String[] refParts = {"genome", "ascat", "pindel", "brass", "caveman", "vagrent"};
+      if(refCacheDir != null) {
+        GraphJob cacheRefJob = cacheRef(refFrom, OUTDIR);
+        cacheRefJob.writes(refBase);
+        cacheRefJob.addParent(startDownload);
+        cacheRefJob.setMaxMemory(memMarkTime);
+        
+        GraphJob cacheBbRefJob = cacheRef(bbFrom, OUTDIR + "/reference_files");
+        cacheBbRefJob.writes(refBase + "/battenberg");
+        cacheBbRefJob.addParent(startDownload);
+        cacheBbRefJob.setMaxMemory(memMarkTime);
+        
+        for(String part : refParts) {
+          refReady.put(part, cacheRefJob);
+        }
+        refReady.put("battenberg", cacheBbRefJob);
       }
-      
-      File controlBamFile = new File(getProperty("controlBam"));
-      String controlBam = OUTDIR + "/" + controlBamFile.getName();
-      Job prepControlBamJob = prepBam(getProperty("controlBam"), "control", 0);
-      prepControlBamJob.addParent(startDownload);
-      prepControlBamJob.setMaxMemory(memMarkTime);
-
-      Job genotypeJob = genoptypeBaseJob(tumourBams, controlBam);
-      genotypeJob.setMaxMemory(memGenotype);
-      genotypeJob.addParent(prepControlBamJob);
-      for(Job j : prepTumourBamJobs) {
-        genotypeJob.addParent(j);
+      else {
+        // extraction and the jobs waiting on its parts all start together, the
+        // extraction ranks above them and they only poll so take little memory
+        GraphJob fetchRefJob = fetchRef(refFrom, OUTDIR, "ref", "reference_files/");
+        fetchRefJob.writes(refBase);
+        fetchRefJob.addParent(startDownload);
+        fetchRefJob.setMaxMemory(memMarkTime);
+        
+        GraphJob fetchBbRefJob = fetchRef(bbFrom, OUTDIR + "/reference_files", "bb", "");
+        fetchBbRefJob.writes(refBase + "/battenberg");
+        fetchBbRefJob.addParent(startDownload);
+        fetchBbRefJob.setMaxMemory(memMarkTime);
+        
+        for(String part : refParts) {
+          GraphJob readyJob;
+          if(part.equals("genome")) {
+            readyJob = refPartReady("ref", part, "genome.fa", "genome.fa.fai");
+          }
+          else {
+            readyJob = refPartReady("ref", part, part);
+          }
+          readyJob.addParent(startDownload);
+          readyJob.waitsFor(fetchRefJob);
+          readyJob.setMaxMemory(memRefReady);
+          refReady.put(part, readyJob);
+        }
+        GraphJob bbReadyJob = refPartReady("bb", "battenberg", "battenberg");
+        bbReadyJob.addParent(startDownload);
+        bbReadyJob.waitsFor(fetchBbRefJob);
+        bbReadyJob.setMaxMemory(memRefReady);
+        refReady.put("battenberg", bbReadyJob);
       }
 
-      Job genotypePackJob = packageGenotype(tumourBams, controlBam);
-      genotypePackJob.setMaxMemory("4000");
-      genotypePackJob.addParent(genotypeJob);
+      // GRCh37d5 has 86 contigs, 24 once refExclude is applied
+      cavemanSplitShards = planContigShards("CaVEMan split", null,
+                                            "/caveman/ucscHiDepth_0.01_merge1000_no_exon.tsv", 86);
+      pinVcfShards = planContigShards("cgpPindel pin2vcf", refExclude,
+                                      "/brass/ucscHiDepth_0.01_mrg1000_no_exon_coreChrs.bed.gz", 24);
 
-      Job contaminationJob = contaminationBaseJob(tumBamCount, controlBam, "control");
-      contaminationJob.setMaxMemory(memContam);
-      contaminationJob.addParent(prepControlBamJob);
-      for(Job j : prepTumourBamJobs) {
-        contaminationJob.addParent(j);
+      // shared by all donors so never scaled by input size
+      applyMemoryProfile(graph.getJobs(), 0);
+      
+      // one donor, or each donor of the batch in its own OUTDIR/<donor>
+      List<GraphJob> metricsJobs = new ArrayList<GraphJob>();
+      if(donors == null) {
+        buildDonorWorkflow(startDownload, getProperty("tumourBams"), getProperty("controlBam"), metricsJobs);
+      }
+      else {
+        String batchGender = gender;
+        List<GraphJob> donorEnds = new ArrayList<GraphJob>();
+        for(String donor : donors) {
+          setOutDir(ROOTDIR + "/" + donor);
+          gender = batchGender;
+          if(hasPropertyAndNotNull(donor + ".gender")) {
+            gender = getProperty(donor + ".gender");
+          }
+          // a donor starts once the callers of the donor donorsConcurrent before it have
+          // finished, so its head overlaps the packaging and metrics of that donor
+          GraphJob donorStart = markTime("workflow", "start");
+          donorStart.setMaxMemory(memMarkTime);
+          donorStart.addParent(startDownload);
+          if(donorEnds.size() >= donorsConcurrent) {
+            donorStart.addParent(donorEnds.get(donorEnds.size() - donorsConcurrent));
+          }
+          donorEnds.add(buildDonorWorkflow(donorStart, getProperty(donor + ".tumourBams"),
+                                           getProperty(donor + ".controlBam"), metricsJobs));
+        }
+        setOutDir(ROOTDIR);
+        gender = batchGender;
       }
       
-      String tmpRef = OUTDIR + "/" + "ref.tar.gz";
-      Job pullRef = pullRef(refFrom, tmpRef);
-      pullRef.addParent(startDownload);
-      pullRef.setMaxMemory(memMarkTime);
-
-      String tmpBbRef = OUTDIR + "/" + "bb.tar.gz";
-      Job pullBbRef = pullRef(bbFrom, tmpBbRef);
-      pullBbRef.addParent(startDownload);
-      pullBbRef.setMaxMemory(memMarkTime);
+      // cached bundles used by this run may be evicted once it is done
+      if(refCacheDir != null) {
+        GraphJob releaseRefJob = graph.createBashJob("releaseRef");
+        releaseRefJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/ref_cache.sh release " + refCacheDir + " " + OUTDIR);
+        releaseRefJob.setMaxMemory(memMarkTime);
+        releaseRefJob.setMemoise(false);
+        releaseRefJob.setLightweight(true);
+        for(GraphJob metricsJob : metricsJobs) {
+          releaseRefJob.addParent(metricsJob);
+        }
+      }
 
-      Job unpackRef = unpackRef(tmpRef, null);
-      unpackRef.addParent(pullRef);
-      unpackRef.setMaxMemory(memMarkTime);
+      // delete just the BAM inputs and not the output dir
+      if (cleanup || cleanupBams) {
+        GraphJob cleanInputsJob = cleanJob();
+        for(GraphJob metricsJob : metricsJobs) {
+          cleanInputsJob.addParent(metricsJob);
+        }
+      }
+    } catch(Exception e) {
+      throw new RuntimeException(e);
+    }
+    
+    // parents from the files jobs declare, hand written edges are kept
+    int derived = graph.deriveDependencies();
+    System.out.println("Dependencies: " + derived + " edges derived from declared files");
+    for(String problem : graph.verify()) {
+      System.out.println("Dependency check: " + problem);
+    }
+    int implied = graph.reduce();
+    System.out.println("Dependencies: " + implied + " edges implied by longer paths removed");
+    
+    // small bookkeeping jobs don't need a scheduling round-trip each
+    if(fuseJobs) {
+      int before = graph.getJobs().size();
+      int fused = new JobFuser().fuse(graph);
+      System.out.println("Job fusion: " + before + " jobs merged into " + (before - fused));
+    }
+    
+    // jobs waiting on the same parents wait on one barrier instead, keeping the edges linear in the tumours
+    if(barrierMinJobs > 0) {
+      int barriers = graph.addBarriers(barrierMinJobs, memMarkTime);
+      System.out.println("Dependencies: " + barriers + " barrier jobs added");
+    }
+    
+    // threaded jobs share the host with whatever they can run alongside
+    new ResourcePlanner(coresAddressable, memHostMbAvailable, memWorkflowOverhead).plan(graph);
+    
+    // ready jobs with the most work still ahead of them are started first
+    if(jobPriorities) {
+      double critical = new CriticalPath(timingHistory).assign(graph);
+      System.out.println("Job priorities: critical path of " + Math.round(critical) + "s from "
+                        + timingHistory.size() + " timing records");
+    }
+    
+    // records are only found again when relaunched into the same absolute OUTDIR
+    if(memoise && offlineConfig == null && OUTDIR.startsWith("/")) {
+      Memoiser memoiser = new Memoiser(new File(OUTDIR, "memo"), OUTDIR, getWorkflowBaseDir() + "/bin/memo.sh");
+      int skipped = memoiser.apply(graph, workflowName, memoInputs);
+      System.out.println("Memoisation: " + skipped + " jobs completed by an earlier launch skipped");
+    }
+    
+    // the plan progress is reported against, see ProgressMonitor, written where the
+    // run writes rather than into the bundle, so it needs an absolute ROOTDIR
+    String progressDir = ROOTDIR + "/timings/progress";
+    boolean planned = false;
+    if(offlineConfig == null && ROOTDIR.startsWith("/")) {
+      String plan = ProgressMonitor.plan(graph, new CriticalPath(timingHistory), coresAddressable, ROOTDIR);
+      try {
+        File planFile = new File(ROOTDIR, ProgressMonitor.PLAN);
+        planFile.getParentFile().mkdirs();
+        Files.write(planFile.toPath(), plan.getBytes("UTF-8"));
+      } catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+      planned = true;
+    }
+    else if(progressMonitor) {
+      System.out.println("Progress: no plan written as output_prefix is relative, ProgressMonitor not started");
+    }
+    
+    // the sample interval is read by bin/timed.sh rather than passed to it so sampling doesn't change the fingerprints
+    Set<String> timingDirs = new LinkedHashSet<String>();
+    for(GraphJob job : graph.getJobs()) {
+      if(job.getTimingFile() != null) {
+        timingDirs.add(new File(job.getTimingFile()).getParent());
+      }
+    }
+    if(sampleInterval <= 0 && offlineConfig == null && ROOTDIR.startsWith("/")) {
+      // left by an earlier launch into the same output directory
+      for(String timingDir : timingDirs) {
+        new File(timingDir, "sample_s").delete();
+      }
+    }
+    
+    // the first job starts the monitor and writes the sample interval, only added when asked for either
+    boolean monitor = progressMonitor && planned;
+    if(monitor || sampleInterval > 0) {
+      GraphJob progressJob = graph.createBashJob("progress");
+      graph.getJobs().remove(progressJob);
+      graph.getJobs().add(0, progressJob);
+      progressJob.setMaxMemory(memMarkTime);
+      progressJob.setMemoise(false);
+      progressJob.getCommand().addArgument("mkdir -p " + progressDir);
+      if(sampleInterval > 0) {
+        for(String timingDir : timingDirs) {
+          progressJob.getCommand().addArgument("&& mkdir -p " + timingDir + " && echo " + sampleInterval + " > " + timingDir + "/sample_s");
+        }
+        // timed jobs must not start before the interval is written
+        for(GraphJob job : graph.getJobs()) {
+          if(job != progressJob && job.getParents().isEmpty()) {
+            job.addParent(progressJob);
+          }
+        }
+      }
+      if(monitor) {
+        String bundle = getWorkflowBaseDir();
+        progressJob.getCommand()
+          .addArgument("&& { setsid nohup java -cp " + bundle + "/classes:" + bundle + "/lib/'*'")
+          .addArgument("io.seqware.pancancer.ProgressMonitor -i " + progressInterval)
+          .addArgument((progressPort > 0 ? "-p " + progressPort + " " : "") + ROOTDIR)
+          .addArgument("> " + progressDir + "/monitor.log 2>&1 < /dev/null & }");
+      }
+    }
+  }
+  
+  /**
+   * Builds the jobs of one donor, all writing below OUTDIR.
+   * 
+   * @param startDownload Job the donor starts from, given the identity of its BAMs for {@link Memoiser}
+   * @param tumourBamList Colon separated tumour BAMs
+   * @param rawControlBam Control BAM
+   * @param metricsJobs The metrics job of the donor is added here
+   * @return Job marking the end of the callers, only packaging and metrics follow it
+   */
+  private GraphJob buildDonorWorkflow(GraphJob startDownload, String tumourBamList, String rawControlBam,
+                                      List<GraphJob> metricsJobs) throws Exception {
+    int firstJob = graph.getJobs().size();
+    
+    List<String> rawBams = Arrays.asList(tumourBamList.split(":"));
+    if(rawBams.size() == 0) {
+      throw new RuntimeException("Property tumourBams has no list of BAM files");
+    }
+    List<String> tumourBams = new ArrayList<String>();
+    List<GraphJob> stageJobs = new ArrayList<GraphJob>();
+    int tumBamCount = rawBams.size();
+    StringBuilder inputs = new StringBuilder();
+    for(String rawBam : rawBams) {
+      inputs.append(Memoiser.fileIdentity(rawBam)).append('\n');
+    }
+    inputs.append(Memoiser.fileIdentity(rawControlBam));
+    startDownload.setInputs(inputs.toString());
+    // kept with the timings so later runs can scale the memory they learn from these
+    long inputBytes = inputBytes(rawBams, rawControlBam);
+    if(inputBytes > 0) {
+      startDownload.getCommand().addArgument("&& echo " + inputBytes + " > " + TIMEDIR + "/input_bytes");
+    }
+    for(int i=0; i<tumBamCount; i++) {
+      File tumourBamFile = new File(rawBams.get(i));
+      String tumourBam = OUTDIR + "/" + tumourBamFile.getName();
+      tumourBams.add(tumourBam);
+      resolveSample(tumourBam, rawBams.get(i));
+      GraphJob prepTumourBamJob = prepBam(rawBams.get(i), "tumour", i+1);
+      prepTumourBamJob.addParent(startDownload);
+      prepTumourBamJob.setMaxMemory(memMarkTime);
+      if(stageDir != null) {
+        stageJobs.add(stageBam(rawBams.get(i), "tumour", i+1).addParent(prepTumourBamJob));
+      }
+    }
+    
+    File controlBamFile = new File(rawControlBam);
+    String controlBam = OUTDIR + "/" + controlBamFile.getName();
+    resolveSample(controlBam, rawControlBam);
+    GraphJob prepControlBamJob = prepBam(rawControlBam, "control", 0);
+    prepControlBamJob.addParent(startDownload);
+    prepControlBamJob.setMaxMemory(memMarkTime);
+    if(stageDir != null) {
+      stageJobs.add(stageBam(rawControlBam, "control", 0).addParent(prepControlBamJob));
+    }
 
-      Job unpackBbRef = unpackRef(tmpBbRef, "reference_files");
-      unpackBbRef.addParent(pullBbRef);
-      unpackBbRef.addParent(unpackRef);
-      unpackBbRef.setMaxMemory(memMarkTime);
+    GraphJob genotypeJob = genoptypeBaseJob(tumourBams, controlBam);
+    genotypeJob.setMaxMemory(memGenotype);
 
-      List<Job> basBbAlleleCountJobsList = new ArrayList<Job>();
+    GraphJob genotypePackJob = packageGenotype(tumourBams, controlBam);
+    setPackageResources(genotypePackJob, "4000");
+    genotypePackJob.addParent(genotypeJob);
 
-      Job controlBasJob = basFileBaseJob(0, controlBam, "control", 0);
-      controlBasJob.setMaxMemory(memGenerateBasFile);
-      controlBasJob.addParent(unpackRef);
-      controlBasJob.addParent(prepControlBamJob);
-      basBbAlleleCountJobsList.add(controlBasJob);
-      
-      for(int i=0; i<tumBamCount; i++) {
-        String tumourBam = rawBams.get(i);
-        Job tumourBasJob = basFileBaseJob(tumBamCount, tumourBam, "tumours", i+1);
-        tumourBasJob.setMaxMemory(memGenerateBasFile);
-        tumourBasJob.addParent(unpackRef);
-        tumourBasJob.addParent(prepTumourBamJobs.get(i));
-        basBbAlleleCountJobsList.add(tumourBasJob);
-      }
+    GraphJob contaminationJob = contaminationBaseJob(tumBamCount, controlBam, "control");
+    contaminationJob.setMaxMemory(memContam);
 
-      // packaging must have parent cavemanTbiCleanJob
-      // these are not paired but per individual sample
-      List<Job> bbAlleleCountJobs = new ArrayList<Job>();
-      for(int i=0; i<23; i++) { // not 1-22+X
-        for(int j=0; j<tumBamCount; j++) {
-          Job bbAlleleCountJob = bbAlleleCount(j, tumourBams.get(j), "tumour", i);
-          bbAlleleCountJob.setMaxMemory(memAlleleCount);
-          bbAlleleCountJob.addParent(unpackBbRef);
-          bbAlleleCountJob.addParent(prepTumourBamJobs.get(j));
-          bbAlleleCountJobs.add(bbAlleleCountJob);
-          basBbAlleleCountJobsList.add(bbAlleleCountJob);
-        }
-        Job bbAlleleCountJob = bbAlleleCount(1, controlBam, "control", i);
-        bbAlleleCountJob.setMaxMemory(memAlleleCount);
-        bbAlleleCountJob.addParent(unpackBbRef);
-        bbAlleleCountJob.addParent(prepControlBamJob);
-        bbAlleleCountJobs.add(bbAlleleCountJob);
-        basBbAlleleCountJobsList.add(bbAlleleCountJob);
-      }
+    GraphJob controlBasJob = basFileBaseJob(0, controlBam, "control", 0);
+    controlBasJob.setMaxMemory(memGenerateBasFile);
+    
+    for(int i=0; i<tumBamCount; i++) {
+      GraphJob tumourBasJob = basFileBaseJob(tumBamCount, tumourBams.get(i), "tumours", i+1);
+      tumourBasJob.setMaxMemory(memGenerateBasFile);
+    }
 
-      Job bbAlleleMergeJob = bbAlleleMerge(controlBam);
-      bbAlleleMergeJob.setMaxMemory(memBbMerge);
-      for(Job j : bbAlleleCountJobs) {
-        bbAlleleMergeJob.addParent(j);
-      }
+    // packaging must have parent cavemanTbiCleanJob
+    // these are not paired but per individual sample, all samples counted in one job per chromosome
+    List<String> bbBams = new ArrayList<String>(tumourBams);
+    bbBams.add(controlBam);
+    List<GraphJob> bbAlleleCountJobs = new ArrayList<GraphJob>();
+    for(int i=0; i<23; i++) { // not 1-22+X
+      GraphJob bbAlleleCountJob = bbAlleleCount(bbBams, i);
+      bbAlleleCountJob.setMaxMemory(memAlleleCount);
+      bbAlleleCountJob.setThreads(Math.min(coresAddressable, bbBams.size()));
+      bbAlleleCountJobs.add(bbAlleleCountJob);
+    }
 
-      // donor based workflow section
-      Job[] cavemanFlagJobs = new Job [tumBamCount];
-      for(int i=0; i<tumBamCount; i++) {
-        Job cavemanFlagJob = buildPairWorkflow(unpackRef, basBbAlleleCountJobsList, controlBam, tumourBams.get(i), i);
-        cavemanFlagJobs[i] = cavemanFlagJob;
-      }
+    GraphJob bbAlleleMergeJob = bbAlleleMerge(controlBam, bbAlleleCountJobs.size());
+    setPackageResources(bbAlleleMergeJob, memBbMerge);
 
-      Job endWorkflow = markTime("workflow", "end");
-      endWorkflow.setMaxMemory(memMarkTime);
-      for(Job cavemanFlagJob : cavemanFlagJobs) {
-        endWorkflow.addParent(cavemanFlagJob);
-      }
+    // with several tumours the control BAM is read once for all pairs, see shareNormal
+    boolean sharedNormal = tumBamCount > 1;
+    if(sharedNormal) {
+      buildNormalInputs(controlBam, tumourBams.get(0));
+    }
+    
+    // donor based workflow section
+    GraphJob[] cavemanFlagJobs = new GraphJob [tumBamCount];
+    for(int i=0; i<tumBamCount; i++) {
+      GraphJob cavemanFlagJob = buildPairWorkflow(controlBam, tumourBams.get(i), i, sharedNormal);
+      cavemanFlagJobs[i] = cavemanFlagJob;
+    }
 
-      Job metricsJob = getMetricsJob(tumourBams, controlBam);
-      metricsJob.setMaxMemory(memQcMetrics);
-      metricsJob.addParent(endWorkflow);
+    GraphJob endWorkflow = markTime("workflow", "end");
+    endWorkflow.setMaxMemory(memMarkTime);
+    for(GraphJob cavemanFlagJob : cavemanFlagJobs) {
+      endWorkflow.addParent(cavemanFlagJob);
+    }
 
-      Job renameGenotypeJob = renameSampleFile(tumourBams, OUTDIR, "genotype.tar.gz");
-      renameGenotypeJob.setMaxMemory("4000");
-      renameGenotypeJob.addParent(genotypePackJob);
-      Job renameGenotypeMd5Job = renameSampleFile(tumourBams, OUTDIR, "genotype.tar.gz.md5");
-      renameGenotypeMd5Job.setMaxMemory("4000");
-      renameGenotypeMd5Job.addParent(genotypePackJob);
+    GraphJob metricsJob = getMetricsJob(tumourBams, controlBam);
+    metricsJob.setMaxMemory(memQcMetrics);
+    metricsJob.addParent(endWorkflow);
+    metricsJob.setMemoise(false);
+    metricsJobs.add(metricsJob);
+    
+    GraphJob publishGenotypeJob = publishSampleFiles(tumourBams, OUTDIR, "genotype.tar.gz");
+    publishGenotypeJob.setMaxMemory("4000");
+    publishGenotypeJob.addParent(genotypePackJob);
 
-      Job packageContamJob = packageContam(tumourBams, controlBam);
-      packageContamJob.setMaxMemory("4000");
-      for(Job cavemanFlagJob : cavemanFlagJobs) {
-        packageContamJob.addParent(cavemanFlagJob);
-      }
+    GraphJob packageContamJob = packageContam(tumourBams, controlBam);
+    setPackageResources(packageContamJob, "4000");
 
-      Job renameContamJob = renameSampleFile(tumourBams, OUTDIR, "verifyBamId.tar.gz");
-      renameContamJob.setMaxMemory("4000");
-      renameContamJob.addParent(packageContamJob);
-      Job renameContamMd5Job = renameSampleFile(tumourBams, OUTDIR, "verifyBamId.tar.gz.md5");
-      renameContamMd5Job.setMaxMemory("4000");
-      renameContamMd5Job.addParent(packageContamJob);
+    GraphJob publishContamJob = publishSampleFiles(tumourBams, OUTDIR, "verifyBamId.tar.gz");
+    publishContamJob.setMaxMemory("4000");
+    publishContamJob.addParent(packageContamJob);
 
-      Job renameImputeJob = renameSampleFile(tumourBams, OUTDIR + "/bbCounts", "imputeCounts.tar.gz");
-      renameImputeJob.setMaxMemory("4000");
-      renameImputeJob.addParent(bbAlleleMergeJob);
-      Job renameImputeMd5Job = renameSampleFile(tumourBams, OUTDIR + "/bbCounts", "imputeCounts.tar.gz.md5");
-      renameImputeMd5Job.setMaxMemory("4000");
-      renameImputeMd5Job.addParent(bbAlleleMergeJob);
+    GraphJob publishImputeJob = publishSampleFiles(tumourBams, BBDIR, "imputeCounts.tar.gz");
+    publishImputeJob.setMaxMemory("4000");
+    publishImputeJob.addParent(bbAlleleMergeJob);
+    
+    applyMemoryProfile(graph.getJobs().subList(firstJob, graph.getJobs().size()), inputBytes);
+    
+    // the scratch copies are removed once nothing reads them any more
+    if(stageDir != null) {
+      List<String> inBams = new ArrayList<String>(rawBams);
+      inBams.add(rawControlBam);
+      List<GraphJob> donorJobs = new ArrayList<GraphJob>(graph.getJobs().subList(firstJob, graph.getJobs().size()));
+      for(int i=0; i<inBams.size(); i++) {
+        String inBam = inBams.get(i);
+        String linked = OUTDIR + "/" + new File(inBam).getName();
+        GraphJob unstageJob = graph.createBashJob("unstageBam");
+        unstageJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/stage_bam.sh release " + inBam + " " + OUTDIR + " " + stageDir);
+        unstageJob.setMaxMemory(memMarkTime);
+        unstageJob.setMemoise(false);
+        unstageJob.setLightweight(true);
+        unstageJob.addParent(stageJobs.get(i));
+        unstageJob.addParent(metricsJob);
+        for(GraphJob job : donorJobs) {
+          if(job.getReads().contains(linked)) {
+            unstageJob.addParent(job);
+          }
+        }
+      }
+    }
+    return endWorkflow;
+  }
+  
+  /**
+   * Builds the control (index 2) input steps of ASCAT, cgpPindel and BRASS once for
+   * the donor, writing to OUTDIR/normal/0/<alg>.  The callers only read the control
+   * BAM in these steps so any tumour can be given, timings are those of pair 0.
+   */
+  private void buildNormalInputs(String controlBam, String tumourBam) {
+    String donorDir = OUTDIR;
+    OUTDIR = donorDir + "/normal";
+    try {
+      GraphJob alleleCountJob = cgpAscatBaseJob(0, tumourBam, controlBam, "ASCAT", "allele_count", 2);
+      alleleCountJob.setMaxMemory(memAlleleCount);
       
-      // delete just the BAM inputs and not the output dir
-      if (cleanup || cleanupBams) {
-        Job cleanInputsJob = cleanJob();
-        cleanInputsJob.addParent(metricsJob);
+      GraphJob pindelInputJob = pindelBaseJob(0, tumourBam, controlBam, "cgpPindel", "input", 2);
+      pindelInputJob.setMaxMemory(memPindelInput);
+      
+      GraphJob brassInputJob = brassBaseJob(0, tumourBam, controlBam, "BRASS", "input", 2);
+      brassInputJob.getCommand().addArgument("-i 2");
+      brassInputJob.setMaxMemory(memBrassInput);
+    } finally {
+      OUTDIR = donorDir;
+    }
+  }
+  
+  /**
+   * Hard links the shared control input of a caller into the output directory of a
+   * pair, including the progress files so the caller sees the step as done.
+   */
+  private GraphJob shareNormal(int tumourCount, String algName, String process) {
+    String from = OUTDIR + "/normal/0/" + algName;
+    String to = OUTDIR + "/" + tumourCount + "/" + algName;
+    GraphJob thisJob = graph.createBashJob("shareNormal");
+    thisJob.getCommand()
+      .addArgument("mkdir -p " + to)
+      .addArgument("&& cp -alf " + from + "/. " + to + "/")
+      ;
+    thisJob.reads(from + "/" + process);
+    thisJob.writes(to + "/" + process);
+    thisJob.setMaxMemory(memMarkTime);
+    thisJob.setLightweight(true);
+    return thisJob;
+  }
+  
+  /**
+   * Creates the SeqWare jobs for the planned graph, in the order they were built.
+   */
+  private void submitGraph() {
+    Map<GraphJob, Job> submitted = new HashMap<GraphJob, Job>();
+    for(GraphJob graphJob : graph.getJobs()) {
+      Job thisJob = getWorkflow().createBashJob(graphJob.getName());
+      for(String arg : graphJob.getResolvedArguments()) {
+        thisJob.getCommand().addArgument(arg);
       }
-    } catch(Exception e) {
-      throw new RuntimeException(e);
+      if(graphJob.getThreads() != null) {
+        thisJob.setThreads(graphJob.getThreads());
+      }
+      if(graphJob.getMaxMemory() != null) {
+        thisJob.setMaxMemory(graphJob.getMaxMemory());
+      }
+      if(graphJob.getPriority() != 0) {
+        thisJob.setQsubOptions("-p " + graphJob.getPriority());
+      }
+      for(GraphJob parent : graphJob.getParents()) {
+        thisJob.addParent(submitted.get(parent));
+      }
+      submitted.put(graphJob, thisJob);
     }
   }
   
@@ -396,7 +924,7 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
    * The generic buildWorkflow section will choose the pair to be processed and 
    * setup the control sample download
    */
-  private Job buildPairWorkflow(Job refUnpackJob, List dependencyJobsList, String controlBam, String tumourBam, int tumourCount) {
+  private GraphJob buildPairWorkflow(String controlBam, String tumourBam, int tumourCount, boolean sharedNormal) {
     
     /**
      * ASCAT - Copynumber
@@ -405,56 +933,40 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
      *  - Gender, will attempt to determine if not specified
      */
 
-    Job[] alleleCountJobs = new Job[2];
+    // parents of these and the other caller steps follow from the files they declare, see declareStep
     for(int i=0; i<2; i++) {
-      Job alleleCountJob = cgpAscatBaseJob(tumourCount, tumourBam, controlBam, "ASCAT", "allele_count", i+1);
+      if(i == 1 && sharedNormal) {
+        shareNormal(tumourCount, "ascat", "allele_count");
+        continue;
+      }
+      GraphJob alleleCountJob = cgpAscatBaseJob(tumourCount, tumourBam, controlBam, "ASCAT", "allele_count", i+1);
       alleleCountJob.setMaxMemory(memAlleleCount);
-      addJobParents(alleleCountJob, dependencyJobsList);
-      alleleCountJobs[i] = alleleCountJob;
     }
 
-    Job ascatJob = cgpAscatBaseJob(tumourCount, tumourBam, controlBam, "ASCAT", "ascat", 1);
+    GraphJob ascatJob = cgpAscatBaseJob(tumourCount, tumourBam, controlBam, "ASCAT", "ascat", 1);
     ascatJob.setMaxMemory(memAscat);
-    ascatJob.addParent(alleleCountJobs[0]);
-    ascatJob.addParent(alleleCountJobs[1]);
     
-    Job ascatFinaliseJob = cgpAscatBaseJob(tumourCount, tumourBam, controlBam, "ASCAT", "finalise", 1);
+    GraphJob ascatFinaliseJob = cgpAscatBaseJob(tumourCount, tumourBam, controlBam, "ASCAT", "finalise", 1);
     ascatFinaliseJob.setMaxMemory(memAscatFinalise);
-    ascatFinaliseJob.addParent(ascatJob);
     
-    Job ascatPackage = packageResults(tumourCount, "ascat", "cnv", tumourBam, "copynumber.caveman.vcf.gz", workflowName, "somatic", dateString);
-    ascatPackage.setMaxMemory(memPackageResults);
+    GraphJob ascatPackage = packageResults(tumourCount, "ascat", "cnv", tumourBam, "copynumber.caveman.vcf.gz", workflowName, "somatic", dateString);
+    setPackageResources(ascatPackage, memPackageResults);
     ascatPackage.addParent(ascatFinaliseJob);
+    qcStats(tumourCount, "ascat");
     
-    Job contaminationJob = contaminationBaseJob(tumourCount, tumourBam, "tumour");
+    GraphJob contaminationJob = contaminationBaseJob(tumourCount, tumourBam, "tumour");
     contaminationJob.setMaxMemory(memContam);
-    contaminationJob.addParent(ascatFinaliseJob);
     
     /**
      * CaVEMan setup is here to allow better workflow graph
      * Messy but necessary
      */
     
-    Job caveCnPrepJobs[] = new Job[2];
-    for(int i=0; i<2; i++) {
-      Job caveCnPrepJob;
-      if(i==0) {
-        caveCnPrepJob = caveCnPrep(tumourCount, "tumour");
-      }
-      else {
-        caveCnPrepJob = caveCnPrep(tumourCount, "normal");
-      }
-      caveCnPrepJob.addParent(refUnpackJob);
-      caveCnPrepJob.addParent(ascatFinaliseJob); // ASCAT dependency!!!
-      caveCnPrepJobs[i] = caveCnPrepJob;
-    }
+    caveCnPrep(tumourCount, "tumour");
+    caveCnPrep(tumourCount, "normal");
     
-    
-    Job cavemanSetupJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "setup", 1);
+    GraphJob cavemanSetupJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "setup", 1);
     cavemanSetupJob.setMaxMemory(memCavemanSetup);
-    cavemanSetupJob.addParent(caveCnPrepJobs[0]);
-    cavemanSetupJob.addParent(caveCnPrepJobs[1]);
-    // some dependencies handled by ascat step
   
     /**
      * Pindel - InDel calling
@@ -462,51 +974,38 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
      *  - tumour/control BAMs
      */
      
-    Job[] pindelInputJobs = new Job[2];
     for(int i=0; i<2; i++) {
-      Job inputParse = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "input", i+1);
+      if(i == 1 && sharedNormal) {
+        shareNormal(tumourCount, "pindel", "input");
+        continue;
+      }
+      GraphJob inputParse = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "input", i+1);
       // If you tell SGE you are using ,multiple cores it multiplies the requested memory for you
       inputParse.setMaxMemory( memPindelInput );
-      addJobParents(inputParse, dependencyJobsList);
-      pindelInputJobs[i] = inputParse;
-    }
-    
-    int pindelNormalisedThreads = pindelNormalisedThreads(memPindelPerThread, coresAddressable);
-    int totalPindelMem = Integer.valueOf(memPindelPerThread) + (Integer.valueOf(memWorkflowOverhead) / pindelNormalisedThreads);
-    
-    Job pindelJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "pindel", 1);
-    pindelJob.getCommand().addArgument("-l " + pindelNormalisedThreads);
-    pindelJob.getCommand().addArgument("-c " + pindelNormalisedThreads);
-    pindelJob.setMaxMemory(Integer.toString(totalPindelMem));
-    pindelJob.setThreads(pindelNormalisedThreads);
-    pindelJob.addParent(pindelInputJobs[0]);
-    pindelJob.addParent(pindelInputJobs[1]);
-    
-    // determine number of refs to process
-    // we know that this is static for PanCancer so be lazy 24 jobs (1-22,X,Y)
-    // but pindel needs to know the exclude list so hard code this
-    Job pinVcfJobs[] = new Job[24];
-    for(int i=0; i<24; i++) {
-      Job pinVcfJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "pin2vcf", i+1);
+    }
+    
+    // threads and memory set by ResourcePlanner
+    GraphJob pindelJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "pindel", 1);
+    pindelJob.getCommand().addArgument("-l " + GraphJob.THREADS);
+    pindelJob.getCommand().addArgument("-c " + GraphJob.THREADS);
+    pindelJob.setElastic(Integer.valueOf(memPindelPerThread));
+    
+    // refs remaining after refExclude are packed into jobs of similar size, see planContigShards
+    for(int i=0; i<pinVcfShards.size(); i++) {
+      GraphJob pinVcfJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "pin2vcf", i+1, pinVcfShards.get(i));
       pinVcfJob.setMaxMemory(memPindelVcf);
-      pinVcfJob.addParent(pindelJob);
-      pinVcfJobs[i] = pinVcfJob;
     }
     
-    Job pindelMergeJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "merge", 1);
+    GraphJob pindelMergeJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "merge", 1);
     pindelMergeJob.setMaxMemory(memPindelMerge);
-    for (Job parent : pinVcfJobs) {
-      pindelMergeJob.addParent(parent);
-    }
     
-    Job pindelFlagJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "flag", 1);
+    GraphJob pindelFlagJob = pindelBaseJob(tumourCount, tumourBam, controlBam, "cgpPindel", "flag", 1);
     pindelFlagJob.setMaxMemory(memPindelFlag);
-    pindelFlagJob.addParent(pindelMergeJob);
-    pindelFlagJob.addParent(cavemanSetupJob);
     
-    Job pindelPackage = packageResults(tumourCount, "pindel", "indel", tumourBam, "flagged.vcf.gz", workflowName, "somatic", dateString);
-    pindelPackage.setMaxMemory(memPackageResults);
+    GraphJob pindelPackage = packageResults(tumourCount, "pindel", "indel", tumourBam, "flagged.vcf.gz", workflowName, "somatic", dateString);
+    setPackageResources(pindelPackage, memPackageResults);
     pindelPackage.addParent(pindelFlagJob);
+    qcStats(tumourCount, "pindel");
     
     /**
      * BRASS - BReakpoint AnalySiS
@@ -515,225 +1014,297 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
      *  - ASCAT output at filter step
      */
     
-    Job brassInputJobs[] = new Job[2];
     for(int i=0; i<2; i++) {
+      if(i == 1 && sharedNormal) {
+        shareNormal(tumourCount, "brass", "input");
+        continue;
+      }
       int index = i+1;
-      Job brassInputJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "input", index);
+      GraphJob brassInputJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "input", index);
       brassInputJob.getCommand().addArgument("-i " + index);
       brassInputJob.setMaxMemory(memBrassInput);
-      addJobParents(brassInputJob, dependencyJobsList);
-      brassInputJobs[i] = brassInputJob;
     }
     
-    int localCores = coresAddressable / 2;
-    if(localCores == 0) { localCores = 1; }
-    int totalBrassCoverMem = Integer.valueOf(memBrassCoverPerThread) + (Integer.valueOf(memWorkflowOverhead) / localCores);
-    
-    Job brassCoverJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "cover", 1);
-    brassCoverJob.getCommand().addArgument("-l " + localCores);
-    brassCoverJob.getCommand().addArgument("-c " + localCores);
-    brassCoverJob.setMaxMemory(Integer.toString(totalBrassCoverMem));
-    brassCoverJob.setThreads(localCores);
-    brassCoverJob.addParent(brassInputJobs[0]);
-    brassCoverJob.addParent(brassInputJobs[1]);
+    GraphJob brassCoverJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "cover", 1);
+    brassCoverJob.getCommand().addArgument("-l " + GraphJob.THREADS);
+    brassCoverJob.getCommand().addArgument("-c " + GraphJob.THREADS);
+    brassCoverJob.setElastic(Integer.valueOf(memBrassCoverPerThread));
     
-    Job brassCoverMergeJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "merge", 1);
+    GraphJob brassCoverMergeJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "merge", 1);
     brassCoverMergeJob.setMaxMemory(memBrassCoverMerge);
-    brassCoverMergeJob.addParent(brassCoverJob);
-    brassCoverMergeJob.addParent(brassInputJobs[0]);
-    brassCoverMergeJob.addParent(brassInputJobs[1]);
     
-    Job brassGroupJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "group", 1);
+    GraphJob brassGroupJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "group", 1);
     brassGroupJob.setMaxMemory(memBrassGroup);
-    brassGroupJob.addParent(brassCoverMergeJob);
     
-      Job brassIsizeJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "isize", 1);
+      GraphJob brassIsizeJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "isize", 1);
     brassIsizeJob.setMaxMemory(memBrassIsize);
-    brassIsizeJob.addParent(brassCoverMergeJob);
     
-      Job brassNormCnJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "normcn", 1);
+      GraphJob brassNormCnJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "normcn", 1);
     brassNormCnJob.setMaxMemory(memBrassNormCn);
-    brassNormCnJob.addParent(brassCoverMergeJob);
     
-    Job brassFilterJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "filter", 1);
+    GraphJob brassFilterJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "filter", 1);
     brassFilterJob.setMaxMemory(memBrassFilter);
-    brassFilterJob.addParent(brassGroupJob);
-    brassFilterJob.addParent(brassIsizeJob);
-    brassFilterJob.addParent(brassNormCnJob);
-    brassFilterJob.addParent(ascatFinaliseJob); // NOTE: dependency on ASCAT!!
     
-    Job brassSplitJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "split", 1);
+    GraphJob brassSplitJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "split", 1);
     brassSplitJob.setMaxMemory(memBrassSplit);
-    brassSplitJob.addParent(brassFilterJob);
 
     
-    int brassAssNormalisedThreads = getMemNormalisedThread(memBrassAssemblePerThread, coresAddressable);
-    int totalBrassAssMem = Integer.valueOf(memBrassAssemblePerThread) + (Integer.valueOf(memWorkflowOverhead) / brassAssNormalisedThreads);
-    
-    Job brassAssembleJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "assemble", 1);
-    brassAssembleJob.getCommand().addArgument("-l " + brassAssNormalisedThreads);
-    brassAssembleJob.getCommand().addArgument("-c " + brassAssNormalisedThreads);
-    brassAssembleJob.setMaxMemory(Integer.toString(totalBrassAssMem));
-    brassAssembleJob.setThreads(brassAssNormalisedThreads);
-    brassAssembleJob.addParent(brassSplitJob);
+    GraphJob brassAssembleJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "assemble", 1);
+    brassAssembleJob.getCommand().addArgument("-l " + GraphJob.THREADS);
+    brassAssembleJob.getCommand().addArgument("-c " + GraphJob.THREADS);
+    brassAssembleJob.setElastic(Integer.valueOf(memBrassAssemblePerThread));
     
-    Job brassGrassJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "grass", 1);
+    GraphJob brassGrassJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "grass", 1);
     brassGrassJob.setMaxMemory(memBrassGrass);
-    brassGrassJob.addParent(brassAssembleJob);
     
-    Job brassTabixJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "tabix", 1);
+    GraphJob brassTabixJob = brassBaseJob(tumourCount, tumourBam, controlBam, "BRASS", "tabix", 1);
     brassTabixJob.setMaxMemory(memBrassTabix);
-    brassTabixJob.addParent(brassGrassJob);
+    brassTabixJob.setLightweight(true);
     
-    Job brassPackage = packageResults(tumourCount, "brass", "sv", tumourBam, "annot.vcf.gz", workflowName, "somatic", dateString);
-    brassPackage.setMaxMemory(memPackageResults);
+    GraphJob brassPackage = packageResults(tumourCount, "brass", "sv", tumourBam, "annot.vcf.gz", workflowName, "somatic", dateString);
+    setPackageResources(brassPackage, memPackageResults);
     brassPackage.addParent(brassTabixJob);
+    qcStats(tumourCount, "brass");
     
     
     /**
      * CaVEMan - SNV analysis
      * !! see above as setup done earlier to help with workflow structure !!
      * Depends on:
-     *  - tumour/control BAMs (but depend on BAS for better workflow)
+     *  - tumour/control BAMs
      *  - ASCAT from outset
      *  - pindel at flag step
      */
     
-    // should really line count the fai file
-    Job cavemanSplitJobs[] = new Job[86];
-    for(int i=0; i<86; i++) {
-      Job cavemanSplitJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "split", i+1);
+    // contigs are packed into jobs of similar size, see planContigShards
+    for(int i=0; i<cavemanSplitShards.size(); i++) {
+      GraphJob cavemanSplitJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "split", i+1, cavemanSplitShards.get(i));
       cavemanSplitJob.setMaxMemory(memCavemanSplit);
-      cavemanSplitJob.addParent(cavemanSetupJob);
-      cavemanSplitJobs[i] = cavemanSplitJob;
     }
     
-    Job cavemanSplitConcatJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "split_concat", 1);
+    GraphJob cavemanSplitConcatJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "split_concat", 1);
     cavemanSplitConcatJob.setMaxMemory(memCavemanSplitConcat);
-    for (Job cavemanSplitJob : cavemanSplitJobs) {
-      cavemanSplitConcatJob.addParent(cavemanSplitJob);
-    }
     
-    int mstepNormalisedThreads = getMemNormalisedThread(memCavemanMstepPerThread, coresAddressable);
-    int totalMstepMem = Integer.valueOf(memCavemanMstepPerThread) + (Integer.valueOf(memWorkflowOverhead) / mstepNormalisedThreads);
+    GraphJob cavemanMstepJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "mstep", 1);
+    cavemanMstepJob.getCommand().addArgument("-l " + GraphJob.THREADS);
+    cavemanMstepJob.getCommand().addArgument("-t " + GraphJob.THREADS);
+    cavemanMstepJob.setElastic(Integer.valueOf(memCavemanMstepPerThread));
     
-    Job cavemanMstepJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "mstep", 1);
-    cavemanMstepJob.getCommand().addArgument("-l " + mstepNormalisedThreads);
-    cavemanMstepJob.getCommand().addArgument("-t " + mstepNormalisedThreads);
-    cavemanMstepJob.setMaxMemory(Integer.toString(totalMstepMem));
-    cavemanMstepJob.setThreads(mstepNormalisedThreads);
-    cavemanMstepJob.addParent(cavemanSplitConcatJob);
-    
-    Job cavemanMergeJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "merge", 1);
+    GraphJob cavemanMergeJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "merge", 1);
     cavemanMergeJob.setMaxMemory(memCavemanMerge);
-    cavemanMergeJob.addParent(cavemanMstepJob);
-    
-    int estepNormalisedThreads = getMemNormalisedThread(memCavemanEstepPerThread, coresAddressable);
-    int totalEstepMem = Integer.valueOf(memCavemanEstepPerThread) + (Integer.valueOf(memWorkflowOverhead) / estepNormalisedThreads);
     
-    Job cavemanEstepJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "estep", 1);
-    cavemanEstepJob.getCommand().addArgument("-l " + estepNormalisedThreads);
-    cavemanEstepJob.getCommand().addArgument("-t " + estepNormalisedThreads);
-    cavemanEstepJob.setMaxMemory(Integer.toString(totalEstepMem));
-    cavemanEstepJob.setThreads(estepNormalisedThreads);
-    cavemanEstepJob.addParent(cavemanMergeJob);
+    GraphJob cavemanEstepJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "estep", 1);
+    cavemanEstepJob.getCommand().addArgument("-l " + GraphJob.THREADS);
+    cavemanEstepJob.getCommand().addArgument("-t " + GraphJob.THREADS);
+    cavemanEstepJob.setElastic(Integer.valueOf(memCavemanEstepPerThread));
     
-    Job cavemanMergeResultsJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "merge_results", 1);
+    GraphJob cavemanMergeResultsJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "merge_results", 1);
     cavemanMergeResultsJob.setMaxMemory(memCavemanMergeResults);
-    cavemanMergeResultsJob.addParent(cavemanEstepJob);
     
-    Job cavemanAddIdsJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "add_ids", 1);
+    GraphJob cavemanAddIdsJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "add_ids", 1);
     cavemanAddIdsJob.setMaxMemory(memCavemanAddIds);
-    cavemanAddIdsJob.addParent(cavemanMergeResultsJob);
     
-    Job cavemanFlagJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "flag", 1);
+    GraphJob cavemanFlagJob = cavemanBaseJob(tumourCount, tumourBam, controlBam, "CaVEMan", "flag", 1);
     cavemanFlagJob.setMaxMemory(memCavemanFlag);
-    cavemanFlagJob.addParent(pindelFlagJob); // PINDEL dependency
-    cavemanFlagJob.addParent(cavemanAddIdsJob);
-    cavemanFlagJob.addParent(contaminationJob);
     
-    Job cavemanPackage = packageResults(tumourCount, "caveman", "snv_mnv", tumourBam, "flagged.muts.vcf.gz", workflowName, "somatic", dateString);
-    cavemanPackage.setMaxMemory(memPackageResults);
+    GraphJob cavemanPackage = packageResults(tumourCount, "caveman", "snv_mnv", tumourBam, "flagged.muts.vcf.gz", workflowName, "somatic", dateString);
+    setPackageResources(cavemanPackage, memPackageResults);
     cavemanPackage.addParent(cavemanFlagJob);
+    qcStats(tumourCount, "caveman");
     
     return cavemanFlagJob;
   }
   
-  private void addJobParents(Job child, List<Job> parents) {
-    for(int i=0; i<parents.size(); i++) {
-      child.addParent(parents.get(i));
+  /**
+   * Groups the contigs of the reference into jobs for a per-contig step, balanced
+   * by the bases left after removing the regions the step ignores.  No more jobs
+   * than coresAddressable are created so that small contigs share a job while the
+   * largest contigs get one each.
+   * 
+   * Requires the reference to be readable at build time (see planRefDir),
+   * otherwise falls back to one job per contig of the GRCh37d5 reference.
+   * 
+   * @param step Name of the step for reporting
+   * @param exclude refExclude style list of contigs the step skips, null for none
+   * @param maskFile Regions ignored by the step, relative to the reference root
+   * @param fallbackJobs Contigs processed by the step for GRCh37d5
+   * @return Comma separated contig indexes (as given to '-i') for each job
+   */
+  private List<String> planContigShards(String step, String exclude, String maskFile, int fallbackJobs) {
+    List<String> shards = new ArrayList<String>();
+    File fai = new File(planRefBase + "/genome.fa.fai");
+    File mask = new File(planRefBase + maskFile);
+    if(fai.canRead()) {
+      try {
+        ReferenceIndex ref = ReferenceIndex.load(fai);
+        if(mask.canRead()) {
+          ref.maskRegions(mask);
+        }
+        if(exclude != null) {
+          ref = ref.exclude(exclude);
+        }
+        for(List<Contig> shard : ShardPlanner.balance(ref.getContigs(), coresAddressable)) {
+          shards.add(ShardPlanner.indexList(shard));
+        }
+        System.out.println(step + ": " + ref.size() + " contigs packed into " + shards.size() + " jobs");
+      } catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    else {
+      System.out.println(step + ": " + fai.getPath() + " not available at build time, using one job per contig");
+      for(int i=0; i<fallbackJobs; i++) {
+        shards.add(Integer.toString(i+1));
+      }
+    }
+    return shards;
+  }
+  
+  /**
+   * @param defs 'process=earlier,steps' for each step of a caller, the steps whose output it reads
+   */
+  private static Map<String, String[]> steps(String... defs) {
+    Map<String, String[]> steps = new HashMap<String, String[]>();
+    for(String def : defs) {
+      String[] parts = def.split("=");
+      steps.put(parts[0], parts.length == 1 ? new String[0] : parts[1].split(","));
     }
+    return steps;
   }
   
   /**
-   * This allows for other processes to run along side if the number of cores
-   * will allow.  Added in an attempt to prevent increased wall time for the
-   * whole workflow.
-   * 
-   * @param memPerThread Memory in MB consumed by each thread
-   * @param totalCores Total number of cores available to the workflow
-   * @return Number of threads usable based on per-thread and system overhead.
+   * Declares the files of a caller step: the BAMs of the pair, the output of the
+   * earlier steps it reads and its own output, the output of a step being
+   * algDir/process as the callers keep it in their own tmp directories.
    */
-  private int pindelNormalisedThreads(String memPerThread, int totalCores) {
-    int sensibleCores = totalCores;
-    if(sensibleCores > 12) {
-      sensibleCores = totalCores - 2;
+  private void declareStep(GraphJob job, Map<String, String[]> steps, String algDir, String process,
+                           String tumourBam, String controlBam) {
+    job.reads(tumourBam, controlBam);
+    for(String step : steps.get(process)) {
+      job.reads(algDir + "/" + step);
     }
-    int pindelNormalisedThreads = getMemNormalisedThread(memPerThread, sensibleCores);
-    return pindelNormalisedThreads;
+    job.writes(algDir + "/" + process);
   }
   
-  private Job bbAlleleCount(int sampleIndex, String bam, String process, int index) {
-    Job thisJob = prepTimedJob(sampleIndex, "bbAllele", process, index);
+  /**
+   * Counts alleles at the Battenberg loci of one chromosome for all BAMs of the donor,
+   * loci are loaded once and the sample name is taken from each BAM header.
+   * Output is BBDIR/%SM%.chr.tsv as expected by ImputePackager.
+   */
+  private GraphJob bbAlleleCount(List<String> bams, int index) {
+    GraphJob thisJob = prepTimedJob(0, "bbAllele", "count", index);
+    requireRef(thisJob, "battenberg");
     int chr = index+1;
+    thisJob.reads(bams.toArray(new String[bams.size()]));
+    thisJob.writes(BBDIR + "/*." + chr + ".tsv");
+    // leave headroom for the JVM itself within memAlleleCount
+    int heapMb = Integer.valueOf(memAlleleCount) * 3 / 4;
     thisJob.getCommand()
               .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
               .addArgument(installBase)
-              .addArgument(getWorkflowBaseDir()+ "/bin/execute_with_sample.pl " + bam)
-              .addArgument("alleleCounter")
+              .addArgument("java -Xmx" + heapMb + "m")
+              .addArgument("-cp " + getWorkflowBaseDir() + "/classes")
+              .addArgument("io.seqware.pancancer.AlleleCounter")
               .addArgument("-l " + refBase + "/battenberg/1000genomesloci/1000genomesloci2012_chr" + chr + ".txt")
-              .addArgument("-o " + BBDIR + "/%SM%." + chr + ".tsv")
-              .addArgument("-b " + bam)
+              .addArgument("-o " + BBDIR)
+              .addArgument("-c " + chr)
+              .addArgument("-t " + Math.min(coresAddressable, bams.size()))
               ;
+    for(String bam : bams) {
+      thisJob.getCommand().addArgument(bam);
+    }
     return thisJob;
   }
   
-  private Job bbAlleleMerge(String controlBam) {
-    Job thisJob = prepTimedJob(0, "bbAllele", "merge", 1);
+  /**
+   * Packages the allele counts of each tumour with those of the control, the
+   * files are compressed once on packageThreads, see ImputePackager.
+   */
+  private GraphJob bbAlleleMerge(String controlBam, int chrCount) {
+    GraphJob thisJob = prepTimedJob(0, "bbAllele", "merge", 1);
+    for(int chr=1; chr<=chrCount; chr++) {
+      thisJob.reads(BBDIR + "/*." + chr + ".tsv");
+    }
+    thisJob.writes(BBDIR + "/*.imputeCounts.tar.gz");
+    // only stream buffers, leave the rest of memBbMerge to the JVM itself
+    int heapMb = Integer.valueOf(memBbMerge) * 3 / 4;
     thisJob.getCommand()
               .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
               .addArgument(installBase)
-              .addArgument(getWorkflowBaseDir()+ "/bin/packageImpute.pl")
-              .addArgument(controlBam)
+              .addArgument("java -Xmx" + heapMb + "m")
+              .addArgument("-cp " + getWorkflowBaseDir() + "/classes")
+              .addArgument("io.seqware.pancancer.ImputePackager")
+              .addArgument("-t " + packageThreads)
+              .addArgument(sampleOrBam(thisJob, controlBam))
               .addArgument(BBDIR)
               ;
     return thisJob;
   }
   
-  private Job renameSampleFile(List<String> bams, String dir, String extension) {
-    Job thisJob = getWorkflow().createBashJob("renameSampleFile");
+  /**
+   * Packaging compresses on a fixed number of threads, kept out of the planner so
+   * it doesn't take cores from the callers running alongside it.  Memory doesn't
+   * grow with the threads so the request is split between them as the scheduler
+   * multiplies it back.
+   */
+  private void setPackageResources(GraphJob job, String memory) {
+    job.setThreads(packageThreads);
+    job.setMaxMemory(Integer.toString((Integer.valueOf(memory) + packageThreads - 1) / packageThreads));
+  }
+  
+  private GraphJob publishSampleFiles(List<String> bams, String dir, String extension) {
+    GraphJob thisJob = graph.createBashJob("publishSampleFiles");
+    thisJob.setLightweight(true);
     for(String bam : bams) {
-    thisJob.getCommand()
-      .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
-      .addArgument(installBase)
-      .addArgument(getWorkflowBaseDir()+ "/bin/execute_with_sample.pl " + bam)
-      .addArgument("cp " + dir + "/" + "%SM%." + extension)
-      .addArgument(OUTDIR + "/" + "%SM%." + workflowName + "." + dateString + ".somatic." + extension)
-      .addArgument(";");
-      ;
+      addPublish(thisJob, bam, dir, extension);
     }
     return thisJob;
   }
   
-  private Job packageResults(int tumourCount, String algName, String resultType, String tumourBam, String baseVcf, String workflowName, String somaticOrGermline, String date) {
+  /**
+   * Appends bin/publish.sh to the job, linking dir/SAMPLE.extension (and its .md5) to
+   * OUTDIR/SAMPLE.workflow.date.somatic.extension and listing it in MANIFEST.  A
+   * null dir lists files the job has already written under their final name.
+   */
+  private void addPublish(GraphJob job, String bam, String dir, String... extensions) {
+    if(!job.getCommand().getArguments().isEmpty()) {
+      job.getCommand().addArgument("&&");
+    }
+    String sample = sampleNames.get(bam);
+    if(sample == null) {
+      // resolved from the header when the job runs
+      sample = "%SM%";
+      job.reads(bam);
+      job.getCommand()
+        .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
+        .addArgument(installBase)
+        .addArgument(getWorkflowBaseDir()+ "/bin/execute_with_sample.pl " + bam);
+    }
+    job.getCommand().addArgument(getWorkflowBaseDir()+ "/bin/publish.sh " + MANIFEST);
+    for(String extension : extensions) {
+      String dest = OUTDIR + "/" + sample + "." + workflowName + "." + dateString + ".somatic." + extension;
+      // MANIFEST is left out, every publishing job adds to it
+      job.writes(samplePath(OUTDIR, bam, workflowName + "." + dateString + ".somatic." + extension));
+      if(dir == null) {
+        job.getCommand().addArgument(dest + " " + dest);
+      } else {
+        job.reads(samplePath(dir, bam, extension));
+        job.getCommand().addArgument(dir + "/" + sample + "." + extension + " " + dest);
+      }
+    }
+  }
+  
+  private GraphJob packageResults(int tumourCount, String algName, String resultType, String tumourBam, String baseVcf, String workflowName, String somaticOrGermline, String date) {
     //#packageResults.pl outdir 0772aed3-4df7-403f-802a-808df2935cd1/c007f362d965b32174ec030825262714.bam outdir/caveman snv_mnv flagged.muts.vcf.gz
-    Job thisJob = getWorkflow().createBashJob("packageResults");
+    GraphJob thisJob = graph.createBashJob("packageResults");
+    thisJob.reads(OUTDIR + "/" + tumourCount + "/" + algName);
     thisJob.getCommand()
               .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
               .addArgument(installBase)
               .addArgument(getWorkflowBaseDir() + "/bin/packageResults.pl")
+              .addArgument("-t " + packageThreads)
               .addArgument(OUTDIR)
-              .addArgument(tumourBam)
+              .addArgument(sampleOrBam(thisJob, tumourBam))
               .addArgument(OUTDIR + "/" + tumourCount + "/" + algName)
               .addArgument(resultType)
               .addArgument(baseVcf)
@@ -741,34 +1312,15 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
               .addArgument(somaticOrGermline)
               .addArgument(date)
       ;
+    addPublish(thisJob, tumourBam, null, resultType + ".tar.gz", resultType + ".vcf.gz", resultType + ".vcf.gz.tbi");
     return thisJob;
   }
   
-  private int getMemNormalisedThread(String perThreadMemory, int threads) {
-    int usableThreads = 0;
-    // memWorkflowOverhead, memHostMbAvailable
-    
-    int memoryAvail = memHostMbAvailable - memWorkflowOverhead;
-    
-    if((memoryAvail / threads) >= Integer.valueOf(perThreadMemory)) {
-      usableThreads = threads;
-    }
-    else {
-      usableThreads = memoryAvail / Integer.valueOf(perThreadMemory);
-    }
-    
-    if(usableThreads == 0) {
-      throw new RuntimeException("memHostMbAvailable - memWorkflowOverhead = memoryAvail (" +
-                                memHostMbAvailable + " - " + memWorkflowOverhead + " = " + memoryAvail +
-                                ") is less than one of the mem*PerThread parameters in provided ini file.");
-    }
-    
-    return usableThreads;
-  }
-  
-  private Job basFileBaseJob(int tumourCount, String sampleBam, String process, int index) {
-    Job thisJob = prepTimedJob(tumourCount, "basFileGenerate", process, index);
+  private GraphJob basFileBaseJob(int tumourCount, String sampleBam, String process, int index) {
+    GraphJob thisJob = prepTimedJob(tumourCount, "basFileGenerate", process, index);
     File f = new File(sampleBam);
+    thisJob.reads(sampleBam);
+    thisJob.writes(OUTDIR + "/" + f.getName() + ".bas");
     thisJob.getCommand()
             .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
             .addArgument(installBase)
@@ -779,25 +1331,56 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     return thisJob;
   }
   
-  private Job getMetricsJob(List<String> tumourBams, String controlBam) {
+  /**
+   * Counts records of the caller output for qc_metrics.json in one pass over each
+   * file, starting as soon as the caller is done.
+   */
+  private GraphJob qcStats(int tumourCount, String algName) {
+    GraphJob thisJob = graph.createBashJob("qcStats");
+    thisJob.reads(OUTDIR + "/" + tumourCount + "/" + algName);
+    thisJob.writes(OUTDIR + "/" + tumourCount + "/qc/" + algName + ".json");
+    thisJob.getCommand()
+      .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
+      .addArgument(installBase)
+      .addArgument(getWorkflowBaseDir()+ "/bin/qc_stats.pl")
+      .addArgument(algName)
+      .addArgument(OUTDIR + "/" + tumourCount + "/" + algName)
+      .addArgument(OUTDIR + "/" + tumourCount + "/qc/" + algName + ".json")
+      ;
+    thisJob.setMaxMemory(memQcMetrics);
+    return thisJob;
+  }
+  
+  private GraphJob getMetricsJob(List<String> tumourBams, String controlBam) {
     //die "USAGE: rootOfOutdir ordered.bam [ordered.bam2]";
-    Job thisJob = getWorkflow().createBashJob("metrics");
+    GraphJob thisJob = graph.createBashJob("metrics");
+    // the contamination and genotype summaries, the control is checked under the tumour count
+    for(int i=0; i<=tumourBams.size(); i++) {
+      thisJob.reads(OUTDIR + "/" + i + "/contamination");
+    }
+    thisJob.reads(OUTDIR + "/genotype");
+    // and the record counts of each caller, see qcStats
+    for(int i=0; i<tumourBams.size(); i++) {
+      thisJob.reads(OUTDIR + "/" + i + "/qc");
+    }
     thisJob.getCommand()
       .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
       .addArgument(installBase)
       .addArgument(getWorkflowBaseDir()+ "/bin/qc_and_metrics.pl")
       .addArgument(OUTDIR)
-      .addArgument(controlBam);
+      .addArgument(sampleOrBam(thisJob, controlBam));
     for(String bam : tumourBams) {
-      thisJob.getCommand().addArgument(bam);
+      thisJob.getCommand().addArgument(sampleOrBam(thisJob, bam));
     }
     return thisJob;
   }
   
-  private Job caveCnPrep(int tumourCount, String type) {
+  private GraphJob caveCnPrep(int tumourCount, String type) {
     String cnPath = OUTDIR + "/" + tumourCount + "/ascat/*.copynumber.caveman.csv";
     
-    Job thisJob = getWorkflow().createBashJob("CaveCnPrep" + type);
+    GraphJob thisJob = graph.createBashJob("CaveCnPrep" + type);
+    thisJob.reads(cnPath);
+    thisJob.writes(OUTDIR + "/" + tumourCount + "/" + type + ".cn.bed");
     int offset = 0;
     if(type.equals("tumour")) {
       offset = 6;
@@ -811,11 +1394,13 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
       .addArgument("> " + OUTDIR + "/" + tumourCount + "/" + type + ".cn.bed")
       ;
     thisJob.setMaxMemory(memCaveCnPrep);
+    thisJob.setLightweight(true);
     return thisJob;
   }
   
-  private Job cleanJob() {
-    Job thisJob = getWorkflow().createBashJob("GeneralCleanup");
+  private GraphJob cleanJob() {
+    GraphJob thisJob = graph.createBashJob("GeneralCleanup");
+    thisJob.setMemoise(false);
     // this just removes the contents of the working directory and not OUTDIR which may point to another filesystem for archival purposes
     if (cleanupBams) {
       thisJob.getCommand().addArgument("rm -f ./*/*.bam; ");
@@ -829,13 +1414,31 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     return thisJob;
   }
   
-  private Job cavemanBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
+  private GraphJob cavemanBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
+    return cavemanBaseJob(tumourCount, tumourBam, controlBam, alg, process, index, Integer.toString(index));
+  }
+  
+  /**
+   * @param shard Comma separated contig indexes to process, ignored for mstep/estep
+   */
+  private GraphJob cavemanBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index, String shard) {
     String ascatContamFile = OUTDIR + "/" + tumourCount + "/ascat/*.samplestatistics.csv";
+    boolean perIndex = !process.equals("mstep") && !process.equals("estep");
+    boolean multiIndex = perIndex && shard.contains(",");
     
-    Job thisJob = prepTimedJob(tumourCount, alg, process, index);
+    GraphJob thisJob = prepTimedJob(tumourCount, alg, process, index);
+    requireRef(thisJob, "genome", "caveman");
+    declareStep(thisJob, CAVEMAN_STEPS, OUTDIR + "/" + tumourCount + "/caveman", process, tumourBam, controlBam);
+    // passed to every step, not only setup
+    thisJob.reads(OUTDIR + "/" + tumourCount + "/tumour.cn.bed", OUTDIR + "/" + tumourCount + "/normal.cn.bed",
+                  ascatContamFile);
     thisJob.getCommand()
               .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
-              .addArgument(installBase)
+              .addArgument(installBase);
+    if(multiIndex) {
+      thisJob.getCommand().addArgument(getWorkflowBaseDir()+ "/bin/run_shard.sh " + shard);
+    }
+    thisJob.getCommand()
               .addArgument("caveman.pl")
               .addArgument("-p " + process)
               .addArgument("-ig " + refBase + "/caveman/ucscHiDepth_0.01_merge1000_no_exon.tsv")
@@ -854,19 +1457,23 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
               .addArgument("-r " + genomeFa + ".fai")
               .addArgument("-u " + refBase + "/caveman");
     
-    if(!process.equals("mstep") && !process.equals("estep")) {
-      thisJob.getCommand().addArgument("-i " + index);
+    if(perIndex && !multiIndex) {
+      thisJob.getCommand().addArgument("-i " + shard);
     }
     
     if(process.equals("flag")) {
       thisJob.getCommand().addArgument("-in " + OUTDIR + "/" + tumourCount + "/pindel/*.germline.bed");
+      thisJob.reads(OUTDIR + "/" + tumourCount + "/pindel/*.germline.bed");
     }
 
     return thisJob;
   }
   
-  private Job genoptypeBaseJob(List<String> tumourBams, String controlBam) {
-    Job thisJob = prepTimedJob(0, "compareBamGenotypes", "all", 0);
+  private GraphJob genoptypeBaseJob(List<String> tumourBams, String controlBam) {
+    GraphJob thisJob = prepTimedJob(0, "compareBamGenotypes", "all", 0);
+    thisJob.reads(tumourBams.toArray(new String[tumourBams.size()]));
+    thisJob.reads(controlBam);
+    thisJob.writes(OUTDIR + "/genotype");
     thisJob.getCommand()
       .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
       .addArgument(installBase)
@@ -881,23 +1488,28 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     return thisJob;
   }
   
-  private Job packageGenotype(List<String> tumourBams, String controlBam) {
-    Job thisJob = getWorkflow().createBashJob("packageGenotype");
+  private GraphJob packageGenotype(List<String> tumourBams, String controlBam) {
+    GraphJob thisJob = graph.createBashJob("packageGenotype");
+    thisJob.reads(OUTDIR + "/genotype");
     thisJob.getCommand()
       .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
       .addArgument(installBase)
       .addArgument(getWorkflowBaseDir() + "/bin/packageGenotype.pl")
+      .addArgument("-t " + packageThreads)
       .addArgument(OUTDIR)
-      .addArgument(controlBam)
+      .addArgument(sampleOrBam(thisJob, controlBam))
       ;
     for(String tumour : tumourBams) {
-      thisJob.getCommand().addArgument(tumour);
+      thisJob.getCommand().addArgument(sampleOrBam(thisJob, tumour));
+      thisJob.writes(samplePath(OUTDIR, tumour, "genotype.tar.gz"));
     }
     return thisJob;
   }
   
-  private Job contaminationBaseJob(int tumourCount, String inBam, String process) {
-    Job thisJob = prepTimedJob(tumourCount, "verifyBamHomChk", process, 0);
+  private GraphJob contaminationBaseJob(int tumourCount, String inBam, String process) {
+    GraphJob thisJob = prepTimedJob(tumourCount, "verifyBamHomChk", process, 0);
+    thisJob.reads(inBam);
+    thisJob.writes(OUTDIR + "/" + tumourCount + "/contamination");
     thisJob.getCommand()
       .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
       .addArgument(installBase)
@@ -909,28 +1521,41 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
       ;
     if(process.equals("tumour")) {
       thisJob.getCommand().addArgument("-a " + OUTDIR + "/" + tumourCount + "/ascat/*.copynumber.caveman.csv"); // not the best approach but works
+      thisJob.reads(OUTDIR + "/" + tumourCount + "/ascat/*.copynumber.caveman.csv");
     }
     
     return thisJob;
   }
   
-  private Job packageContam(List<String> tumourBams, String controlBam) {
-    Job thisJob = getWorkflow().createBashJob("packageContam");
+  private GraphJob packageContam(List<String> tumourBams, String controlBam) {
+    GraphJob thisJob = graph.createBashJob("packageContam");
+    // the control is checked under the tumour count
+    for(int i=0; i<=tumourBams.size(); i++) {
+      thisJob.reads(OUTDIR + "/" + i + "/contamination");
+    }
     thisJob.getCommand()
       .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
       .addArgument(installBase)
       .addArgument(getWorkflowBaseDir() + "/bin/packageContam.pl")
+      .addArgument("-t " + packageThreads)
       .addArgument(OUTDIR)
-      .addArgument(controlBam)
+      .addArgument(sampleOrBam(thisJob, controlBam))
       ;
     for(String tumour : tumourBams) {
-      thisJob.getCommand().addArgument(tumour);
+      thisJob.getCommand().addArgument(sampleOrBam(thisJob, tumour));
+      thisJob.writes(samplePath(OUTDIR, tumour, "verifyBamId.tar.gz"));
     }
     return thisJob;
   }
   
-  private Job cgpAscatBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
-    Job thisJob = prepTimedJob(tumourCount, alg, process, index);
+  private GraphJob cgpAscatBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
+    GraphJob thisJob = prepTimedJob(tumourCount, alg, process, index);
+    requireRef(thisJob, "genome", "ascat");
+    String algDir = OUTDIR + "/" + tumourCount + "/ascat";
+    declareStep(thisJob, ASCAT_STEPS, algDir, process, tumourBam, controlBam);
+    if(process.equals("finalise")) {
+      thisJob.writes(algDir + "/*.copynumber.caveman.csv", algDir + "/*.samplestatistics.csv");
+    }
     thisJob.getCommand()
               .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
               .addArgument(installBase)
@@ -945,7 +1570,7 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
               .addArgument("-ra " + assembly)
               .addArgument("-rs " + species)
               .addArgument("-pl " + "ILLUMINA") // should be in BAM header
-              .addArgument("-o " + OUTDIR + "/" + tumourCount + "/ascat")
+              .addArgument("-o " + algDir)
               .addArgument("-t " + tumourBam)
               .addArgument("-n " + controlBam)
               .addArgument("-f") // force completion, even when ascat fails
@@ -955,11 +1580,36 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     return thisJob;
   }
 
-  private Job pindelBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
-    Job thisJob = prepTimedJob(tumourCount, alg, process, index);
+  private GraphJob pindelBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
+    return pindelBaseJob(tumourCount, tumourBam, controlBam, alg, process, index, Integer.toString(index));
+  }
+  
+  /**
+   * @param shard Comma separated contig indexes to process, ignored for the pindel process
+   */
+  private GraphJob pindelBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index, String shard) {
+    boolean perIndex = !process.equals("pindel");
+    boolean multiIndex = perIndex && shard.contains(",");
+    
+    GraphJob thisJob = prepTimedJob(tumourCount, alg, process, index);
+    // the high depth regions are shipped with BRASS
+    requireRef(thisJob, "genome", "pindel", "brass");
+    String algDir = OUTDIR + "/" + tumourCount + "/pindel";
+    declareStep(thisJob, PINDEL_STEPS, algDir, process, tumourBam, controlBam);
+    if(process.equals("input")) {
+      // insert sizes are taken from the BAS files
+      thisJob.reads(tumourBam + ".bas", controlBam + ".bas");
+    }
+    if(process.equals("flag")) {
+      thisJob.writes(algDir + "/*.germline.bed");
+    }
     thisJob.getCommand()
               .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
-              .addArgument(installBase)
+              .addArgument(installBase);
+    if(multiIndex) {
+      thisJob.getCommand().addArgument(getWorkflowBaseDir()+ "/bin/run_shard.sh " + shard);
+    }
+    thisJob.getCommand()
               .addArgument("pindel.pl")
               .addArgument("-p " + process)
               .addArgument("-r " + genomeFa)
@@ -973,12 +1623,12 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
               .addArgument("-u " + refBase + "/pindel/pindel_np.gff3.gz")
               .addArgument("-sf " + refBase + "/pindel/softRules.lst")
               .addArgument("-b " + refBase + "/brass/ucscHiDepth_0.01_mrg1000_no_exon_coreChrs.bed.gz")
-              .addArgument("-o " + OUTDIR + "/" + tumourCount + "/pindel")
+              .addArgument("-o " + algDir)
               .addArgument("-t " + tumourBam)
               .addArgument("-n " + controlBam)
               ;
-    if(!process.equals("pindel")) {
-      thisJob.getCommand().addArgument("-i " + index);
+    if(perIndex && !multiIndex) {
+      thisJob.getCommand().addArgument("-i " + shard);
     }
     
     if(process.equals("input")) {
@@ -995,55 +1645,242 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     return thisJob;
   }
   
-  private Job markTime(String name, String item) {
+  /**
+   * @return Total size of the BAMs, 0 when any can't be read at build time
+   */
+  private static long inputBytes(List<String> tumourBams, String controlBam) {
+    List<String> bams = new ArrayList<String>(tumourBams);
+    bams.add(controlBam);
+    long bytes = 0;
+    for(String bam : bams) {
+      File file = new File(bam);
+      if(!file.isFile()) {
+        return 0;
+      }
+      bytes += file.length();
+    }
+    return bytes;
+  }
+  
+  /**
+   * Sets the memory of timed jobs from memOverride.<alg>_<process> when given,
+   * otherwise from the memory profile when it has records for the step.  Other
+   * jobs keep their mem* property, elastic jobs are left to {@link ResourcePlanner}.
+   * 
+   * @param inputBytes Size of the input BAMs of the jobs, 0 to not scale
+   */
+  private void applyMemoryProfile(List<GraphJob> jobs, long inputBytes) throws Exception {
+    for(GraphJob job : jobs) {
+      if(job.getTimingId() == null || job.isElastic()) {
+        continue;
+      }
+      String step = job.getAlg() + "_" + job.getProcess();
+      Integer memoryMb = null;
+      if(hasPropertyAndNotNull("memOverride." + step)) {
+        memoryMb = Integer.valueOf(getProperty("memOverride." + step));
+      }
+      else if(memoryProfile != null) {
+        memoryMb = memoryProfile.requestMb(job.getAlg(), job.getProcess(), inputBytes);
+      }
+      if(memoryMb == null) {
+        continue;
+      }
+      // SGE multiplies maxMemory by the threads
+      int threads = job.getThreads() == null ? 1 : job.getThreads();
+      job.setMaxMemory(Integer.toString((memoryMb + threads - 1) / threads));
+    }
+  }
+  
+  private GraphJob markTime(String name, String item) {
     String timeFile = TIMEDIR + "/" + name + "_" + item;
-    Job thisJob = getWorkflow().createBashJob("mark_" + item);
+    GraphJob thisJob = graph.createBashJob("mark_" + item);
+    thisJob.setMemoise(false);
+    thisJob.setLightweight(true);
     thisJob.getCommand().addArgument("date +%s > " + timeFile);
     return thisJob;
   }
   
-  private Job prepTimedJob(int tumourCount, String alg, String process, int index) {
+  private GraphJob prepTimedJob(int tumourCount, String alg, String process, int index) {
     String timeFile = TIMEDIR + "/" + tumourCount + "_" + alg + "_" + process + "_" + index;
-    Job thisJob = getWorkflow().createBashJob(alg + "_" + process);
-    thisJob.getCommand().addArgument("/usr/bin/time /usr/bin/time --format=\"Wall_s %e\\nUser_s %U\\nSystem_s %S\\nMax_kb %M\" --output=" + timeFile);
+    GraphJob thisJob = graph.createBashJob(alg + "_" + process);
+    thisJob.setTiming(tumourCount, alg, process, index);
+    thisJob.setTimingFile(timeFile);
+    // also writes a structured record to TIMEDIR/telemetry, see TraceExport
+    thisJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/timed.sh " + timeFile
+                                    + " " + tumourCount + " " + alg + " " + process + " " + index);
     return thisJob;
   }
   
-  private Job pullRef(String refFrom, String localTarGzFile) {
-    Job thisJob = prepTimedJob(0, "pullRef", "NA", 0);
+  /**
+   * Streams a reference archive into tar, marking each top level entry below
+   * prefix as ready in reference_files/.ready once unpacked, see refPartReady.
+   */
+  private GraphJob fetchRef(String refFrom, String targetDir, String tag, String prefix) {
+    GraphJob thisJob = prepTimedJob(0, "fetchRef", tag, 0);
+    thisJob.reads(refFrom);
     if (refFrom.startsWith("/")) {
       System.out.print("Found local reference archive: ");
       System.out.println(refFrom);
-      thisJob.getCommand().addArgument("ln -s " + refFrom + " " + localTarGzFile);
-    } else {
-      thisJob.getCommand().addArgument("curl -sSL -o " + localTarGzFile + " " + refFrom);
     }
+    thisJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/ref_stream.sh extract " + refFrom + " " + targetDir
+                                    + " " + refBase + "/.ready " + tag + " " + prefix);
+    return thisJob;
+  }
+  
+  /**
+   * Waits for entries of reference_files to be unpacked by fetchRef, so jobs using
+   * one part of the reference don't wait on the whole archive.
+   */
+  private GraphJob refPartReady(String tag, String part, String... entries) {
+    GraphJob thisJob = graph.createBashJob("refReady_" + part);
+    thisJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/ref_stream.sh wait " + refBase + "/.ready " + tag
+                                    + " " + TIMEDIR + "/workflow_start " + StringUtils.join(entries, " "));
+    return thisJob;
+  }
+  
+  /**
+   * Makes the job wait for the parts of reference_files it reads and declares
+   * reading them, the extraction is not a parent as the job polling for the part
+   * waits for it, see {@link JobGraph#deriveDependencies()}.
+   */
+  private void requireRef(GraphJob job, String... parts) {
+    for(String part : parts) {
+      job.addParent(refReady.get(part));
+      if(part.equals("genome")) {
+        job.reads(refBase + "/genome.fa", refBase + "/genome.fa.fai");
+      }
+      else {
+        job.reads(refBase + "/" + part);
+      }
+    }
+  }
+  
+  /**
+   * Links a reference bundle from refCacheDir into the run, unpacking it into the
+   * cache first when no earlier run has.  Not memoised as the cache may have
+   * evicted the bundle since.
+   */
+  private GraphJob cacheRef(String refFrom, String targetDir) {
+    GraphJob thisJob = prepTimedJob(0, "cacheRef", "NA", 0);
+    thisJob.reads(refFrom);
+    thisJob.setMemoise(false);
+    thisJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/ref_cache.sh link " + refCacheDir + " " + refCacheKeep
+                                    + " " + OUTDIR + " " + refFrom + " " + targetDir);
     return thisJob;
   }
   
-  private Job unpackRef(String localTarGzFile, String suffixPath) {
-    String changeTo = OUTDIR;
-    if(suffixPath != null) {
-      changeTo = OUTDIR + "/" + suffixPath;
+  /**
+   * @return Directory of the bundle unpacked in refCacheDir for the source, null if not cached
+   */
+  private String cachedBundle(String refFrom) throws IOException {
+    // same identity as bin/ref_cache.sh
+    String identity = refFrom;
+    if(refFrom.startsWith("/")) {
+      File archive = new File(refFrom);
+      if(!archive.isFile()) {
+        return null;
+      }
+      identity = archive.getCanonicalPath() + ":" + archive.length() + ":" + (archive.lastModified() / 1000);
+    }
+    File index = new File(refCacheDir + "/index/" + Memoiser.sha1(identity));
+    if(!index.isFile()) {
+      return null;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+    try {
+      File bundle = new File(refCacheDir + "/bundles/" + reader.readLine());
+      return bundle.isDirectory() ? bundle.getPath() : null;
+    } finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * Reads the SM of an input BAM once while the workflow is built so that jobs get
+   * the name on their command line instead of each opening the BAM to find it.
+   * BAMs not readable yet are left for the jobs to resolve when they run.
+   */
+  private void resolveSample(String bam, String rawBam) throws IOException {
+    File file = new File(rawBam);
+    if(!file.canRead()) {
+      System.out.println("Sample name: " + rawBam + " not available at build time, read by each job");
+      return;
+    }
+    BamReader reader = new BamReader(file);
+    try {
+      sampleNames.put(bam, reader.getSampleName());
+    } finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * @return The sample name of the BAM when known, otherwise the BAM for the script to
+   * read, declared as read by the job
+   */
+  private String sampleOrBam(GraphJob job, String bam) {
+    String sample = sampleNames.get(bam);
+    if(sample == null) {
+      job.reads(bam);
+      return bam;
+    }
+    return sample;
+  }
+  
+  /**
+   * @return dir/SAMPLE.extension as declared to the graph, the sample is a glob when
+   * only read from the BAM header as the job runs
+   */
+  private String samplePath(String dir, String bam, String extension) {
+    String sample = sampleNames.get(bam);
+    return dir + "/" + (sample == null ? "*" : sample) + "." + extension;
+  }
+  
+  private GraphJob prepBam(String inBam, String process, int index) {
+    GraphJob thisJob = prepTimedJob(0, "prepBam", process, index);
+    if(stageDir == null) {
+      thisJob.getCommand().addArgument("ln -s " + inBam + "* " + OUTDIR + "/");
     }
-    Job thisJob = prepTimedJob(0, "unpackRef", "NA", 0);
-    thisJob.getCommand().addArgument("tar -C " + changeTo + " -zxf " + localTarGzFile)
-                        .addArgument("; rm -rf " + localTarGzFile);
+    else {
+      // through OUTDIR/staging so stageBam can move readers to the scratch copy
+      thisJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/stage_bam.sh link " + inBam + " " + OUTDIR);
+    }
+    thisJob.reads(inBam);
+    thisJob.writes(OUTDIR + "/" + new File(inBam).getName());
+    thisJob.setLightweight(true);
     return thisJob;
   }
   
-  private Job prepBam(String inBam, String process, int index) {
-    Job thisJob = prepTimedJob(0, "prepBam", process, index);
-    thisJob.getCommand().addArgument("ln -s " + inBam + "* " + OUTDIR + "/");
+  /**
+   * Copies an input BAM and its indexes to stageDir alongside the reference
+   * download.  Nothing waits for it, readers starting after the copy is verified
+   * read the scratch copy, those started before keep reading the source.  Not
+   * memoised as scratch doesn't outlive the host, a failed copy leaves the
+   * source in use, see bin/stage_bam.sh.
+   */
+  private GraphJob stageBam(String inBam, String process, int index) {
+    GraphJob thisJob = prepTimedJob(0, "stageBam", process, index);
+    // and swaps the links prepBam writes
+    thisJob.reads(inBam, OUTDIR + "/" + new File(inBam).getName());
+    thisJob.getCommand().addArgument(getWorkflowBaseDir() + "/bin/stage_bam.sh copy " + inBam + " " + OUTDIR
+                                    + " " + stageDir + " " + stageStreams);
+    thisJob.setMaxMemory(memMarkTime);
+    thisJob.setMemoise(false);
     return thisJob;
   }
 
-  private Job brassBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
+  private GraphJob brassBaseJob(int tumourCount, String tumourBam, String controlBam, String alg, String process, int index) {
     
     String cnPath = OUTDIR + "/" + tumourCount + "/ascat/*.copynumber.caveman.csv";
     String cnStats = OUTDIR + "/" + tumourCount + "/ascat/*.samplestatistics.csv";
     
-    Job thisJob = prepTimedJob(tumourCount, alg, process, index);
+    GraphJob thisJob = prepTimedJob(tumourCount, alg, process, index);
+    requireRef(thisJob, "genome", "brass", "vagrent");
+    String algDir = OUTDIR + "/" + tumourCount + "/brass";
+    declareStep(thisJob, BRASS_STEPS, algDir, process, tumourBam, controlBam);
+    if(process.equals("input")) {
+      thisJob.reads(tumourBam + ".bas", controlBam + ".bas");
+    }
     thisJob.getCommand()
               .addArgument(getWorkflowBaseDir()+ "/bin/wrapper.sh")
               .addArgument(installBase)
@@ -1059,7 +1896,7 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
               .addArgument("-d "  + refBase + "/brass/ucscHiDepth_0.01_mrg1000_no_exon_coreChrs.bed.gz")
               .addArgument("-f "  + refBase + "/brass/brass_np.groups.gz")
               .addArgument("-g_cache "  + refBase + "/vagrent/e75/Homo_sapiens.GRCh37.75.vagrent.cache.gz")
-              .addArgument("-o " + OUTDIR + "/" + tumourCount + "/brass")
+              .addArgument("-o " + algDir)
               .addArgument("-t " + tumourBam)
               .addArgument("-n " + controlBam)
               .addArgument("-vi " + refBase + "/brass/viral.1.1.genomic.fa")
@@ -1069,6 +1906,7 @@ public class CgpSomaticCore extends AbstractWorkflowDataModel {
     if(process.equals("normcn") || process.equals("filter") || process.equals("grass") || process.equals("tabix")) {
       thisJob.getCommand().addArgument("-a " + cnPath)
                           .addArgument("-ss " + cnStats);
+      thisJob.reads(cnPath, cnStats);
     }
     return thisJob;
   }
@@ -0,0 +1,129 @@
+package io.seqware.pancancer;
+
+import io.seqware.pancancer.TimingLibrary.Timing;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives each job of a {@link JobGraph} a priority from the longest chain of work
+ * from its start to the end of the workflow, so a scheduler short on cores starts
+ * the jobs the wall time depends on (e.g. the CaVEMan chain) before those that can
+ * wait (e.g. Battenberg allele counts or BRASS isize).
+ *
+ * Each job weighs the wall time recorded for it by earlier runs (CPU time spread
+ * over its planned threads for elastic jobs).  Timed jobs without a record weigh
+ * one second so without any history the longest chain of timed jobs wins, untimed
+ * bookkeeping jobs weigh nothing.
+ *
+ * A job polling for another one started alongside it ({@link GraphJob#waitsFor})
+ * counts as a child of that job, so the job it waits for always ranks above it and
+ * a scheduler short on slots never fills them with jobs waiting for one that can't
+ * start.
+ */
+public class CriticalPath {
+
+  /**
+   * Lowest SGE priority, users may only lower the priority of their jobs so the
+   * critical path gets 0.
+   */
+  public static final int MIN_PRIORITY = -1023;
+
+  private final TimingLibrary timings;
+
+  /**
+   * @param timings Timings of earlier runs, may be empty
+   */
+  public CriticalPath(TimingLibrary timings) {
+    this.timings = timings;
+  }
+
+  /**
+   * @return Seconds from the start of each job to the end of the workflow along its longest path
+   */
+  public Map<GraphJob, Double> remaining(JobGraph graph) {
+    List<GraphJob> jobs = graph.getJobs();
+    Map<GraphJob, List<GraphJob>> children = new HashMap<GraphJob, List<GraphJob>>();
+    for(GraphJob job : jobs) {
+      children.put(job, new ArrayList<GraphJob>());
+      for(GraphJob parent : job.getParents()) {
+        children.get(parent).add(job);
+      }
+    }
+    for(GraphJob job : jobs) {
+      for(GraphJob waited : job.getWaitsFor()) {
+        if(children.containsKey(waited)) {
+          children.get(waited).add(job);
+        }
+      }
+    }
+    // children and jobs waiting for a job are always created after it
+    Map<GraphJob, Double> remaining = new HashMap<GraphJob, Double>();
+    for(int i=jobs.size()-1; i>=0; i--) {
+      GraphJob job = jobs.get(i);
+      double after = 0;
+      for(GraphJob child : children.get(job)) {
+        after = Math.max(after, remaining.get(child));
+      }
+      remaining.put(job, weight(job) + after);
+    }
+    return remaining;
+  }
+
+  /**
+   * Sets the priority of every job, 0 for the jobs on the critical path down to
+   * {@link #MIN_PRIORITY} for those with nothing after them.
+   *
+   * @return Length of the critical path in seconds
+   */
+  public double assign(JobGraph graph) {
+    Map<GraphJob, Double> remaining = remaining(graph);
+    double longest = 0;
+    for(double seconds : remaining.values()) {
+      longest = Math.max(longest, seconds);
+    }
+    for(GraphJob job : graph.getJobs()) {
+      int priority = 0;
+      if(longest > 0) {
+        priority = (int) Math.round(MIN_PRIORITY * (1 - remaining.get(job) / longest));
+      }
+      job.setPriority(priority);
+    }
+    // rounding may give both the same priority
+    for(GraphJob job : graph.getJobs()) {
+      for(GraphJob waited : job.getWaitsFor()) {
+        if(waited.getPriority() <= job.getPriority()) {
+          waited.setPriority(Math.min(0, job.getPriority() + 1));
+        }
+      }
+    }
+    return longest;
+  }
+
+  /**
+   * @return Seconds the job is expected to take from the timings of earlier runs,
+   * null when it is not timed or was never recorded
+   */
+  Double recorded(GraphJob job) {
+    if(job.getTimingId() == null) {
+      return null;
+    }
+    Timing timing = timings.lookup(job.getAlg(), job.getProcess(), job.getIndex());
+    if(timing == null) {
+      return null;
+    }
+    if(job.isElastic() && job.getThreads() != null && timing.getCpuSeconds() > 0) {
+      return timing.getCpuSeconds() / job.getThreads();
+    }
+    return timing.getWallSeconds();
+  }
+
+  private double weight(GraphJob job) {
+    if(job.getTimingId() == null) {
+      return 0;
+    }
+    Double seconds = recorded(job);
+    return seconds == null ? 1 : seconds;
+  }
+}
@@ -0,0 +1,145 @@
+package io.seqware.pancancer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the DAG of an ini file for a growing number of tumours to show how the
+ * graph and the work of the engine grow with them, e.g.
+ *
+ *   java -cp classes:lib/seqware-distribution-1.1.1-full.jar io.seqware.pancancer.GraphBenchmark \
+ *     -n 1,2,5,10,20,50 config/CgpSomaticCore.ini
+ *
+ * The tumours are paths below bench/ that don't exist, so no BAM is read and
+ * sample names are left for the jobs to resolve.  For each count it reports:
+ *
+ *  - jobs, edges and the largest number of parents of a job
+ *  - json_kb, size of the task graph (see {@link TaskGraph}), as the workflow XML
+ *    handed to the engine it grows with jobs and edges
+ *  - build_ms, fastest of -r builds
+ *  - checks, parent states read by an engine that on every poll re-checks the
+ *    parents of each waiting job, with every ready job finishing between polls
+ *  - schedule_ms, time taken to run those polls here
+ */
+public class GraphBenchmark {
+
+  /**
+   * @return Parent states read while polling the graph to completion
+   */
+  public static long pollChecks(JobGraph graph) {
+    Map<GraphJob, Boolean> done = new HashMap<GraphJob, Boolean>();
+    List<GraphJob> waiting = new ArrayList<GraphJob>(graph.getJobs());
+    long checks = 0;
+    while(!waiting.isEmpty()) {
+      List<GraphJob> ready = new ArrayList<GraphJob>();
+      List<GraphJob> still = new ArrayList<GraphJob>();
+      for(GraphJob job : waiting) {
+        boolean parentsDone = true;
+        for(GraphJob parent : job.getParents()) {
+          checks++;
+          if(!done.containsKey(parent)) {
+            parentsDone = false;
+            break;
+          }
+        }
+        if(parentsDone) {
+          ready.add(job);
+        } else {
+          still.add(job);
+        }
+      }
+      if(ready.isEmpty()) {
+        throw new IllegalStateException(still.size() + " jobs never became ready, the graph has a cycle");
+      }
+      for(GraphJob job : ready) {
+        done.put(job, Boolean.TRUE);
+      }
+      waiting = still;
+    }
+    return checks;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File ini = null;
+    String baseDir = "workflow";
+    String counts = "1,2,5,10,20,50";
+    int repeats = 3;
+    Map<String, String> overrides = new LinkedHashMap<String, String>();
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-s")) {
+        String kv = args[++i];
+        int eq = kv.indexOf('=');
+        if(eq < 1) {
+          throw new IllegalArgumentException("Expected key=value for -s: " + kv);
+        }
+        overrides.put(kv.substring(0, eq), kv.substring(eq + 1));
+      }
+      else if(args[i].equals("-n")) {
+        counts = args[++i];
+      }
+      else if(args[i].equals("-r")) {
+        repeats = Integer.valueOf(args[++i]);
+      }
+      else if(args[i].equals("-w")) {
+        baseDir = args[++i];
+      }
+      else {
+        ini = new File(args[i]);
+      }
+    }
+    if(ini == null) {
+      System.err.println("USAGE: GraphBenchmark [-n 1,2,5...] [-r repeats] [-s key=value...] [-w workflowBaseDir] workflow.ini");
+      System.exit(1);
+    }
+
+    PrintStream out = System.out;
+    // the build reports its plans on stdout, once per repeat
+    PrintStream quiet = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8");
+    out.println("tumours\tjobs\tedges\tmax_parents\tjson_kb\tbuild_ms\tchecks\tschedule_ms");
+    for(String count : counts.split(",")) {
+      int tumours = Integer.valueOf(count.trim());
+      Map<String, String> config = WorkflowSimulator.loadIni(ini);
+      config.putAll(overrides);
+      StringBuilder bams = new StringBuilder();
+      for(int i=1; i<=tumours; i++) {
+        if(i > 1) {
+          bams.append(':');
+        }
+        bams.append("bench/tumour_").append(i).append(".bam");
+      }
+      config.put("tumourBams", bams.toString());
+
+      JobGraph graph = null;
+      long buildMs = Long.MAX_VALUE;
+      for(int r=0; r<repeats; r++) {
+        System.setOut(quiet);
+        long start = System.nanoTime();
+        try {
+          graph = CgpSomaticCore.buildOffline(config, baseDir);
+        } finally {
+          System.setOut(out);
+        }
+        buildMs = Math.min(buildMs, (System.nanoTime() - start) / 1000000);
+      }
+
+      int edges = 0;
+      int maxParents = 0;
+      for(GraphJob job : graph.getJobs()) {
+        edges += job.getParents().size();
+        maxParents = Math.max(maxParents, job.getParents().size());
+      }
+      int jsonKb = TaskGraph.toJson(graph, Version.WORKFLOW_SHORT_NAME_VERSION, "outdir").length() / 1024;
+      long start = System.nanoTime();
+      long checks = pollChecks(graph);
+      long scheduleMs = (System.nanoTime() - start) / 1000000;
+      out.println(tumours + "\t" + graph.getJobs().size() + "\t" + edges + "\t" + maxParents + "\t" + jsonKb
+                  + "\t" + buildMs + "\t" + checks + "\t" + scheduleMs);
+    }
+  }
+}
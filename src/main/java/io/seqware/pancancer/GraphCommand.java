@@ -0,0 +1,22 @@
+package io.seqware.pancancer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line of a {@link GraphJob}, arguments are joined with spaces when the
+ * job is handed to SeqWare.
+ */
+public class GraphCommand {
+
+  private final List<String> arguments = new ArrayList<String>();
+
+  public GraphCommand addArgument(String argument) {
+    arguments.add(argument);
+    return this;
+  }
+
+  public List<String> getArguments() {
+    return arguments;
+  }
+}
@@ -0,0 +1,283 @@
+package io.seqware.pancancer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A job in a {@link JobGraph}, mirrors the parts of the SeqWare Job API used by the
+ * workflow so the DAG can be inspected and adjusted before SeqWare sees it.
+ */
+public class GraphJob {
+
+  /**
+   * Placeholder for the thread count of elastic jobs, replaced once the
+   * {@link ResourcePlanner} has decided how many threads the job gets.
+   */
+  public static final String THREADS = "%THREADS%";
+
+  private final String name;
+  private final GraphCommand command = new GraphCommand();
+  private final List<GraphJob> parents = new ArrayList<GraphJob>();
+  // jobs polled for while they run, not parents, see CriticalPath
+  private final List<GraphJob> waitsFor = new ArrayList<GraphJob>();
+  private Integer threads = null;
+  private String maxMemory = null;
+  private Integer memPerThread = null;
+  private boolean memoise = true;
+  private boolean lightweight = false;
+  private int priority = 0;
+  private String inputs = null;
+  // files (or caller steps as <caller dir>/<process>) read and written, see JobGraph#deriveDependencies
+  private final List<String> reads = new ArrayList<String>();
+  private final List<String> writes = new ArrayList<String>();
+  // identity used for the TIMEDIR record, null for untimed jobs
+  private String timingId = null;
+  private String timingFile = null;
+  private String alg = null;
+  private String process = null;
+  private int tumourCount = 0;
+  private int index = 0;
+
+  GraphJob(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public GraphCommand getCommand() {
+    return command;
+  }
+
+  public GraphJob addParent(GraphJob parent) {
+    if(!parents.contains(parent)) {
+      parents.add(parent);
+    }
+    return this;
+  }
+
+  public List<GraphJob> getParents() {
+    return parents;
+  }
+
+  /**
+   * Declares a job this one waits for while both run, e.g. polling for the files
+   * it writes, so the job is ranked after it.  The job has to be created first.
+   */
+  public GraphJob waitsFor(GraphJob job) {
+    if(!waitsFor.contains(job)) {
+      waitsFor.add(job);
+    }
+    return this;
+  }
+
+  public List<GraphJob> getWaitsFor() {
+    return waitsFor;
+  }
+
+  public GraphJob setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * @return Threads requested, null when not set
+   */
+  public Integer getThreads() {
+    return threads;
+  }
+
+  /**
+   * @param maxMemory Memory in MB, per thread when threads are set (SGE multiplies it)
+   */
+  public GraphJob setMaxMemory(String maxMemory) {
+    this.maxMemory = maxMemory;
+    return this;
+  }
+
+  public String getMaxMemory() {
+    return maxMemory;
+  }
+
+  /**
+   * Marks the job as able to use any number of threads, threads and memory are
+   * then assigned by the {@link ResourcePlanner}.  Use {@link #THREADS} in the
+   * command where the tool expects the thread count.
+   *
+   * @param memPerThread Memory in MB consumed by each thread
+   */
+  public GraphJob setElastic(int memPerThread) {
+    this.memPerThread = memPerThread;
+    return this;
+  }
+
+  /**
+   * @param priority SGE priority, 0 (highest a user may ask for) down to -1023, see {@link CriticalPath}
+   */
+  public GraphJob setPriority(int priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * @param memoise false for jobs that must run on every launch, see {@link Memoiser}
+   */
+  public GraphJob setMemoise(boolean memoise) {
+    this.memoise = memoise;
+    return this;
+  }
+
+  public boolean isMemoise() {
+    return memoise;
+  }
+
+  /**
+   * @param lightweight true for jobs taking next to no time or memory, see {@link JobFuser}
+   */
+  public GraphJob setLightweight(boolean lightweight) {
+    this.lightweight = lightweight;
+    return this;
+  }
+
+  public boolean isLightweight() {
+    return lightweight;
+  }
+
+  /**
+   * @param inputs Identity of the files read by the job and those below it, part
+   * of the fingerprint, see {@link Memoiser#fileIdentity(String)}
+   */
+  public GraphJob setInputs(String inputs) {
+    this.inputs = inputs;
+    return this;
+  }
+
+  /**
+   * @return Identity of the inputs, null when not set
+   */
+  public String getInputs() {
+    return inputs;
+  }
+
+  /**
+   * Declares paths the job reads, the jobs writing them become its parents once
+   * {@link JobGraph#deriveDependencies()} runs.
+   */
+  public GraphJob reads(String... paths) {
+    for(String path : paths) {
+      if(!reads.contains(path)) {
+        reads.add(path);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Declares paths the job writes.
+   */
+  public GraphJob writes(String... paths) {
+    for(String path : paths) {
+      if(!writes.contains(path)) {
+        writes.add(path);
+      }
+    }
+    return this;
+  }
+
+  public List<String> getReads() {
+    return reads;
+  }
+
+  public List<String> getWrites() {
+    return writes;
+  }
+
+  /**
+   * @return true when the job declares the files it reads or writes
+   */
+  public boolean hasFiles() {
+    return !reads.isEmpty() || !writes.isEmpty();
+  }
+
+  public boolean isElastic() {
+    return memPerThread != null;
+  }
+
+  /**
+   * @return Memory in MB consumed by each thread, null when not elastic
+   */
+  public Integer getMemPerThread() {
+    return memPerThread;
+  }
+
+  /**
+   * Records the identity a timed job writes its timing file under,
+   * 'tumourCount_alg_process_index'.
+   */
+  public GraphJob setTiming(int tumourCount, String alg, String process, int index) {
+    this.tumourCount = tumourCount;
+    this.alg = alg;
+    this.process = process;
+    this.index = index;
+    this.timingId = tumourCount + "_" + alg + "_" + process + "_" + index;
+    return this;
+  }
+
+  /**
+   * @param timingFile Path of the timing file, TIMEDIR of the run or donor plus {@link #getTimingId()}
+   */
+  public GraphJob setTimingFile(String timingFile) {
+    this.timingFile = timingFile;
+    return this;
+  }
+
+  public String getTimingFile() {
+    return timingFile;
+  }
+
+  /**
+   * @return Name of the timing file written by the job, null when not timed
+   */
+  public String getTimingId() {
+    return timingId;
+  }
+
+  public int getTumourCount() {
+    return tumourCount;
+  }
+
+  public String getAlg() {
+    return alg;
+  }
+
+  public String getProcess() {
+    return process;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return The arguments with {@link #THREADS} replaced
+   * @throws IllegalStateException When an elastic job has not been planned
+   */
+  public List<String> getResolvedArguments() {
+    List<String> resolved = new ArrayList<String>();
+    for(String arg : command.getArguments()) {
+      if(arg.contains(THREADS)) {
+        if(threads == null) {
+          throw new IllegalStateException("Threads not planned for job " + name + ": " + arg);
+        }
+        arg = arg.replace(THREADS, threads.toString());
+      }
+      resolved.add(arg);
+    }
+    return resolved;
+  }
+}
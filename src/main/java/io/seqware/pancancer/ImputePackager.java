@@ -0,0 +1,298 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Packages the Battenberg allele counts written by {@link AlleleCounter}
+ * ('indir/SAMPLE.chr.tsv') as 'indir/TUMOUR.imputeCounts.tar.gz' for each tumour,
+ * holding the files of the tumour and of the control below 'TUMOUR/', with the
+ * checksum in '.md5' as bin/pack.sh writes it.
+ *
+ * A gzip file may be several gzip members one after the other, so each file is
+ * compressed once, together with the padding tar puts after it, into a member of
+ * its own on threads of the pool.  The archives are then written by splicing
+ * those members between the compressed tar headers, the control files are never
+ * compressed again for each tumour and memory doesn't grow with the files.
+ *
+ * USAGE: ImputePackager [-t threads] controlSampleOrBam indir
+ */
+public class ImputePackager {
+
+  private static final int BLOCK = 512;
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final File inDir;
+  private final File memberDir;
+  private final String controlSample;
+  // sample to its count files
+  private final Map<String, List<File>> fileSets = new TreeMap<String, List<File>>();
+
+  public ImputePackager(File inDir, String controlSample) {
+    this.inDir = inDir;
+    this.memberDir = new File(inDir, ".imputeCounts");
+    this.controlSample = controlSample;
+    File[] items = inDir.listFiles();
+    if(items == null) {
+      throw new RuntimeException("Unable to list " + inDir.getPath());
+    }
+    Arrays.sort(items);
+    for(File item : items) {
+      String name = item.getName();
+      if(name.startsWith(".") || name.endsWith(".gz") || name.endsWith(".md5") || item.isDirectory()) {
+        continue;
+      }
+      int dot = name.indexOf('.');
+      String sample = dot < 0 ? name : name.substring(0, dot);
+      List<File> files = fileSets.get(sample);
+      if(files == null) {
+        files = new ArrayList<File>();
+        fileSets.put(sample, files);
+      }
+      files.add(item);
+    }
+  }
+
+  /**
+   * @return Archives written, none when only control files were found
+   */
+  public List<File> pack(int threads) throws IOException {
+    List<File> archives = new ArrayList<File>();
+    if(!memberDir.isDirectory() && !memberDir.mkdirs()) {
+      throw new IOException("Unable to create " + memberDir.getPath());
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      List<Future<File>> results = new ArrayList<Future<File>>();
+      for(List<File> files : fileSets.values()) {
+        for(final File file : files) {
+          results.add(pool.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+              compressMember(file);
+              return file;
+            }
+          }));
+        }
+      }
+      waitFor(results);
+
+      results.clear();
+      for(final String sample : fileSets.keySet()) {
+        if(sample.equals(controlSample)) {
+          continue;
+        }
+        results.add(pool.submit(new Callable<File>() {
+          @Override
+          public File call() throws IOException {
+            return writeArchive(sample);
+          }
+        }));
+      }
+      archives.addAll(waitFor(results));
+    } finally {
+      pool.shutdownNow();
+      File[] members = memberDir.listFiles();
+      if(members != null) {
+        for(File member : members) {
+          member.delete();
+        }
+      }
+      memberDir.delete();
+    }
+    return archives;
+  }
+
+  private static List<File> waitFor(List<Future<File>> results) throws IOException {
+    List<File> done = new ArrayList<File>();
+    for(Future<File> result : results) {
+      try {
+        done.add(result.get());
+      } catch(InterruptedException e) {
+        throw new RuntimeException(e);
+      } catch(ExecutionException e) {
+        if(e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return done;
+  }
+
+  private File member(File file) {
+    return new File(memberDir, file.getName() + ".gz");
+  }
+
+  /**
+   * Compresses the content of file padded to whole tar blocks.
+   */
+  private void compressMember(File file) throws IOException {
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(member(file)), 65536);
+    try {
+      long size = copy(new FileInputStream(file), out);
+      int pad = (int) ((BLOCK - size % BLOCK) % BLOCK);
+      out.write(new byte[pad]);
+    } finally {
+      out.close();
+    }
+  }
+
+  private File writeArchive(String tumourSample) throws IOException {
+    List<File> files = new ArrayList<File>(fileSets.get(tumourSample));
+    List<File> control = fileSets.get(controlSample);
+    if(control != null) {
+      files.addAll(control);
+    }
+    File archive = new File(inDir, tumourSample + ".imputeCounts.tar.gz");
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch(NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(archive), 65536), md5);
+    try {
+      for(File file : files) {
+        writeCompressed(out, header(tumourSample, file));
+        copy(new FileInputStream(member(file)), out);
+      }
+      // end of archive
+      writeCompressed(out, new byte[BLOCK * 2]);
+    } finally {
+      out.close();
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for(byte b : md5.digest()) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    Writer writer = new OutputStreamWriter(new FileOutputStream(archive.getPath() + ".md5"), ASCII);
+    try {
+      writer.write(hex.toString() + "\n");
+    } finally {
+      writer.close();
+    }
+    return archive;
+  }
+
+  private static void writeCompressed(OutputStream out, byte[] data) throws IOException {
+    // closing the gzip stream would close out
+    GZIPOutputStream gz = new GZIPOutputStream(out) {
+      @Override
+      public void close() throws IOException {
+        finish();
+        def.end();
+      }
+    };
+    gz.write(data);
+    gz.close();
+  }
+
+  /**
+   * @return ustar header of file stored as dir/name
+   */
+  private static byte[] header(String dir, File file) {
+    byte[] header = new byte[BLOCK];
+    String name = dir + "/" + file.getName();
+    if(name.length() > 100) {
+      if(file.getName().length() > 100 || dir.length() > 155) {
+        throw new RuntimeException("Name too long for a tar header: " + name);
+      }
+      put(header, 0, file.getName());
+      put(header, 345, dir);
+    } else {
+      put(header, 0, name);
+    }
+    put(header, 100, "0000644");
+    put(header, 108, "0000000");
+    put(header, 116, "0000000");
+    put(header, 124, String.format("%011o", file.length()));
+    put(header, 136, String.format("%011o", file.lastModified() / 1000));
+    header[156] = '0';
+    put(header, 257, "ustar");
+    put(header, 263, "00");
+    // checksum of the header with its own field taken as spaces
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    int sum = 0;
+    for(byte b : header) {
+      sum += b & 0xff;
+    }
+    put(header, 148, String.format("%06o", sum));
+    header[154] = 0;
+    return header;
+  }
+
+  private static void put(byte[] header, int offset, String value) {
+    byte[] bytes = value.getBytes(ASCII);
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+
+  private static long copy(InputStream in, OutputStream out) throws IOException {
+    long size = 0;
+    try {
+      byte[] buffer = new byte[65536];
+      int read;
+      while((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        size += read;
+      }
+    } finally {
+      in.close();
+    }
+    return size;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = 1;
+    List<String> positional = new ArrayList<String>();
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-t")) {
+        threads = Integer.parseInt(args[++i]);
+      }
+      else {
+        positional.add(args[i]);
+      }
+    }
+    if(positional.size() != 2) {
+      System.err.println("USAGE: ImputePackager [-t threads] controlSampleOrBam indir");
+      System.exit(1);
+    }
+
+    // the workflow passes the sample name instead when it could read the header at build time
+    String control = positional.get(0);
+    if(control.endsWith(".bam")) {
+      BamReader reader = new BamReader(new File(control));
+      try {
+        control = reader.getSampleName();
+      } finally {
+        reader.close();
+      }
+    }
+    for(File archive : new ImputePackager(new File(positional.get(1)), control).pack(threads)) {
+      System.out.println("Packaged " + archive.getPath());
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package io.seqware.pancancer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges lightweight jobs (time marks, BAM links, copy number conversion,
+ * publishing, ...) of a {@link JobGraph} into a neighbouring job so each costs no
+ * scheduling round-trip of its own.  Jobs are merged when:
+ *
+ *  - parent and child form a chain (the parent has no other child, the child no
+ *    other parent) and one of them is lightweight, nothing can run earlier
+ *  - a lightweight child has a single parent that is lightweight too, the other
+ *    children of the parent wait for the child as well but it takes no time
+ *  - lightweight siblings have the same parents
+ *
+ * The merged job runs the steps one after the other, each in its own subshell, and
+ * names the step that failed on stderr.  Timed steps keep writing their own timing
+ * file, so a merged job holds at most one timed step and takes its identity.
+ * Elastic jobs are never merged, they are planned by the {@link ResourcePlanner},
+ * nor are jobs that always run with jobs that are skipped once done, see
+ * {@link Memoiser}.
+ */
+public class JobFuser {
+
+  // job kept to the steps it runs, in order
+  private final Map<GraphJob, List<GraphJob>> steps = new LinkedHashMap<GraphJob, List<GraphJob>>();
+
+  /**
+   * @return Number of jobs removed from the graph
+   */
+  public int fuse(JobGraph graph) {
+    List<GraphJob> jobs = graph.getJobs();
+    int before = jobs.size();
+    for(GraphJob job : jobs) {
+      List<GraphJob> own = new ArrayList<GraphJob>();
+      own.add(job);
+      steps.put(job, own);
+    }
+
+    boolean merged = true;
+    while(merged) {
+      merged = false;
+      Map<GraphJob, List<GraphJob>> children = children(jobs);
+      for(GraphJob job : jobs) {
+        if(job.getParents().size() != 1) {
+          continue;
+        }
+        GraphJob parent = job.getParents().get(0);
+        boolean chain = children.get(parent).size() == 1 && (parent.isLightweight() || job.isLightweight());
+        boolean light = parent.isLightweight() && job.isLightweight();
+        if((chain || light) && mergeable(parent, job)) {
+          merge(jobs, parent, job, children.get(job));
+          merged = true;
+          break;
+        }
+      }
+      if(merged) {
+        continue;
+      }
+      for(GraphJob job : jobs) {
+        List<GraphJob> siblings = children.get(job);
+        for(int i=0; i<siblings.size() && !merged; i++) {
+          for(int j=i+1; j<siblings.size() && !merged; j++) {
+            GraphJob a = siblings.get(i);
+            GraphJob b = siblings.get(j);
+            if(a.isLightweight() && b.isLightweight() && sameParents(a, b) && mergeable(a, b)) {
+              // children are always created after their parents, keep the earlier
+              if(jobs.indexOf(a) < jobs.indexOf(b)) {
+                merge(jobs, a, b, children.get(b));
+              } else {
+                merge(jobs, b, a, children.get(a));
+              }
+              merged = true;
+            }
+          }
+        }
+        if(merged) {
+          break;
+        }
+      }
+    }
+
+    for(GraphJob job : jobs) {
+      if(steps.get(job).size() > 1) {
+        rewrite(job);
+      }
+    }
+    return before - jobs.size();
+  }
+
+  private static boolean mergeable(GraphJob a, GraphJob b) {
+    return !a.isElastic() && !b.isElastic() && a.isMemoise() == b.isMemoise()
+      && (a.getTimingId() == null || b.getTimingId() == null);
+  }
+
+  private static boolean sameParents(GraphJob a, GraphJob b) {
+    return new HashSet<GraphJob>(a.getParents()).equals(new HashSet<GraphJob>(b.getParents()));
+  }
+
+  /**
+   * Moves the steps, parents, children and resources of from to into, into always
+   * being earlier in the graph than from.
+   */
+  private void merge(List<GraphJob> jobs, GraphJob into, GraphJob from, List<GraphJob> fromChildren) {
+    for(GraphJob parent : from.getParents()) {
+      if(parent != into) {
+        into.addParent(parent);
+      }
+    }
+    for(GraphJob child : fromChildren) {
+      child.getParents().remove(from);
+      child.addParent(into);
+    }
+
+    int intoThreads = into.getThreads() == null ? 1 : into.getThreads();
+    int fromThreads = from.getThreads() == null ? 1 : from.getThreads();
+    int threads = Math.max(intoThreads, fromThreads);
+    if(into.getMaxMemory() != null || from.getMaxMemory() != null) {
+      // maxMemory is per thread, keep the larger total
+      long total = Math.max(totalMb(into, intoThreads), totalMb(from, fromThreads));
+      into.setMaxMemory(Long.toString((total + threads - 1) / threads));
+    }
+    if(into.getThreads() != null || from.getThreads() != null) {
+      into.setThreads(threads);
+    }
+    if(from.getTimingId() != null) {
+      into.setTiming(from.getTumourCount(), from.getAlg(), from.getProcess(), from.getIndex());
+      into.setTimingFile(from.getTimingFile());
+    }
+    into.setLightweight(into.isLightweight() && from.isLightweight());
+    if(from.getInputs() != null) {
+      into.setInputs(into.getInputs() == null ? from.getInputs() : into.getInputs() + "\n" + from.getInputs());
+    }
+    into.reads(from.getReads().toArray(new String[0]));
+    into.writes(from.getWrites().toArray(new String[0]));
+
+    steps.get(into).addAll(steps.remove(from));
+    jobs.remove(from);
+  }
+
+  private void rewrite(GraphJob job) {
+    // merged steps are never elastic, their commands resolve before planning
+    List<GraphJob> jobSteps = steps.get(job);
+    List<String> commands = new ArrayList<String>();
+    for(GraphJob step : jobSteps) {
+      commands.add(TaskGraph.command(step));
+    }
+    List<String> args = job.getCommand().getArguments();
+    args.clear();
+    for(int i=0; i<jobSteps.size(); i++) {
+      GraphJob step = jobSteps.get(i);
+      if(i > 0) {
+        args.add(";");
+      }
+      args.add("( " + commands.get(i) + " )");
+      args.add("|| { s=$?; echo 'Failed in step " + (i + 1) + "/" + jobSteps.size() + " " + step.getName() + "' >&2; exit $s; }");
+    }
+  }
+
+  private static long totalMb(GraphJob job, int threads) {
+    return job.getMaxMemory() == null ? 0 : Long.parseLong(job.getMaxMemory()) * threads;
+  }
+
+  private static Map<GraphJob, List<GraphJob>> children(List<GraphJob> jobs) {
+    Map<GraphJob, List<GraphJob>> children = new HashMap<GraphJob, List<GraphJob>>();
+    for(GraphJob job : jobs) {
+      children.put(job, new ArrayList<GraphJob>());
+      for(GraphJob parent : job.getParents()) {
+        children.get(parent).add(job);
+      }
+    }
+    return children;
+  }
+}
@@ -0,0 +1,347 @@
+package io.seqware.pancancer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The workflow DAG as built by CgpSomaticCore before it is handed to SeqWare.
+ *
+ * Holding the whole graph allows decisions that depend on more than one job,
+ * e.g. how threads are shared by jobs that can run at the same time, to be made
+ * after all jobs and dependencies are known.
+ */
+public class JobGraph {
+
+  private final List<GraphJob> jobs = new ArrayList<GraphJob>();
+
+  public GraphJob createBashJob(String name) {
+    GraphJob job = new GraphJob(name);
+    jobs.add(job);
+    return job;
+  }
+
+  /**
+   * @return All jobs in creation order, parents are always created before children
+   */
+  public List<GraphJob> getJobs() {
+    return jobs;
+  }
+
+  /**
+   * Makes each job a child of every job created before it that writes a path it
+   * reads, see {@link GraphJob#reads(String...)} and {@link #overlaps(String, String)},
+   * unless a parent waits for the writer ({@link GraphJob#waitsFor(GraphJob)}).
+   *
+   * @return Number of edges added
+   */
+  public int deriveDependencies() {
+    Writers writers = new Writers();
+    int added = 0;
+    for(GraphJob job : jobs) {
+      for(String path : job.getReads()) {
+        for(GraphJob writer : writers.of(path)) {
+          if(writer != job && !job.getParents().contains(writer) && !gated(job.getParents(), writer)) {
+            job.addParent(writer);
+            added++;
+          }
+        }
+      }
+      for(String path : job.getWrites()) {
+        writers.add(path, job);
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Checks the edges against the declared files.  Reported are paths read by a job
+   * that can start before a job writing them (missing edge), edges between two
+   * jobs declaring files where the child reads nothing the parent writes
+   * (unnecessary edge, the child could start earlier) and timed jobs declaring no
+   * reads, as a file they read without declaring it can't be checked.  Edges of
+   * other jobs without declared files are not checked.
+   *
+   * @return One line per problem, empty when the edges match the files
+   */
+  public List<String> verify() {
+    Map<GraphJob, String> ids = TaskGraph.ids(this);
+    Writers writers = new Writers();
+    for(GraphJob job : jobs) {
+      for(String path : job.getWrites()) {
+        writers.add(path, job);
+      }
+    }
+
+    List<String> problems = new ArrayList<String>();
+    Map<GraphJob, Integer> positions = positions();
+    List<BitSet> ancestors = ancestors(positions);
+    for(int i=0; i<jobs.size(); i++) {
+      GraphJob job = jobs.get(i);
+      BitSet jobAncestors = ancestors.get(i);
+      if(job.getTimingId() != null && job.getReads().isEmpty()) {
+        problems.add("no declared reads " + ids.get(job));
+      }
+      for(String path : job.getReads()) {
+        for(GraphJob writer : writers.of(path)) {
+          if(writer != job && !jobAncestors.get(positions.get(writer)) && !gated(ancestorJobs(jobAncestors), writer)) {
+            problems.add("missing edge " + ids.get(writer) + " -> " + ids.get(job) + " (" + path + ")");
+          }
+        }
+      }
+      if(!job.hasFiles()) {
+        continue;
+      }
+      for(GraphJob parent : job.getParents()) {
+        if(!parent.hasFiles()) {
+          continue;
+        }
+        boolean used = false;
+        for(String written : parent.getWrites()) {
+          for(String read : job.getReads()) {
+            if(overlaps(read, written)) {
+              used = true;
+              break;
+            }
+          }
+        }
+        if(!used) {
+          problems.add("unnecessary edge " + ids.get(parent) + " -> " + ids.get(job));
+        }
+      }
+    }
+    return problems;
+  }
+
+  /**
+   * @return true when one of the jobs waits for the writer, e.g. polling for the
+   * parts of the reference it unpacks, so the files can be read once it is done
+   */
+  private static boolean gated(List<GraphJob> jobs, GraphJob writer) {
+    for(GraphJob job : jobs) {
+      if(job.getWaitsFor().contains(writer)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<GraphJob> ancestorJobs(BitSet positions) {
+    List<GraphJob> found = new ArrayList<GraphJob>();
+    for(int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+      found.add(jobs.get(i));
+    }
+    return found;
+  }
+
+  /**
+   * A read depends on a write of the same path, of a directory holding it or of
+   * anything below it when it reads a directory.  A '*' in either matches within
+   * one path element, e.g. 'bb/*.1.tsv'.
+   *
+   * @return true when reading the first path needs the second written first
+   */
+  static boolean overlaps(String read, String written) {
+    if(read.equals(written) || read.startsWith(written + "/") || written.startsWith(read + "/")) {
+      return true;
+    }
+    return (written.contains("*") && globMatches(written, read)) || (read.contains("*") && globMatches(read, written));
+  }
+
+  /**
+   * @return true when path, or a path below it, or a directory holding it, matches the glob
+   */
+  private static boolean globMatches(String glob, String path) {
+    StringBuilder regex = new StringBuilder();
+    for(String part : glob.split("\\*", -1)) {
+      if(regex.length() > 0) {
+        regex.append("[^/]*");
+      }
+      regex.append(Pattern.quote(part));
+    }
+    Matcher matcher = Pattern.compile(regex.toString()).matcher(path);
+    if(matcher.lookingAt() && (matcher.end() == path.length() || path.charAt(matcher.end()) == '/')) {
+      return true;
+    }
+    // a directory the glob writes below
+    String fixed = glob.substring(0, glob.indexOf('*'));
+    return fixed.startsWith(path + "/");
+  }
+
+  /**
+   * Jobs writing each path, indexed by the path and every directory above it so a
+   * read finds its writers without comparing it to every path written.
+   */
+  private static class Writers {
+    private final Map<String, List<GraphJob>> exact = new HashMap<String, List<GraphJob>>();
+    private final Map<String, List<GraphJob>> below = new HashMap<String, List<GraphJob>>();
+    private final Map<String, List<GraphJob>> globs = new LinkedHashMap<String, List<GraphJob>>();
+
+    void add(String path, GraphJob job) {
+      int star = path.indexOf('*');
+      put(star < 0 ? exact : globs, path, job);
+      String dir = star < 0 ? path : path.substring(0, star);
+      for(int slash = dir.lastIndexOf('/'); slash > 0; slash = dir.lastIndexOf('/', slash - 1)) {
+        put(below, dir.substring(0, slash), job);
+      }
+    }
+
+    /**
+     * @return Jobs writing a path the read overlaps, in the order they were added.
+     * Of the jobs writing the path or a directory holding it only those writing the
+     * deepest are taken, what they write is left out of the directories above.
+     */
+    Set<GraphJob> of(String read) {
+      Set<GraphJob> found = new LinkedHashSet<GraphJob>();
+      String dir = read.contains("*") ? read.substring(0, read.indexOf('*')) : read;
+      List<GraphJob> deepest = exact.get(read);
+      for(int slash = dir.lastIndexOf('/'); deepest == null && slash > 0; slash = dir.lastIndexOf('/', slash - 1)) {
+        deepest = exact.get(dir.substring(0, slash));
+      }
+      addAll(found, deepest);
+      addAll(found, below.get(read));
+      for(Map.Entry<String, List<GraphJob>> glob : globs.entrySet()) {
+        if(overlaps(read, glob.getKey())) {
+          addAll(found, glob.getValue());
+        }
+      }
+      if(read.contains("*")) {
+        for(Map.Entry<String, List<GraphJob>> path : exact.entrySet()) {
+          if(overlaps(read, path.getKey())) {
+            addAll(found, path.getValue());
+          }
+        }
+      }
+      return found;
+    }
+
+    private static void put(Map<String, List<GraphJob>> map, String path, GraphJob job) {
+      List<GraphJob> pathWriters = map.get(path);
+      if(pathWriters == null) {
+        pathWriters = new ArrayList<GraphJob>();
+        map.put(path, pathWriters);
+      }
+      if(!pathWriters.contains(job)) {
+        pathWriters.add(job);
+      }
+    }
+
+    private static void addAll(Set<GraphJob> found, List<GraphJob> jobs) {
+      if(jobs != null) {
+        found.addAll(jobs);
+      }
+    }
+  }
+
+  /**
+   * Removes edges implied by a longer path, e.g. a job reading a BAM link and the
+   * output of a step that itself read the link only needs the step as parent.
+   * What runs before what is unchanged.
+   *
+   * @return Number of edges removed
+   */
+  public int reduce() {
+    Map<GraphJob, Integer> positions = positions();
+    List<BitSet> ancestors = ancestors(positions);
+    int removed = 0;
+    for(GraphJob job : jobs) {
+      // ancestors reached through a parent, a parent among them is redundant
+      BitSet implied = new BitSet();
+      for(GraphJob parent : job.getParents()) {
+        implied.or(ancestors.get(positions.get(parent)));
+      }
+      List<GraphJob> kept = new ArrayList<GraphJob>();
+      for(GraphJob parent : job.getParents()) {
+        if(implied.get(positions.get(parent))) {
+          removed++;
+        } else {
+          kept.add(parent);
+        }
+      }
+      job.getParents().clear();
+      job.getParents().addAll(kept);
+    }
+    return removed;
+  }
+
+  /**
+   * Replaces the edges of jobs sharing the same parents by a barrier job between
+   * them, the parents of n jobs then need n + parents edges instead of n * parents.
+   *
+   * @param minJobs Fewest jobs with the same parents worth a barrier
+   * @param memory Memory in MB requested by a barrier job
+   * @return Number of barrier jobs added
+   */
+  public int addBarriers(int minJobs, String memory) {
+    Map<String, List<GraphJob>> groups = new LinkedHashMap<String, List<GraphJob>>();
+    Map<GraphJob, Integer> positions = positions();
+    for(GraphJob job : jobs) {
+      if(job.getParents().size() < 2) {
+        continue;
+      }
+      BitSet key = new BitSet();
+      for(GraphJob parent : job.getParents()) {
+        key.set(positions.get(parent));
+      }
+      List<GraphJob> group = groups.get(key.toString());
+      if(group == null) {
+        group = new ArrayList<GraphJob>();
+        groups.put(key.toString(), group);
+      }
+      group.add(job);
+    }
+
+    int added = 0;
+    for(List<GraphJob> group : groups.values()) {
+      int parents = group.get(0).getParents().size();
+      if(group.size() < minJobs || group.size() + parents >= group.size() * parents) {
+        continue;
+      }
+      GraphJob barrier = new GraphJob("barrier");
+      barrier.getCommand().addArgument("true");
+      barrier.setMaxMemory(memory);
+      barrier.setLightweight(true);
+      barrier.getParents().addAll(group.get(0).getParents());
+      for(GraphJob job : group) {
+        job.getParents().clear();
+        job.getParents().add(barrier);
+      }
+      // after the parents, before the first job waiting on it
+      jobs.add(jobs.indexOf(group.get(0)), barrier);
+      added++;
+    }
+    return added;
+  }
+
+  private Map<GraphJob, Integer> positions() {
+    Map<GraphJob, Integer> positions = new HashMap<GraphJob, Integer>();
+    for(int i=0; i<jobs.size(); i++) {
+      positions.put(jobs.get(i), i);
+    }
+    return positions;
+  }
+
+  /**
+   * @return Positions of all ancestors of each job, by position
+   */
+  private List<BitSet> ancestors(Map<GraphJob, Integer> positions) {
+    List<BitSet> ancestors = new ArrayList<BitSet>();
+    for(GraphJob job : jobs) {
+      BitSet jobAncestors = new BitSet(jobs.size());
+      for(GraphJob parent : job.getParents()) {
+        int position = positions.get(parent);
+        jobAncestors.set(position);
+        jobAncestors.or(ancestors.get(position));
+      }
+      ancestors.add(jobAncestors);
+    }
+    return ancestors;
+  }
+}
@@ -0,0 +1,217 @@
+package io.seqware.pancancer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the records and exports written by the workflow, without
+ * adding a dependency to the bundle.
+ *
+ * Objects parse to Map (keys in file order), arrays to List, numbers to Long or
+ * Double, plus String, Boolean and null.
+ */
+public class Json {
+
+  private final String text;
+  private int pos = 0;
+
+  private Json(String text) {
+    this.text = text;
+  }
+
+  /**
+   * @param text A single JSON value
+   * @return The parsed value
+   * @throws IOException When the text is not valid JSON
+   */
+  public static Object parse(String text) throws IOException {
+    Json json = new Json(text);
+    Object value = json.value();
+    json.skipSpace();
+    if(json.pos != text.length()) {
+      throw json.error("Trailing content");
+    }
+    return value;
+  }
+
+  /**
+   * @return The string as a quoted JSON string
+   */
+  public static String quote(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+    sb.append('"');
+    for(int i=0; i<s.length(); i++) {
+      char c = s.charAt(i);
+      switch(c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if(c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          }
+          else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private Object value() throws IOException {
+    skipSpace();
+    if(pos >= text.length()) {
+      throw error("Unexpected end");
+    }
+    char c = text.charAt(pos);
+    switch(c) {
+      case '{': return object();
+      case '[': return array();
+      case '"': return string();
+      case 't': return literal("true", Boolean.TRUE);
+      case 'f': return literal("false", Boolean.FALSE);
+      case 'n': return literal("null", null);
+      default: return number();
+    }
+  }
+
+  private Map<String, Object> object() throws IOException {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    pos++;
+    skipSpace();
+    if(peek() == '}') {
+      pos++;
+      return map;
+    }
+    while(true) {
+      skipSpace();
+      if(peek() != '"') {
+        throw error("Expected key");
+      }
+      String key = string();
+      skipSpace();
+      expect(':');
+      map.put(key, value());
+      skipSpace();
+      if(peek() == ',') {
+        pos++;
+        continue;
+      }
+      expect('}');
+      return map;
+    }
+  }
+
+  private List<Object> array() throws IOException {
+    List<Object> list = new ArrayList<Object>();
+    pos++;
+    skipSpace();
+    if(peek() == ']') {
+      pos++;
+      return list;
+    }
+    while(true) {
+      list.add(value());
+      skipSpace();
+      if(peek() == ',') {
+        pos++;
+        continue;
+      }
+      expect(']');
+      return list;
+    }
+  }
+
+  private String string() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    pos++;
+    while(pos < text.length()) {
+      char c = text.charAt(pos++);
+      if(c == '"') {
+        return sb.toString();
+      }
+      if(c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      if(pos >= text.length()) {
+        break;
+      }
+      char e = text.charAt(pos++);
+      switch(e) {
+        case 'b': sb.append('\b'); break;
+        case 'f': sb.append('\f'); break;
+        case 'n': sb.append('\n'); break;
+        case 'r': sb.append('\r'); break;
+        case 't': sb.append('\t'); break;
+        case 'u':
+          if(pos + 4 > text.length()) {
+            throw error("Bad unicode escape");
+          }
+          sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+          pos += 4;
+          break;
+        default: sb.append(e);
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  private Number number() throws IOException {
+    int start = pos;
+    boolean integral = true;
+    while(pos < text.length()) {
+      char c = text.charAt(pos);
+      if(c == '.' || c == 'e' || c == 'E') {
+        integral = false;
+      }
+      else if(!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+        break;
+      }
+      pos++;
+    }
+    String num = text.substring(start, pos);
+    try {
+      if(integral) {
+        return Long.parseLong(num);
+      }
+      return Double.parseDouble(num);
+    } catch(NumberFormatException e) {
+      throw error("Bad number '" + num + "'");
+    }
+  }
+
+  private Object literal(String word, Object value) throws IOException {
+    if(!text.startsWith(word, pos)) {
+      throw error("Unexpected token");
+    }
+    pos += word.length();
+    return value;
+  }
+
+  private void expect(char c) throws IOException {
+    if(peek() != c) {
+      throw error("Expected '" + c + "'");
+    }
+    pos++;
+  }
+
+  private char peek() {
+    return pos < text.length() ? text.charAt(pos) : 0;
+  }
+
+  private void skipSpace() {
+    while(pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private IOException error(String message) {
+    return new IOException(message + " at offset " + pos);
+  }
+}
@@ -0,0 +1,219 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Runs a task graph exported by {@link TaskGraph} on this host, starting each task
+ * in a separate bash process as soon as its parents have succeeded and its threads
+ * and memory fit in what is left of the host, highest priority first.  A task
+ * larger than the host is started when nothing else runs.  No new tasks start once
+ * one has failed.
+ *
+ *   java -cp classes io.seqware.pancancer.LocalExecutor -c 16 -m 64000 -l logs tasks.json
+ *
+ * Output of each task goes to logs/ID.stdout and logs/ID.stderr.
+ */
+public class LocalExecutor {
+
+  private static class Task {
+    private String id;
+    private String command;
+    private int threads;
+    private int memoryMb;
+    private int priority;
+    private final List<Task> children = new ArrayList<Task>();
+    private int waitingOn;
+    private int exit;
+  }
+
+  // stable, tasks of equal priority keep their order
+  private static final Comparator<Task> BY_PRIORITY = new Comparator<Task>() {
+    @Override
+    public int compare(Task a, Task b) {
+      return Integer.compare(b.priority, a.priority);
+    }
+  };
+
+  private final int cores;
+  private final int memoryMb;
+  private final File logDir;
+  private final File workDir;
+
+  /**
+   * @param cores Cores tasks may use at once
+   * @param memoryMb Memory in MB tasks may use at once
+   * @param logDir Where the output of each task is written
+   * @param workDir Directory tasks are started in
+   */
+  public LocalExecutor(int cores, int memoryMb, File logDir, File workDir) {
+    this.cores = cores;
+    this.memoryMb = memoryMb;
+    this.logDir = logDir;
+    this.workDir = workDir;
+  }
+
+  /**
+   * @param graph Task graph as written by {@link TaskGraph}
+   * @return Ids of the failed tasks, empty when all succeeded
+   */
+  public List<String> run(Map<String, Object> graph) throws IOException, InterruptedException {
+    List<Task> tasks = load(graph);
+    if(!logDir.isDirectory() && !logDir.mkdirs()) {
+      throw new IOException("Failed to create " + logDir.getPath());
+    }
+
+    // tasks start highest priority first, then in the order they became ready
+    List<Task> ready = new ArrayList<Task>();
+    for(Task task : tasks) {
+      if(task.waitingOn == 0) {
+        ready.add(task);
+      }
+    }
+    final BlockingQueue<Task> finished = new LinkedBlockingQueue<Task>();
+    List<String> failed = new ArrayList<String>();
+    int freeCores = cores;
+    int freeMb = memoryMb;
+    int running = 0;
+    int done = 0;
+    while(true) {
+      if(failed.isEmpty()) {
+        Collections.sort(ready, BY_PRIORITY);
+        for(int i=0; i<ready.size(); i++) {
+          Task task = ready.get(i);
+          if(running > 0 && (task.threads > freeCores || task.memoryMb > freeMb)) {
+            continue;
+          }
+          ready.remove(i--);
+          start(task, finished);
+          System.out.println("[" + done + "/" + tasks.size() + "] started " + task.id);
+          freeCores -= task.threads;
+          freeMb -= task.memoryMb;
+          running++;
+        }
+      }
+      if(running == 0) {
+        break;
+      }
+      Task task = finished.take();
+      running--;
+      done++;
+      freeCores += task.threads;
+      freeMb += task.memoryMb;
+      if(task.exit != 0) {
+        System.out.println("[" + done + "/" + tasks.size() + "] FAILED " + task.id + " (exit " + task.exit + "), see "
+                          + new File(logDir, task.id + ".stderr").getPath());
+        failed.add(task.id);
+        continue;
+      }
+      System.out.println("[" + done + "/" + tasks.size() + "] finished " + task.id);
+      for(Task child : task.children) {
+        if(--child.waitingOn == 0) {
+          ready.add(child);
+        }
+      }
+    }
+    if(failed.isEmpty() && done < tasks.size()) {
+      throw new IllegalStateException((tasks.size() - done) + " tasks never became ready, the graph has a cycle");
+    }
+    return failed;
+  }
+
+  private void start(final Task task, final BlockingQueue<Task> finished) throws IOException {
+    ProcessBuilder pb = new ProcessBuilder("bash", "-c", task.command);
+    pb.directory(workDir);
+    pb.redirectOutput(new File(logDir, task.id + ".stdout"));
+    pb.redirectError(new File(logDir, task.id + ".stderr"));
+    final Process process = pb.start();
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.exit = process.waitFor();
+        } catch(InterruptedException e) {
+          process.destroy();
+          task.exit = -1;
+        }
+        finished.add(task);
+      }
+    }, task.id);
+    waiter.setDaemon(true);
+    waiter.start();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Task> load(Map<String, Object> graph) throws IOException {
+    List<Task> tasks = new ArrayList<Task>();
+    Map<String, Task> byId = new HashMap<String, Task>();
+    for(Object o : (List<Object>) graph.get("tasks")) {
+      Map<String, Object> json = (Map<String, Object>) o;
+      Task task = new Task();
+      task.id = (String) json.get("id");
+      task.command = (String) json.get("command");
+      task.threads = ((Number) json.get("threads")).intValue();
+      task.memoryMb = json.containsKey("memory_mb") ? ((Number) json.get("memory_mb")).intValue() : 0;
+      task.priority = json.containsKey("priority") ? ((Number) json.get("priority")).intValue() : 0;
+      for(Object parent : (List<Object>) json.get("parents")) {
+        Task p = byId.get((String) parent);
+        if(p == null) {
+          throw new IOException("Task " + task.id + " listed before its parent " + parent);
+        }
+        p.children.add(task);
+        task.waitingOn++;
+      }
+      if(byId.put(task.id, task) != null) {
+        throw new IOException("Task id " + task.id + " is not unique");
+      }
+      tasks.add(task);
+    }
+    return tasks;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws Exception {
+    File tasks = null;
+    int cores = Runtime.getRuntime().availableProcessors();
+    int memoryMb = Integer.MAX_VALUE;
+    File logDir = new File("task-logs");
+    File workDir = new File(".");
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-c")) {
+        cores = Integer.valueOf(args[++i]);
+      }
+      else if(args[i].equals("-m")) {
+        memoryMb = Integer.valueOf(args[++i]);
+      }
+      else if(args[i].equals("-l")) {
+        logDir = new File(args[++i]);
+      }
+      else if(args[i].equals("-d")) {
+        workDir = new File(args[++i]);
+      }
+      else {
+        tasks = new File(args[i]);
+      }
+    }
+    if(tasks == null) {
+      System.err.println("USAGE: LocalExecutor [-c cores] [-m memoryMb] [-l logDir] [-d workDir] tasks.json");
+      System.exit(1);
+    }
+
+    String text = new String(Files.readAllBytes(tasks.toPath()), Charset.forName("UTF-8"));
+    LocalExecutor executor = new LocalExecutor(cores, memoryMb, logDir, workDir);
+    List<String> failed = executor.run((Map<String, Object>) Json.parse(text.trim()));
+    if(!failed.isEmpty()) {
+      System.err.println("Failed tasks: " + failed);
+      System.exit(1);
+    }
+  }
+}
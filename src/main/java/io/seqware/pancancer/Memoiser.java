@@ -0,0 +1,255 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Skips jobs completed by an earlier launch into the same output directory.
+ *
+ * Every job gets a fingerprint from the workflow version, its name and command
+ * line and the fingerprints of its parents, so a change anywhere upstream changes
+ * every fingerprint below it.  Root jobs also take the identity (path, size,
+ * modification time) of the workflow inputs, as do jobs given the identity of
+ * inputs only read below them (e.g. the BAMs of one donor in a batch).  Commands are wrapped by bin/memo.sh
+ * which, on success, writes memo_dir/FINGERPRINT.done listing the files the job
+ * wrote.  Only the paths the job declares are searched for them, leaving out paths
+ * other jobs declare below those, so files written by jobs running alongside are
+ * not taken as its own.  Jobs declaring no files search the whole output directory.
+ *
+ * When the workflow is built a job is dropped if its record exists and either the
+ * files it wrote are unchanged or none of its children will run.  Children that do
+ * run are attached to the nearest ancestors that also run.
+ */
+public class Memoiser {
+
+  private final File memoDir;
+  private final String outDir;
+  private final String memoScript;
+
+  /**
+   * @param memoDir Where completion records are kept
+   * @param outDir Directory the jobs write to, scanned for the files of jobs declaring none
+   * @param memoScript Path to bin/memo.sh as installed with the bundle
+   */
+  public Memoiser(File memoDir, String outDir, String memoScript) {
+    this.memoDir = memoDir;
+    this.outDir = outDir;
+    this.memoScript = memoScript;
+  }
+
+  /**
+   * Fingerprints all jobs, removes the completed ones from the graph and wraps the
+   * commands of the rest so they record their completion.  Must be called once
+   * threads have been planned as the resolved command is part of the fingerprint.
+   *
+   * @param graph The workflow DAG
+   * @param version Workflow name and version
+   * @param inputs Identity of the workflow inputs, see {@link #fileIdentity(String)}
+   * @return Number of jobs skipped
+   */
+  public int apply(JobGraph graph, String version, String inputs) {
+    Map<GraphJob, String> fingerprints = fingerprint(graph, version, inputs);
+
+    Map<GraphJob, List<GraphJob>> children = new HashMap<GraphJob, List<GraphJob>>();
+    for(GraphJob job : graph.getJobs()) {
+      children.put(job, new ArrayList<GraphJob>());
+      for(GraphJob parent : job.getParents()) {
+        children.get(parent).add(job);
+      }
+    }
+
+    // children always come after parents so walking backwards sees them first
+    Set<GraphJob> skip = new HashSet<GraphJob>();
+    List<GraphJob> jobs = graph.getJobs();
+    for(int i=jobs.size()-1; i>=0; i--) {
+      GraphJob job = jobs.get(i);
+      if(!job.isMemoise()) {
+        continue;
+      }
+      File record = new File(memoDir, fingerprints.get(job) + ".done");
+      if(!record.isFile()) {
+        continue;
+      }
+      boolean childRuns = false;
+      for(GraphJob child : children.get(job)) {
+        if(!skip.contains(child)) {
+          childRuns = true;
+          break;
+        }
+      }
+      if(!childRuns || outputsIntact(record)) {
+        skip.add(job);
+      }
+    }
+
+    Set<String> declared = new LinkedHashSet<String>();
+    for(GraphJob job : jobs) {
+      declared.addAll(job.getWrites());
+    }
+    List<GraphJob> kept = new ArrayList<GraphJob>();
+    for(GraphJob job : jobs) {
+      if(skip.contains(job)) {
+        continue;
+      }
+      Set<GraphJob> parents = new LinkedHashSet<GraphJob>();
+      Set<GraphJob> visited = new HashSet<GraphJob>();
+      for(GraphJob parent : job.getParents()) {
+        addRunningAncestors(parent, skip, parents, visited);
+      }
+      job.getParents().clear();
+      job.getParents().addAll(parents);
+      if(job.isMemoise()) {
+        wrap(job, fingerprints.get(job), declared);
+      }
+      kept.add(job);
+    }
+    jobs.clear();
+    jobs.addAll(kept);
+    return skip.size();
+  }
+
+  /**
+   * @return Fingerprint (hex SHA-1) of every job in the graph
+   */
+  public static Map<GraphJob, String> fingerprint(JobGraph graph, String version, String inputs) {
+    Map<GraphJob, String> fingerprints = new HashMap<GraphJob, String>();
+    for(GraphJob job : graph.getJobs()) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(version).append('\n').append(job.getName()).append('\n');
+      for(String arg : job.getResolvedArguments()) {
+        sb.append(arg).append('\n');
+      }
+      if(job.getParents().isEmpty()) {
+        sb.append(inputs).append('\n');
+      }
+      if(job.getInputs() != null) {
+        sb.append(job.getInputs()).append('\n');
+      }
+      for(GraphJob parent : job.getParents()) {
+        sb.append(fingerprints.get(parent)).append('\n');
+      }
+      fingerprints.put(job, sha1(sb.toString()));
+    }
+    return fingerprints;
+  }
+
+  /**
+   * @param path A workflow input, local path or URL
+   * @return path:size:mtime for readable local files, otherwise the path itself
+   */
+  public static String fileIdentity(String path) {
+    File file = new File(path);
+    if(path.startsWith("/") && file.isFile()) {
+      return path + ":" + file.length() + ":" + file.lastModified();
+    }
+    return path;
+  }
+
+  private void wrap(GraphJob job, String fingerprint, Set<String> declared) {
+    StringBuilder original = new StringBuilder();
+    for(String arg : job.getResolvedArguments()) {
+      if(original.length() > 0) {
+        original.append(' ');
+      }
+      original.append(arg);
+    }
+    List<String> args = job.getCommand().getArguments();
+    args.clear();
+    args.add(memoScript + " " + memoDir.getPath() + " " + outDir + " " + fingerprint);
+    args.add(quote(original.toString()));
+    for(String path : job.getWrites()) {
+      args.add(quote(path));
+    }
+    // e.g. the battenberg bundle unpacked into reference_files by another job
+    for(String other : declared) {
+      for(String path : job.getWrites()) {
+        if(other.startsWith(path + "/") && !job.getWrites().contains(other)) {
+          args.add(quote("!" + other));
+          break;
+        }
+      }
+    }
+  }
+
+  private static String quote(String arg) {
+    return "'" + arg.replace("'", "'\\''") + "'";
+  }
+
+  private static void addRunningAncestors(GraphJob job, Set<GraphJob> skip, Set<GraphJob> found, Set<GraphJob> visited) {
+    if(!visited.add(job)) {
+      return;
+    }
+    if(!skip.contains(job)) {
+      found.add(job);
+      return;
+    }
+    for(GraphJob parent : job.getParents()) {
+      addRunningAncestors(parent, skip, found, visited);
+    }
+  }
+
+  // lines are 'size mtime_s path' as written by stat in memo.sh
+  private static boolean outputsIntact(File record) {
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(record), "UTF-8"));
+      try {
+        String line;
+        while((line = reader.readLine()) != null) {
+          String[] cols = line.split(" ", 3);
+          if(cols.length < 3) {
+            continue;
+          }
+          Path path = new File(cols[2]).toPath();
+          if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+          }
+          BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          if(attr.size() != Long.parseLong(cols[0])
+            || attr.lastModifiedTime().to(TimeUnit.SECONDS) != Long.parseLong(cols[1])) {
+            return false;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch(IOException e) {
+      return false;
+    } catch(NumberFormatException e) {
+      return false;
+    }
+    return true;
+  }
+
+  static String sha1(String text) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(text.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for(byte b : digest) {
+        sb.append(String.format("%02x", b & 0xFF));
+      }
+      return sb.toString();
+    } catch(NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package io.seqware.pancancer;
+
+import io.seqware.pancancer.TimingLibrary.Timing;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Peak memory of each step as recorded by earlier runs (Max_kb of the TIMEDIR
+ * files), used to request what the step needs instead of a fixed guess.
+ *
+ * The request for a step is the largest peak recorded for any of its shards plus
+ * a safety margin.  When a run also recorded the size of its input BAMs
+ * (TIMEDIR/input_bytes) a peak is scaled up for larger inputs, never down as
+ * much of the memory used doesn't depend on the input.
+ */
+public class MemoryProfile {
+
+  private final double margin;
+  private final int minimumMb;
+  // alg_process to {max_kb, input bytes of the run or 0}
+  private final Map<String, List<long[]>> peaks = new HashMap<String, List<long[]>>();
+  private int records = 0;
+
+  /**
+   * @param margin Factor applied to the recorded peak, e.g. 1.25
+   * @param minimumMb Smallest request made
+   */
+  public MemoryProfile(double margin, int minimumMb) {
+    this.margin = margin;
+    this.minimumMb = minimumMb;
+  }
+
+  /**
+   * Adds all timing files found under a path.
+   *
+   * @param path A TIMEDIR or a directory holding several
+   * @throws IOException When a timing file can't be read
+   */
+  public void load(File path) throws IOException {
+    File[] children = path.listFiles();
+    if(children == null) {
+      return;
+    }
+    long inputBytes = readInputBytes(new File(path, "input_bytes"));
+    for(File child : children) {
+      if(child.isDirectory()) {
+        load(child);
+        continue;
+      }
+      Matcher m = TimingLibrary.TIMING_FILE.matcher(child.getName());
+      if(!m.matches()) {
+        continue;
+      }
+      Timing timing = TimingLibrary.parse(child);
+      if(timing == null) {
+        continue;
+      }
+      String stage = m.group(2) + "_" + m.group(3);
+      List<long[]> list = peaks.get(stage);
+      if(list == null) {
+        list = new ArrayList<long[]>();
+        peaks.put(stage, list);
+      }
+      list.add(new long[] {timing.getMaxKb(), inputBytes});
+      records++;
+    }
+  }
+
+  /**
+   * @param inputBytes Size of the input BAMs of this run, 0 when unknown or not relevant
+   * @return Memory in MB to request for the step, null when it was never recorded
+   */
+  public Integer requestMb(String alg, String process, long inputBytes) {
+    List<long[]> list = peaks.get(alg + "_" + process);
+    if(list == null) {
+      return null;
+    }
+    double peakKb = 0;
+    for(long[] peak : list) {
+      double scale = 1;
+      if(inputBytes > 0 && peak[1] > 0) {
+        scale = Math.max(1, (double) inputBytes / peak[1]);
+      }
+      peakKb = Math.max(peakKb, peak[0] * scale);
+    }
+    return Math.max(minimumMb, (int) Math.ceil(peakKb * margin / 1024));
+  }
+
+  public int size() {
+    return records;
+  }
+
+  private static long readInputBytes(File file) throws IOException {
+    if(!file.isFile()) {
+      return 0;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      return line == null ? 0 : Long.parseLong(line.trim());
+    } catch(NumberFormatException e) {
+      throw new IOException("Malformed input size: " + file.getPath(), e);
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,377 @@
+package io.seqware.pancancer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Progress of a running workflow from the plan written by its first job
+ * (TIMEDIR/progress/plan.tsv, see {@link #plan(JobGraph, CriticalPath, int, String)})
+ * and the telemetry of the timed jobs (see bin/timed.sh), kept in
+ * TIMEDIR/progress/status.json and optionally served over HTTP on localhost:
+ *
+ *   java -cp classes io.seqware.pancancer.ProgressMonitor -p 8642 -i 60 /path/to/output_dir
+ *   curl -s http://localhost:8642/status
+ *
+ * Timed jobs are counted as pending, running, done or failed for each donor, tumour
+ * and caller.  The ETA is the longer of the longest chain of remaining work and the
+ * remaining work spread over coresAddressable, weighed with the durations recorded
+ * by earlier runs (timingHistory), jobs that were never recorded are counted as
+ * unestimated.  Jobs skipped as completed by an earlier launch are not part of the
+ * plan.  The monitor stops once no job is pending or running, once a job failed and
+ * nothing runs any more, or when the plan is removed.
+ */
+public class ProgressMonitor {
+
+  public static final String PLAN = "timings/progress/plan.tsv";
+  public static final String STATUS = "timings/progress/status.json";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static class PlanJob {
+    private String id;
+    private final List<PlanJob> children = new ArrayList<PlanJob>();
+    // NaN when never recorded
+    private double estimate;
+    // relative to the output dir, null for untimed jobs
+    private String timing;
+    private String stage;
+    private boolean done = false;
+  }
+
+  private final File outDir;
+  private final List<PlanJob> jobs = new ArrayList<PlanJob>();
+  private int cores = 1;
+  // files older than the plan were left by an earlier launch
+  private final long planned;
+  private int lastPending = 0;
+  private int lastRunning = 0;
+  private int lastFailed = 0;
+
+  /**
+   * @param outDir Output directory of the run, holding {@link #PLAN}
+   */
+  public ProgressMonitor(File outDir) throws IOException {
+    this.outDir = outDir;
+    File plan = new File(outDir, PLAN);
+    planned = plan.lastModified();
+    Map<String, PlanJob> byId = new HashMap<String, PlanJob>();
+    for(String line : Files.readAllLines(plan.toPath(), UTF8)) {
+      if(line.startsWith("# cores ")) {
+        cores = Integer.valueOf(line.substring(8).trim());
+        continue;
+      }
+      if(line.startsWith("#") || line.isEmpty()) {
+        continue;
+      }
+      // id, parents, estimate_s, timing file, stage
+      String[] fields = line.split("\t", -1);
+      if(fields.length != 5) {
+        throw new IOException("Malformed plan line: " + line);
+      }
+      PlanJob job = new PlanJob();
+      job.id = fields[0];
+      if(!fields[1].isEmpty()) {
+        for(String parent : fields[1].split(",")) {
+          PlanJob p = byId.get(parent);
+          if(p == null) {
+            throw new IOException("Job " + job.id + " listed before its parent " + parent);
+          }
+          p.children.add(job);
+        }
+      }
+      job.estimate = fields[2].isEmpty() ? Double.NaN : Double.parseDouble(fields[2]);
+      job.timing = fields[3].isEmpty() ? null : fields[3];
+      job.stage = fields[4];
+      byId.put(job.id, job);
+      jobs.add(job);
+    }
+  }
+
+  /**
+   * @param graph The final workflow DAG
+   * @param path Estimates from earlier runs
+   * @param cores coresAddressable
+   * @param rootDir Output directory of the run, timing files are listed relative to it
+   * @return Content of {@link #PLAN}
+   */
+  public static String plan(JobGraph graph, CriticalPath path, int cores, String rootDir) {
+    Map<GraphJob, String> ids = TaskGraph.ids(graph);
+    StringBuilder sb = new StringBuilder();
+    sb.append("# cores ").append(cores).append('\n');
+    sb.append("#id\tparents\testimate_s\ttiming\tstage\n");
+    for(GraphJob job : graph.getJobs()) {
+      sb.append(ids.get(job)).append('\t');
+      for(int i=0; i<job.getParents().size(); i++) {
+        if(i > 0) {
+          sb.append(',');
+        }
+        sb.append(ids.get(job.getParents().get(i)));
+      }
+      sb.append('\t');
+      Double estimate = path.recorded(job);
+      if(estimate != null) {
+        sb.append(Math.round(estimate));
+      }
+      sb.append('\t');
+      String stage = "";
+      if(job.getTimingFile() != null) {
+        String timing = job.getTimingFile();
+        if(timing.startsWith(rootDir + "/")) {
+          timing = timing.substring(rootDir.length() + 1);
+        }
+        sb.append(timing);
+        // donor dir in batch mode, then tumour and caller
+        String donor = timing.contains("/timings/") ? timing.substring(0, timing.indexOf("/timings/")) : "";
+        stage = donor + "/" + job.getTumourCount() + "/" + job.getAlg();
+      }
+      sb.append('\t').append(stage).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param now Current time in ms
+   * @return The status document as JSON
+   */
+  public synchronized String status(long now) throws IOException {
+    int pending = 0, running = 0, done = 0, failed = 0, unestimated = 0;
+    Map<String, int[]> stages = new LinkedHashMap<String, int[]>();
+    Map<PlanJob, Double> left = new HashMap<PlanJob, Double>();
+    List<String> runningJobs = new ArrayList<String>();
+    List<String> failedJobs = new ArrayList<String>();
+    double work = 0;
+    for(PlanJob job : jobs) {
+      if(job.timing == null) {
+        left.put(job, 0d);
+        continue;
+      }
+      int[] counts = stages.get(job.stage);
+      if(counts == null) {
+        counts = new int[4];
+        stages.put(job.stage, counts);
+      }
+      double seconds = Double.isNaN(job.estimate) ? 0 : job.estimate;
+      File timing = new File(outDir, job.timing);
+      File telemetry = new File(timing.getParentFile(), "telemetry/" + timing.getName());
+      File marker = new File(telemetry.getPath() + ".running");
+      File record = new File(telemetry.getPath() + ".json");
+      if(job.done) {
+        seconds = 0;
+        done++;
+        counts[2]++;
+      }
+      else if(current(marker)) {
+        double elapsed = now / 1000d - startOf(marker);
+        seconds = Math.max(0, seconds - elapsed);
+        running++;
+        counts[1]++;
+        runningJobs.add("{\"job\":" + Json.quote(job.id) + ",\"elapsed_s\":" + Math.round(elapsed) + "}");
+        if(Double.isNaN(job.estimate)) {
+          unestimated++;
+        }
+      }
+      else if(current(record) && exitOf(record) != 0) {
+        seconds = 0;
+        failed++;
+        counts[3]++;
+        failedJobs.add(Json.quote(job.id));
+      }
+      else if(current(record) || current(timing)) {
+        // finished jobs don't run again until the workflow is relaunched
+        job.done = true;
+        seconds = 0;
+        done++;
+        counts[2]++;
+      }
+      else {
+        pending++;
+        counts[0]++;
+        if(Double.isNaN(job.estimate)) {
+          unestimated++;
+        }
+      }
+      left.put(job, seconds);
+      work += seconds;
+    }
+
+    // children always follow their parents in the plan
+    double longest = 0;
+    Map<PlanJob, Double> remaining = new HashMap<PlanJob, Double>();
+    for(int i=jobs.size()-1; i>=0; i--) {
+      PlanJob job = jobs.get(i);
+      double after = 0;
+      for(PlanJob child : job.children) {
+        after = Math.max(after, remaining.get(child));
+      }
+      remaining.put(job, left.get(job) + after);
+      longest = Math.max(longest, left.get(job) + after);
+    }
+    double eta = Math.max(longest, work / cores);
+    lastPending = pending;
+    lastRunning = running;
+    lastFailed = failed;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"updated_s\":").append(now / 1000)
+      .append(",\"pending\":").append(pending)
+      .append(",\"running\":").append(running)
+      .append(",\"done\":").append(done)
+      .append(",\"failed\":").append(failed)
+      .append(",\"eta_s\":").append(Math.round(eta))
+      .append(",\"critical_path_s\":").append(Math.round(longest))
+      .append(",\"remaining_work_s\":").append(Math.round(work))
+      .append(",\"unestimated\":").append(unestimated)
+      .append(",\"stages\":[");
+    boolean first = true;
+    for(Map.Entry<String, int[]> e : stages.entrySet()) {
+      String[] parts = e.getKey().split("/", -1);
+      int[] c = e.getValue();
+      sb.append(first ? "" : ",")
+        .append("\n{\"donor\":").append(Json.quote(parts[0]))
+        .append(",\"tumour\":").append(parts[1])
+        .append(",\"alg\":").append(Json.quote(parts[2]))
+        .append(",\"pending\":").append(c[0])
+        .append(",\"running\":").append(c[1])
+        .append(",\"done\":").append(c[2])
+        .append(",\"failed\":").append(c[3]).append('}');
+      first = false;
+    }
+    sb.append("],\n\"running_jobs\":").append(runningJobs)
+      .append(",\n\"failed_jobs\":").append(failedJobs).append("}\n");
+    return sb.toString();
+  }
+
+  /**
+   * @return true when, as of the last status, nothing is left to run or a job
+   * failed and nothing runs any more
+   */
+  public synchronized boolean isFinished() {
+    return lastPending + lastRunning == 0 || lastFailed > 0 && lastRunning == 0;
+  }
+
+  /**
+   * Writes {@link #STATUS}, replacing the previous one in a single rename.
+   *
+   * @return The status written
+   */
+  public String writeStatus() throws IOException {
+    String status = status(System.currentTimeMillis());
+    File out = new File(outDir, STATUS);
+    File tmp = new File(out.getPath() + ".tmp");
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+    try {
+      writer.print(status);
+    } finally {
+      writer.close();
+    }
+    Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return status;
+  }
+
+  private boolean current(File file) {
+    return file.isFile() && file.lastModified() >= planned;
+  }
+
+  // first field of the marker written by timed.sh, now when it can't be read
+  private static double startOf(File marker) {
+    try {
+      String text = new String(Files.readAllBytes(marker.toPath()), UTF8).trim();
+      return Double.parseDouble(text.split("\\s+")[0]);
+    } catch(IOException e) {
+      return System.currentTimeMillis() / 1000d;
+    } catch(NumberFormatException e) {
+      return System.currentTimeMillis() / 1000d;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int exitOf(File record) throws IOException {
+    String text = new String(Files.readAllBytes(record.toPath()), UTF8).trim();
+    Map<String, Object> json = (Map<String, Object>) Json.parse(text);
+    Object exit = json.get("exit");
+    return exit == null ? 0 : ((Number) exit).intValue();
+  }
+
+  public static void main(String[] args) throws Exception {
+    File outDir = null;
+    int port = 0;
+    int interval = 60;
+    boolean once = false;
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-p")) {
+        port = Integer.valueOf(args[++i]);
+      }
+      else if(args[i].equals("-i")) {
+        interval = Integer.valueOf(args[++i]);
+      }
+      else if(args[i].equals("-1")) {
+        once = true;
+      }
+      else {
+        outDir = new File(args[i]);
+      }
+    }
+    if(outDir == null) {
+      System.err.println("USAGE: ProgressMonitor [-p port] [-i interval_s] [-1] output_dir");
+      System.exit(1);
+    }
+
+    final ProgressMonitor monitor = new ProgressMonitor(outDir);
+    if(once) {
+      System.out.print(monitor.writeStatus());
+      return;
+    }
+    HttpServer server = null;
+    if(port > 0) {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          byte[] body = monitor.status(System.currentTimeMillis()).getBytes(UTF8);
+          exchange.getResponseHeaders().set("Content-Type", "application/json");
+          exchange.sendResponseHeaders(200, body.length);
+          OutputStream os = exchange.getResponseBody();
+          try {
+            os.write(body);
+          } finally {
+            os.close();
+          }
+        }
+      });
+      server.start();
+      System.out.println("Serving progress on http://localhost:" + port + "/status");
+    }
+    File plan = new File(outDir, PLAN);
+    try {
+      while(plan.isFile()) {
+        monitor.writeStatus();
+        if(monitor.isFinished()) {
+          System.out.println("Workflow " + (monitor.lastFailed > 0 ? "stopped after a failure" : "completed") + ", monitor exiting");
+          break;
+        }
+        Thread.sleep(interval * 1000L);
+      }
+    } finally {
+      if(server != null) {
+        server.stop(0);
+      }
+    }
+  }
+}
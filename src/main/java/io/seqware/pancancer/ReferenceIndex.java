@@ -0,0 +1,192 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Contig level view of the reference, built from the samtools faidx file.
+ *
+ * Used at DAG build time to decide how per-contig steps are spread over jobs.
+ * Contig indexes are the 1-based line number in the fai file which is what the
+ * CGP tools expect for their '-i' option.
+ */
+public class ReferenceIndex {
+
+  public static class Contig {
+    private final String name;
+    private final int index;
+    private final long length;
+    private long masked = 0;
+
+    Contig(String name, int index, long length) {
+      this.name = name;
+      this.index = index;
+      this.length = length;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return Bases that will actually be processed, length minus any masked regions.
+     */
+    public long getEffectiveBases() {
+      long effective = length - masked;
+      if(effective < 0) {
+        effective = 0;
+      }
+      return effective;
+    }
+  }
+
+  private final Map<String, Contig> contigs = new LinkedHashMap<String, Contig>();
+
+  private ReferenceIndex() {
+  }
+
+  /**
+   * @param fai A samtools faidx file (genome.fa.fai)
+   * @return The index, contigs in file order
+   * @throws IOException When the file can't be read or is malformed
+   */
+  public static ReferenceIndex load(File fai) throws IOException {
+    ReferenceIndex ref = new ReferenceIndex();
+    BufferedReader reader = open(fai);
+    try {
+      String line;
+      int index = 0;
+      while((line = reader.readLine()) != null) {
+        if(line.length() == 0) {
+          continue;
+        }
+        String[] cols = line.split("\t");
+        if(cols.length < 2) {
+          throw new IOException("Malformed fai line " + (index+1) + " in " + fai.getPath());
+        }
+        index++;
+        ref.contigs.put(cols[0], new Contig(cols[0], index, Long.parseLong(cols[1])));
+      }
+    } finally {
+      reader.close();
+    }
+    if(ref.contigs.isEmpty()) {
+      throw new IOException("No contigs found in " + fai.getPath());
+    }
+    return ref;
+  }
+
+  /**
+   * Removes regions the tools will skip (e.g. the ucscHiDepth files) from the
+   * effective size of each contig.  Accepts BED or the CaVEMan ignore TSV
+   * (chr, start, end), optionally gzipped.
+   *
+   * @param regions File of regions to mask
+   * @throws IOException When the file can't be read or is malformed
+   */
+  public void maskRegions(File regions) throws IOException {
+    BufferedReader reader = open(regions);
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+          continue;
+        }
+        String[] cols = line.split("\t");
+        if(cols.length < 3) {
+          throw new IOException("Malformed region line in " + regions.getPath() + ": " + line);
+        }
+        Contig contig = contigs.get(cols[0]);
+        if(contig == null) {
+          continue;
+        }
+        long span = Long.parseLong(cols[2]) - Long.parseLong(cols[1]);
+        if(span > 0) {
+          contig.masked += span;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Removes contigs matching an exclude list as used by the CGP tools, e.g.
+   * 'MT,GL%,hs37d5' where '%' matches any run of characters.  Remaining contigs
+   * are renumbered so that indexes match the tools' view of the filtered list.
+   *
+   * @param excludeList Comma separated names/patterns, may be null or empty
+   * @return A new index of the remaining contigs in file order
+   */
+  public ReferenceIndex exclude(String excludeList) {
+    List<Pattern> patterns = new ArrayList<Pattern>();
+    if(excludeList != null) {
+      for(String item : excludeList.split(",")) {
+        item = item.trim();
+        if(item.length() == 0) {
+          continue;
+        }
+        StringBuilder regex = new StringBuilder();
+        for(String part : item.split("%", -1)) {
+          if(regex.length() > 0) {
+            regex.append(".*");
+          }
+          regex.append(Pattern.quote(part));
+        }
+        patterns.add(Pattern.compile(regex.toString()));
+      }
+    }
+    ReferenceIndex ref = new ReferenceIndex();
+    int index = 0;
+    for(Contig contig : contigs.values()) {
+      boolean excluded = false;
+      for(Pattern pattern : patterns) {
+        if(pattern.matcher(contig.getName()).matches()) {
+          excluded = true;
+          break;
+        }
+      }
+      if(!excluded) {
+        index++;
+        Contig kept = new Contig(contig.getName(), index, contig.getLength());
+        kept.masked = contig.masked;
+        ref.contigs.put(kept.getName(), kept);
+      }
+    }
+    return ref;
+  }
+
+  public List<Contig> getContigs() {
+    return new ArrayList<Contig>(contigs.values());
+  }
+
+  public int size() {
+    return contigs.size();
+  }
+
+  private static BufferedReader open(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    if(file.getName().endsWith(".gz")) {
+      in = new GZIPInputStream(in);
+    }
+    return new BufferedReader(new InputStreamReader(in, "UTF-8"));
+  }
+}
@@ -0,0 +1,149 @@
+package io.seqware.pancancer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Assigns threads and memory to the elastic jobs of a {@link JobGraph} (see
+ * {@link GraphJob#setElastic(int)}) based on which of them can run at the same time.
+ *
+ * Two jobs can overlap when neither is an ancestor of the other.  For each elastic
+ * job the largest set of mutually overlapping elastic jobs that includes it is
+ * found (a maximum antichain, via Dilworth's theorem and bipartite matching) and
+ * the cores and memory of the host are split evenly across that set.  For a
+ * single tumour pindel, BRASS assemble and CaVEMan mstep can all be running, so
+ * each gets a third of the host rather than all of it.
+ *
+ * Single threaded and fixed thread jobs are not counted, the scheduler fits them
+ * into whatever remains.
+ */
+public class ResourcePlanner {
+
+  private final int cores;
+  private final int memHostMbAvailable;
+  private final int memWorkflowOverhead;
+
+  /**
+   * @param cores Cores addressable by the workflow
+   * @param memHostMbAvailable Memory in MB available on the host
+   * @param memWorkflowOverhead Memory in MB reserved for the workflow engine
+   */
+  public ResourcePlanner(int cores, int memHostMbAvailable, int memWorkflowOverhead) {
+    this.cores = cores;
+    this.memHostMbAvailable = memHostMbAvailable;
+    this.memWorkflowOverhead = memWorkflowOverhead;
+  }
+
+  /**
+   * Sets threads and per-thread memory on every elastic job of the graph.
+   *
+   * @param graph The complete workflow DAG
+   * @throws RuntimeException When the memory available can't hold a single thread of a job
+   */
+  public void plan(JobGraph graph) {
+    List<GraphJob> elastic = new ArrayList<GraphJob>();
+    for(GraphJob job : graph.getJobs()) {
+      if(job.isElastic()) {
+        elastic.add(job);
+      }
+    }
+    if(elastic.isEmpty()) {
+      return;
+    }
+
+    int n = elastic.size();
+    boolean[][] before = reachability(graph, elastic);
+    int memoryAvail = memHostMbAvailable - memWorkflowOverhead;
+
+    for(int j=0; j<n; j++) {
+      List<Integer> overlapping = new ArrayList<Integer>();
+      for(int k=0; k<n; k++) {
+        if(k != j && !before[j][k] && !before[k][j]) {
+          overlapping.add(k);
+        }
+      }
+      int width = 1 + maxAntichain(overlapping, before);
+
+      GraphJob job = elastic.get(j);
+      int perThread = job.getMemPerThread();
+      if(memoryAvail < perThread) {
+        throw new RuntimeException("memHostMbAvailable - memWorkflowOverhead = memoryAvail (" +
+                                  memHostMbAvailable + " - " + memWorkflowOverhead + " = " + memoryAvail +
+                                  ") is less than one of the mem*PerThread parameters in provided ini file.");
+      }
+      // more overlapping jobs than cores or memory, the scheduler queues them
+      int threads = Math.max(1, Math.min(cores / width, (memoryAvail / width) / perThread));
+      job.setThreads(threads);
+      job.setMaxMemory(Integer.toString(perThread + (memWorkflowOverhead / threads)));
+      System.out.println("Resource plan: " + job.getName() + " " + threads + " threads, "
+                        + width + " threaded jobs may overlap");
+    }
+  }
+
+  /**
+   * @return before[a][b] is true when elastic job a is an ancestor of elastic job b
+   */
+  private static boolean[][] reachability(JobGraph graph, List<GraphJob> elastic) {
+    Map<GraphJob, Integer> position = new HashMap<GraphJob, Integer>();
+    for(int i=0; i<elastic.size(); i++) {
+      position.put(elastic.get(i), i);
+    }
+    // jobs are in creation order so parents are always resolved before children
+    Map<GraphJob, Set<Integer>> elasticAncestors = new HashMap<GraphJob, Set<Integer>>();
+    boolean[][] before = new boolean[elastic.size()][elastic.size()];
+    for(GraphJob job : graph.getJobs()) {
+      Set<Integer> ancestors = new HashSet<Integer>();
+      for(GraphJob parent : job.getParents()) {
+        ancestors.addAll(elasticAncestors.get(parent));
+        Integer parentPos = position.get(parent);
+        if(parentPos != null) {
+          ancestors.add(parentPos);
+        }
+      }
+      elasticAncestors.put(job, ancestors);
+      Integer pos = position.get(job);
+      if(pos != null) {
+        for(Integer ancestor : ancestors) {
+          before[ancestor][pos] = true;
+        }
+      }
+    }
+    return before;
+  }
+
+  /**
+   * Size of the largest antichain is the number of jobs less the size of a maximum
+   * matching in the bipartite 'is ancestor of' graph (Dilworth/Konig).
+   */
+  private static int maxAntichain(List<Integer> jobs, boolean[][] before) {
+    int n = jobs.size();
+    int[] matchedTo = new int[n];
+    Arrays.fill(matchedTo, -1);
+    int matching = 0;
+    for(int a=0; a<n; a++) {
+      if(augment(a, jobs, before, matchedTo, new boolean[n])) {
+        matching++;
+      }
+    }
+    return n - matching;
+  }
+
+  private static boolean augment(int a, List<Integer> jobs, boolean[][] before, int[] matchedTo, boolean[] seen) {
+    for(int b=0; b<jobs.size(); b++) {
+      if(seen[b] || !before[jobs.get(a)][jobs.get(b)]) {
+        continue;
+      }
+      seen[b] = true;
+      if(matchedTo[b] < 0 || augment(matchedTo[b], jobs, before, matchedTo, seen)) {
+        matchedTo[b] = a;
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,173 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+
+/**
+ * Summarises the resource samples taken by bin/sample.sh while timed jobs ran
+ * (TIMEDIR/telemetry/*.samples.tsv, see sampleInterval) for each step over any
+ * number of runs, to size the mem* properties and thread counts from data:
+ *
+ *   java -cp classes io.seqware.pancancer.SampleReport run1/timings run2/timings
+ *
+ * Per step it reports the jobs and samples seen, the cores busy (p50, p90 and
+ * max of the CPU% samples / 100), resident memory in MB (p50, p90, max), how long
+ * a job typically stays within 10% of its own peak memory (median over jobs, a
+ * short spike can be given less headroom than a plateau), storage read and write
+ * in MB/s (p90) and the most threads seen.  Steps mostly below their threads in
+ * busy cores while moving data are waiting on I/O rather than CPU bound.
+ */
+public class SampleReport {
+
+  private static class Step {
+    private int jobs = 0;
+    private final List<Double> cores = new ArrayList<Double>();
+    private final List<Double> rssMb = new ArrayList<Double>();
+    private final List<Double> readMbs = new ArrayList<Double>();
+    private final List<Double> writeMbs = new ArrayList<Double>();
+    private final List<Double> peakHold = new ArrayList<Double>();
+    private int threads = 0;
+  }
+
+  private final Map<String, Step> steps = new TreeMap<String, Step>();
+
+  /**
+   * Adds all sample files found under a path.
+   *
+   * @param path A TIMEDIR, its telemetry directory or a directory holding several
+   * @throws IOException When a sample file can't be read
+   */
+  public void load(File path) throws IOException {
+    File[] children = path.listFiles();
+    if(children == null) {
+      return;
+    }
+    for(File child : children) {
+      if(child.isDirectory()) {
+        load(child);
+        continue;
+      }
+      String name = child.getName();
+      if(!name.endsWith(".samples.tsv")) {
+        continue;
+      }
+      Matcher m = TimingLibrary.TIMING_FILE.matcher(name.substring(0, name.length() - ".samples.tsv".length()));
+      if(!m.matches()) {
+        continue;
+      }
+      String key = m.group(2) + "_" + m.group(3);
+      Step step = steps.get(key);
+      if(step == null) {
+        step = new Step();
+        steps.put(key, step);
+      }
+      addJob(step, child);
+    }
+  }
+
+  private static void addJob(Step step, File samples) throws IOException {
+    List<long[]> rows = new ArrayList<long[]>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(samples), "UTF-8"));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(line.startsWith("#") || line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        // a line cut short when the sampler was stopped
+        if(fields.length != 6) {
+          continue;
+        }
+        long[] row = new long[6];
+        for(int i=0; i<6; i++) {
+          row[i] = Long.parseLong(fields[i]);
+        }
+        rows.add(row);
+      }
+    } catch(NumberFormatException e) {
+      throw new IOException("Malformed sample in " + samples.getPath(), e);
+    } finally {
+      reader.close();
+    }
+    if(rows.isEmpty()) {
+      return;
+    }
+
+    step.jobs++;
+    long peakKb = 0;
+    for(long[] row : rows) {
+      peakKb = Math.max(peakKb, row[2]);
+    }
+    long interval = rows.size() > 1 ? Math.max(1, rows.get(1)[0] - rows.get(0)[0]) : 1;
+    int nearPeak = 0;
+    for(int i=0; i<rows.size(); i++) {
+      long[] row = rows.get(i);
+      // the first sample has no CPU interval behind it
+      if(i > 0) {
+        step.cores.add(row[1] / 100d);
+        long[] last = rows.get(i - 1);
+        double seconds = row[0] - last[0];
+        if(seconds > 0) {
+          step.readMbs.add((row[3] - last[3]) / seconds / 1048576);
+          step.writeMbs.add((row[4] - last[4]) / seconds / 1048576);
+        }
+      }
+      step.rssMb.add(row[2] / 1024d);
+      step.threads = Math.max(step.threads, (int) row[5]);
+      if(row[2] >= peakKb * 0.9) {
+        nearPeak++;
+      }
+    }
+    step.peakHold.add((double) nearPeak * interval);
+  }
+
+  private static double percentile(List<Double> values, double fraction) {
+    if(values.isEmpty()) {
+      return 0;
+    }
+    List<Double> sorted = new ArrayList<Double>(values);
+    Collections.sort(sorted);
+    return sorted.get((int) ((sorted.size() - 1) * fraction));
+  }
+
+  /**
+   * @return One tab separated line per step with a header line
+   */
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("step\tjobs\tsamples\tcores_p50\tcores_p90\tcores_max\trss_mb_p50\trss_mb_p90\trss_mb_max"
+              + "\tpeak_hold_s\tread_mbs_p90\twrite_mbs_p90\tthreads_max\n");
+    for(Map.Entry<String, Step> e : steps.entrySet()) {
+      Step s = e.getValue();
+      sb.append(String.format(Locale.ROOT, "%s\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.0f\t%.0f\t%.0f\t%.0f\t%.1f\t%.1f\t%d\n",
+        e.getKey(), s.jobs, s.rssMb.size(),
+        percentile(s.cores, 0.5), percentile(s.cores, 0.9), percentile(s.cores, 1),
+        percentile(s.rssMb, 0.5), percentile(s.rssMb, 0.9), percentile(s.rssMb, 1),
+        percentile(s.peakHold, 0.5), percentile(s.readMbs, 0.9), percentile(s.writeMbs, 0.9), s.threads));
+    }
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if(args.length == 0) {
+      System.err.println("USAGE: SampleReport timingsDir [timingsDir...]");
+      System.exit(1);
+    }
+    SampleReport report = new SampleReport();
+    for(String arg : args) {
+      report.load(new File(arg));
+    }
+    System.out.print(report.report());
+  }
+}
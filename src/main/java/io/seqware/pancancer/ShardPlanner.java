@@ -0,0 +1,103 @@
+package io.seqware.pancancer;
+
+import io.seqware.pancancer.ReferenceIndex.Contig;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Packs contigs into a bounded number of shards with similar amounts of work.
+ *
+ * Uses longest-processing-time-first: contigs are taken largest first and each
+ * goes to the currently lightest shard.  The largest shard can never be smaller
+ * than the largest contig, so the barrier after a sharded step finishes close to
+ * the time taken by that contig rather than by several large contigs stacked
+ * into one job.
+ */
+public class ShardPlanner {
+
+  private ShardPlanner() {
+  }
+
+  /**
+   * @param contigs Contigs to distribute, weighted by effective bases
+   * @param maxShards Upper bound on the number of shards, normally the cores addressable
+   * @return Shards ordered by their lowest contig index, contigs in each shard ordered by index
+   */
+  public static List<List<Contig>> balance(List<Contig> contigs, int maxShards) {
+    if(maxShards < 1) {
+      maxShards = 1;
+    }
+    int shardCount = Math.min(maxShards, contigs.size());
+
+    List<Contig> bySize = new ArrayList<Contig>(contigs);
+    Collections.sort(bySize, new Comparator<Contig>() {
+      @Override
+      public int compare(Contig a, Contig b) {
+        int cmp = Long.compare(weight(b), weight(a));
+        if(cmp == 0) {
+          cmp = Integer.compare(a.getIndex(), b.getIndex());
+        }
+        return cmp;
+      }
+    });
+
+    List<List<Contig>> shards = new ArrayList<List<Contig>>();
+    long[] loads = new long[shardCount];
+    for(int i=0; i<shardCount; i++) {
+      shards.add(new ArrayList<Contig>());
+    }
+    for(Contig contig : bySize) {
+      int lightest = 0;
+      for(int i=1; i<shardCount; i++) {
+        if(loads[i] < loads[lightest]) {
+          lightest = i;
+        }
+      }
+      shards.get(lightest).add(contig);
+      loads[lightest] += weight(contig);
+    }
+
+    Comparator<Contig> byIndex = new Comparator<Contig>() {
+      @Override
+      public int compare(Contig a, Contig b) {
+        return Integer.compare(a.getIndex(), b.getIndex());
+      }
+    };
+    List<List<Contig>> result = new ArrayList<List<Contig>>();
+    for(List<Contig> shard : shards) {
+      if(!shard.isEmpty()) {
+        Collections.sort(shard, byIndex);
+        result.add(shard);
+      }
+    }
+    Collections.sort(result, new Comparator<List<Contig>>() {
+      @Override
+      public int compare(List<Contig> a, List<Contig> b) {
+        return Integer.compare(a.get(0).getIndex(), b.get(0).getIndex());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @param shard Contigs in a shard
+   * @return Comma separated contig indexes as understood by run_shard.sh
+   */
+  public static String indexList(List<Contig> shard) {
+    StringBuilder sb = new StringBuilder();
+    for(Contig contig : shard) {
+      if(sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(contig.getIndex());
+    }
+    return sb.toString();
+  }
+
+  // fully masked contigs still cost a tool start-up so never weigh nothing
+  private static long weight(Contig contig) {
+    return Math.max(1, contig.getEffectiveBases());
+  }
+}
@@ -0,0 +1,174 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports the DAG that CgpSomaticCore builds for an ini file as a JSON task graph
+ * so an engine other than SeqWare, e.g. one spreading the pindel, BRASS and
+ * CaVEMan jobs of a donor over several hosts, can run it.  See
+ * {@link LocalExecutor} for a single host runner of the same file.
+ *
+ *   java -cp classes:lib/seqware-distribution-1.1.1-full.jar io.seqware.pancancer.TaskGraph \
+ *     -w /opt/bundle/Workflow_Bundle_CgpSomaticCore/0.0.0 -o tasks.json config/CgpSomaticCore.ini
+ *
+ * Tasks are listed in build order, parents always before their children:
+ *
+ *   {"workflow": "...", "output_dir": "...",
+ *    "tasks": [{"id": "12_cgpPindel_pindel", "name": "cgpPindel_pindel",
+ *               "command": "...", "threads": 6, "memory_mb": 24000, "priority": 0,
+ *               "parents": ["10_cgpPindel_input", "11_cgpPindel_input"],
+ *               "inputs": ["..."], "outputs": ["..."], "timing": "0_cgpPindel_pindel_1"}]}
+ *
+ * command is run by bash from the directory the workflow would run in and uses the
+ * workflow bundle at the path given by -w, output_dir (all results and the
+ * reference) has to be shared by the hosts running the tasks.  memory_mb is for
+ * the whole task, not per thread.  priority is 0 for tasks on the critical path
+ * down to -1023, see {@link CriticalPath}.  inputs and outputs are the paths the job
+ * declares reading and writing, some are globs or name a step of a caller rather
+ * than a file.  Threads are planned for coresAddressable and memHostMbAvailable of
+ * the ini, set them to the size of one host.
+ */
+public class TaskGraph {
+
+  /**
+   * @return Id of every job, unique within the graph
+   */
+  public static Map<GraphJob, String> ids(JobGraph graph) {
+    Map<GraphJob, String> ids = new HashMap<GraphJob, String>();
+    List<GraphJob> jobs = graph.getJobs();
+    for(int i=0; i<jobs.size(); i++) {
+      ids.put(jobs.get(i), i + "_" + jobs.get(i).getName());
+    }
+    return ids;
+  }
+
+  /**
+   * @param graph The planned workflow DAG
+   * @param workflow Workflow name and version
+   * @param outputDir Directory all tasks write to
+   * @return The task graph as JSON
+   */
+  public static String toJson(JobGraph graph, String workflow, String outputDir) {
+    Map<GraphJob, String> ids = ids(graph);
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"workflow\":").append(Json.quote(workflow))
+      .append(",\"output_dir\":").append(Json.quote(outputDir))
+      .append(",\"tasks\":[");
+    boolean first = true;
+    for(GraphJob job : graph.getJobs()) {
+      if(!first) {
+        sb.append(',');
+      }
+      first = false;
+      int threads = job.getThreads() == null ? 1 : job.getThreads();
+      sb.append("\n{\"id\":").append(Json.quote(ids.get(job)))
+        .append(",\"name\":").append(Json.quote(job.getName()))
+        .append(",\"command\":").append(Json.quote(command(job)))
+        .append(",\"threads\":").append(threads);
+      if(job.getMaxMemory() != null) {
+        // as SGE reserves it, maxMemory is per thread
+        sb.append(",\"memory_mb\":").append(Integer.valueOf(job.getMaxMemory()) * threads);
+      }
+      sb.append(",\"priority\":").append(job.getPriority());
+      sb.append(",\"parents\":[");
+      for(int i=0; i<job.getParents().size(); i++) {
+        if(i > 0) {
+          sb.append(',');
+        }
+        sb.append(Json.quote(ids.get(job.getParents().get(i))));
+      }
+      sb.append(']');
+      sb.append(",\"inputs\":");
+      appendArray(sb, job.getReads());
+      sb.append(",\"outputs\":");
+      appendArray(sb, job.getWrites());
+      if(job.getTimingId() != null) {
+        sb.append(",\"timing\":").append(Json.quote(job.getTimingId()));
+      }
+      sb.append('}');
+    }
+    sb.append("\n]}\n");
+    return sb.toString();
+  }
+
+  private static void appendArray(StringBuilder sb, List<String> values) {
+    sb.append('[');
+    for(int i=0; i<values.size(); i++) {
+      if(i > 0) {
+        sb.append(',');
+      }
+      sb.append(Json.quote(values.get(i)));
+    }
+    sb.append(']');
+  }
+
+  /**
+   * @return The command line as SeqWare would write it into the job script
+   */
+  public static String command(GraphJob job) {
+    StringBuilder sb = new StringBuilder();
+    for(String arg : job.getResolvedArguments()) {
+      if(sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(arg);
+    }
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    File ini = null;
+    File out = new File("tasks.json");
+    String baseDir = "workflow";
+    Map<String, String> overrides = new LinkedHashMap<String, String>();
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-s")) {
+        String kv = args[++i];
+        int eq = kv.indexOf('=');
+        if(eq < 1) {
+          throw new IllegalArgumentException("Expected key=value for -s: " + kv);
+        }
+        overrides.put(kv.substring(0, eq), kv.substring(eq + 1));
+      }
+      else if(args[i].equals("-o")) {
+        out = new File(args[++i]);
+      }
+      else if(args[i].equals("-w")) {
+        baseDir = args[++i];
+      }
+      else {
+        ini = new File(args[i]);
+      }
+    }
+    if(ini == null) {
+      System.err.println("USAGE: TaskGraph [-s key=value...] [-o tasks.json] [-w workflowBaseDir] workflow.ini");
+      System.exit(1);
+    }
+
+    Map<String, String> config = WorkflowSimulator.loadIni(ini);
+    config.putAll(overrides);
+    JobGraph graph = CgpSomaticCore.buildOffline(config, baseDir);
+    // as CgpSomaticCore resolves OUTDIR
+    String outputDir = "outdir";
+    String prefix = config.get("output_prefix");
+    if(prefix != null && !prefix.isEmpty()) {
+      String dir = config.containsKey("output_dir") ? config.get("output_dir") : outputDir;
+      outputDir = prefix.endsWith("/") ? prefix + dir : prefix + "/" + dir;
+    }
+
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+    try {
+      writer.print(toJson(graph, Version.WORKFLOW_SHORT_NAME_VERSION, outputDir));
+    } finally {
+      writer.close();
+    }
+    System.out.println(graph.getJobs().size() + " tasks written to " + out.getPath());
+  }
+}
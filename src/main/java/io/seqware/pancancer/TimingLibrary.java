@@ -0,0 +1,157 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Timings recorded by previous runs, as written to TIMEDIR by jobs created with
+ * prepTimedJob ('tumourCount_alg_process_index' holding Wall_s, User_s, System_s
+ * and Max_kb).
+ *
+ * Records are pooled over tumours and runs.  Lookups fall back from the exact
+ * alg/process/index to the mean of all indexes of the alg/process so that
+ * sharded steps can still be estimated when the shards differ between runs.
+ */
+public class TimingLibrary {
+
+  // algs never contain '_', processes may (e.g. split_concat)
+  static final Pattern TIMING_FILE = Pattern.compile("^(\\d+)_([^_]+)_(.+)_(\\d+)$");
+
+  /**
+   * Resource use of one job.
+   */
+  public static class Timing {
+    private final double wall, user, system;
+    private final long maxKb;
+
+    Timing(double wall, double user, double system, long maxKb) {
+      this.wall = wall;
+      this.user = user;
+      this.system = system;
+      this.maxKb = maxKb;
+    }
+
+    public double getWallSeconds() {
+      return wall;
+    }
+
+    /**
+     * @return User plus system CPU seconds
+     */
+    public double getCpuSeconds() {
+      return user + system;
+    }
+
+    public long getMaxKb() {
+      return maxKb;
+    }
+  }
+
+  private final Map<String, List<Timing>> byIndex = new HashMap<String, List<Timing>>();
+  private final Map<String, List<Timing>> byProcess = new HashMap<String, List<Timing>>();
+  private int records = 0;
+
+  /**
+   * Adds all timing files found under a path.
+   *
+   * @param path A TIMEDIR, a single timing file or a directory holding several runs
+   * @throws IOException When a timing file can't be read
+   */
+  public void load(File path) throws IOException {
+    if(path.isDirectory()) {
+      File[] children = path.listFiles();
+      if(children != null) {
+        for(File child : children) {
+          load(child);
+        }
+      }
+      return;
+    }
+    Matcher m = TIMING_FILE.matcher(path.getName());
+    if(!m.matches()) {
+      return;
+    }
+    Timing timing = parse(path);
+    if(timing == null) {
+      return;
+    }
+    String process = m.group(2) + "_" + m.group(3);
+    add(byIndex, process + "_" + m.group(4), timing);
+    add(byProcess, process, timing);
+    records++;
+  }
+
+  /**
+   * @return Mean timing for the step, null when nothing was recorded for the alg/process
+   */
+  public Timing lookup(String alg, String process, int index) {
+    List<Timing> found = byIndex.get(alg + "_" + process + "_" + index);
+    if(found == null) {
+      found = byProcess.get(alg + "_" + process);
+    }
+    if(found == null) {
+      return null;
+    }
+    double wall = 0, user = 0, system = 0;
+    long maxKb = 0;
+    for(Timing t : found) {
+      wall += t.wall;
+      user += t.user;
+      system += t.system;
+      maxKb += t.maxKb;
+    }
+    int n = found.size();
+    return new Timing(wall / n, user / n, system / n, maxKb / n);
+  }
+
+  public int size() {
+    return records;
+  }
+
+  private static void add(Map<String, List<Timing>> map, String key, Timing timing) {
+    List<Timing> list = map.get(key);
+    if(list == null) {
+      list = new ArrayList<Timing>();
+      map.put(key, list);
+    }
+    list.add(timing);
+  }
+
+  // incomplete files (job killed before time wrote them) are ignored
+  static Timing parse(File file) throws IOException {
+    Map<String, String> values = new HashMap<String, String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] kv = line.trim().split("\\s+");
+        if(kv.length == 2) {
+          values.put(kv[0], kv[1]);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if(!values.containsKey("Wall_s") || !values.containsKey("User_s")
+      || !values.containsKey("System_s") || !values.containsKey("Max_kb")) {
+      return null;
+    }
+    try {
+      return new Timing(Double.parseDouble(values.get("Wall_s")),
+                        Double.parseDouble(values.get("User_s")),
+                        Double.parseDouble(values.get("System_s")),
+                        Long.parseLong(values.get("Max_kb")));
+    } catch(NumberFormatException e) {
+      throw new IOException("Malformed timing file: " + file.getPath(), e);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package io.seqware.pancancer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns the telemetry records written by bin/timed.sh (TIMEDIR/telemetry/*.json)
+ * into a trace-event timeline that can be opened in chrome://tracing or Perfetto.
+ *
+ * Each job is drawn as a slice on the first free lane of its host, and a counter
+ * track shows busy (and, when the ini is given, idle) cores.  With the ini the job
+ * graph is rebuilt so every job that waited on several parents can be reported
+ * with the parent it waited on last, which shows the barriers that held up the run.
+ *
+ * USAGE: TraceExport [-c workflow.ini [-s key=value...]] [-o trace.json] timingsDir
+ */
+public class TraceExport {
+
+  /**
+   * One job as recorded by timed.sh.
+   */
+  public static class Record {
+    private String id, alg, process, host;
+    private int tumour, index, exit;
+    private double start, end, user, system;
+    private long maxRssKb, readBytes, writeBytes;
+    private int lane;
+
+    public String getId() {
+      return id;
+    }
+
+    public double getStart() {
+      return start;
+    }
+
+    public double getEnd() {
+      return end;
+    }
+
+    public int getExit() {
+      return exit;
+    }
+
+    /**
+     * @return Mean cores used while running
+     */
+    public double getCores() {
+      double wall = end - start;
+      return wall > 0 ? (user + system) / wall : 0;
+    }
+  }
+
+  private final List<Record> records = new ArrayList<Record>();
+  private final Map<String, Record> byId = new HashMap<String, Record>();
+
+  /**
+   * @param timings A TIMEDIR (containing telemetry/) or the telemetry directory itself
+   * @throws IOException When a record can't be read or parsed
+   */
+  @SuppressWarnings("unchecked")
+  public void load(File timings) throws IOException {
+    File dir = new File(timings, "telemetry");
+    if(!dir.isDirectory()) {
+      dir = timings;
+    }
+    File[] files = dir.listFiles();
+    if(files == null) {
+      throw new IOException("Not a directory: " + dir.getPath());
+    }
+    for(File file : files) {
+      if(!file.getName().endsWith(".json")) {
+        continue;
+      }
+      String text = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+      Map<String, Object> json;
+      try {
+        json = (Map<String, Object>) Json.parse(text.trim());
+      } catch(IOException e) {
+        throw new IOException("Failed to parse " + file.getPath() + ": " + e.getMessage(), e);
+      }
+      Record r = new Record();
+      r.tumour = ((Number) json.get("tumour")).intValue();
+      r.alg = (String) json.get("alg");
+      r.process = (String) json.get("process");
+      r.index = ((Number) json.get("index")).intValue();
+      r.id = r.tumour + "_" + r.alg + "_" + r.process + "_" + r.index;
+      r.host = (String) json.get("host");
+      r.start = ((Number) json.get("start_s")).doubleValue();
+      r.end = ((Number) json.get("end_s")).doubleValue();
+      r.exit = ((Number) json.get("exit")).intValue();
+      r.user = ((Number) json.get("user_s")).doubleValue();
+      r.system = ((Number) json.get("system_s")).doubleValue();
+      r.maxRssKb = ((Number) json.get("max_rss_kb")).longValue();
+      r.readBytes = ((Number) json.get("read_bytes")).longValue();
+      r.writeBytes = ((Number) json.get("write_bytes")).longValue();
+      records.add(r);
+      byId.put(r.id, r);
+    }
+    Collections.sort(records, new Comparator<Record>() {
+      @Override
+      public int compare(Record a, Record b) {
+        return Double.compare(a.start, b.start);
+      }
+    });
+  }
+
+  public List<Record> getRecords() {
+    return records;
+  }
+
+  public Record getRecord(String timingId) {
+    return byId.get(timingId);
+  }
+
+  /**
+   * Writes the timeline in trace-event format, times relative to the first job.
+   *
+   * @param out Destination
+   * @param cores Cores addressable, 0 when unknown
+   * @param waitedOn Parent each job waited on last, keyed by timing id, may be empty
+   */
+  public void writeTrace(Writer out, int cores, Map<String, String> waitedOn) throws IOException {
+    if(records.isEmpty()) {
+      out.write("{\"traceEvents\":[]}\n");
+      return;
+    }
+    double t0 = records.get(0).start;
+    Map<String, Integer> hosts = new LinkedHashMap<String, Integer>();
+    Map<String, List<Double>> laneEnds = new HashMap<String, List<Double>>();
+    for(Record r : records) {
+      if(!hosts.containsKey(r.host)) {
+        hosts.put(r.host, hosts.size() + 1);
+        laneEnds.put(r.host, new ArrayList<Double>());
+      }
+      List<Double> ends = laneEnds.get(r.host);
+      r.lane = -1;
+      for(int i=0; i<ends.size(); i++) {
+        if(ends.get(i) <= r.start) {
+          r.lane = i;
+          break;
+        }
+      }
+      if(r.lane < 0) {
+        r.lane = ends.size();
+        ends.add(r.end);
+      }
+      else {
+        ends.set(r.lane, r.end);
+      }
+    }
+
+    List<String> events = new ArrayList<String>();
+    for(Map.Entry<String, Integer> host : hosts.entrySet()) {
+      events.add("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + host.getValue()
+                + ",\"args\":{\"name\":" + Json.quote(host.getKey()) + "}}");
+    }
+    for(Record r : records) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("{\"name\":").append(Json.quote(r.alg + "_" + r.process))
+        .append(",\"cat\":").append(Json.quote(r.alg))
+        .append(",\"ph\":\"X\",\"ts\":").append(micros(r.start - t0))
+        .append(",\"dur\":").append(micros(r.end - r.start))
+        .append(",\"pid\":").append(hosts.get(r.host))
+        .append(",\"tid\":").append(r.lane)
+        .append(",\"args\":{\"id\":").append(Json.quote(r.id))
+        .append(",\"tumour\":").append(r.tumour)
+        .append(",\"index\":").append(r.index)
+        .append(",\"exit\":").append(r.exit)
+        .append(",\"cpu_s\":").append(String.format(Locale.ROOT, "%.2f", r.user + r.system))
+        .append(",\"max_rss_kb\":").append(r.maxRssKb)
+        .append(",\"read_bytes\":").append(r.readBytes)
+        .append(",\"write_bytes\":").append(r.writeBytes);
+      if(waitedOn.containsKey(r.id)) {
+        sb.append(",\"waited_on\":").append(Json.quote(waitedOn.get(r.id)));
+      }
+      sb.append("}}");
+      events.add(sb.toString());
+    }
+    for(Map.Entry<String, Integer> host : hosts.entrySet()) {
+      for(double[] point : busyCores(host.getKey())) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\":\"cores\",\"ph\":\"C\",\"ts\":").append(micros(point[0] - t0))
+          .append(",\"pid\":").append(host.getValue())
+          .append(",\"args\":{\"busy\":").append(String.format(Locale.ROOT, "%.2f", point[1]));
+        if(cores > 0) {
+          sb.append(",\"idle\":").append(String.format(Locale.ROOT, "%.2f", Math.max(0, cores - point[1])));
+        }
+        events.add(sb.append("}}").toString());
+      }
+    }
+
+    out.write("{\"traceEvents\":[\n");
+    for(int i=0; i<events.size(); i++) {
+      out.write(events.get(i));
+      out.write(i < events.size() - 1 ? ",\n" : "\n");
+    }
+    out.write("],\"displayTimeUnit\":\"ms\"}\n");
+  }
+
+  // step function of mean busy cores on a host, one point per change
+  private List<double[]> busyCores(String host) {
+    List<double[]> changes = new ArrayList<double[]>();
+    for(Record r : records) {
+      if(r.host.equals(host)) {
+        changes.add(new double[] {r.start, r.getCores()});
+        changes.add(new double[] {r.end, -r.getCores()});
+      }
+    }
+    Collections.sort(changes, new Comparator<double[]>() {
+      @Override
+      public int compare(double[] a, double[] b) {
+        return Double.compare(a[0], b[0]);
+      }
+    });
+    List<double[]> points = new ArrayList<double[]>();
+    double busy = 0;
+    for(double[] change : changes) {
+      // clamp rounding error once everything has finished
+      busy = Math.max(0, busy + change[1]);
+      if(!points.isEmpty() && points.get(points.size() - 1)[0] == change[0]) {
+        points.get(points.size() - 1)[1] = busy;
+      }
+      else {
+        points.add(new double[] {change[0], busy});
+      }
+    }
+    return points;
+  }
+
+  /**
+   * For each job with more than one recorded parent finds the parent that finished
+   * last and how long after the first parent it did so.
+   *
+   * @return Waits ordered longest first, {child id, last parent id, seconds, parent count}
+   */
+  public List<String[]> barrierWaits(JobGraph graph) {
+    List<String[]> waits = new ArrayList<String[]>();
+    for(GraphJob job : graph.getJobs()) {
+      if(job.getTimingId() == null || !byId.containsKey(job.getTimingId())) {
+        continue;
+      }
+      Record first = null, last = null;
+      int parents = 0;
+      for(GraphJob parent : job.getParents()) {
+        Record p = parent.getTimingId() == null ? null : byId.get(parent.getTimingId());
+        if(p == null) {
+          continue;
+        }
+        parents++;
+        if(first == null || p.end < first.end) {
+          first = p;
+        }
+        if(last == null || p.end > last.end) {
+          last = p;
+        }
+      }
+      if(parents > 1) {
+        waits.add(new String[] {job.getTimingId(), last.id,
+                                String.format(Locale.ROOT, "%.0f", last.end - first.end), Integer.toString(parents)});
+      }
+    }
+    Collections.sort(waits, new Comparator<String[]>() {
+      @Override
+      public int compare(String[] a, String[] b) {
+        return Double.compare(Double.parseDouble(b[2]), Double.parseDouble(a[2]));
+      }
+    });
+    return waits;
+  }
+
+  private static long micros(double seconds) {
+    return Math.round(seconds * 1e6);
+  }
+
+  public static void main(String[] args) throws Exception {
+    File ini = null;
+    File timings = null;
+    File trace = new File("trace.json");
+    Map<String, String> overrides = new LinkedHashMap<String, String>();
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-c")) {
+        ini = new File(args[++i]);
+      }
+      else if(args[i].equals("-s")) {
+        String kv = args[++i];
+        int eq = kv.indexOf('=');
+        if(eq < 1) {
+          throw new IllegalArgumentException("Expected key=value for -s: " + kv);
+        }
+        overrides.put(kv.substring(0, eq), kv.substring(eq + 1));
+      }
+      else if(args[i].equals("-o")) {
+        trace = new File(args[++i]);
+      }
+      else {
+        timings = new File(args[i]);
+      }
+    }
+    if(timings == null) {
+      System.err.println("USAGE: TraceExport [-c workflow.ini [-s key=value...]] [-o trace.json] timingsDir");
+      System.exit(1);
+    }
+
+    TraceExport export = new TraceExport();
+    export.load(timings);
+    List<Record> records = export.getRecords();
+
+    int cores = 0;
+    Map<String, String> waitedOn = new HashMap<String, String>();
+    List<String[]> waits = new ArrayList<String[]>();
+    if(ini != null) {
+      Map<String, String> config = WorkflowSimulator.loadIni(ini);
+      config.putAll(overrides);
+      cores = Integer.valueOf(config.get("coresAddressable"));
+      waits = export.barrierWaits(CgpSomaticCore.buildOffline(config, "workflow"));
+      for(String[] wait : waits) {
+        waitedOn.put(wait[0], wait[1]);
+      }
+    }
+
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(trace), "UTF-8"));
+    try {
+      export.writeTrace(out, cores, waitedOn);
+    } finally {
+      out.close();
+    }
+
+    int failed = 0;
+    double first = Double.MAX_VALUE, last = 0, cpu = 0;
+    for(Record r : records) {
+      if(r.exit != 0) {
+        failed++;
+      }
+      first = Math.min(first, r.start);
+      last = Math.max(last, r.end);
+      cpu += r.user + r.system;
+    }
+    double span = records.isEmpty() ? 0 : last - first;
+    System.out.println("Jobs recorded: " + records.size() + " (" + failed + " failed)");
+    System.out.println(String.format("Span: %.0f s, mean busy cores %.2f%s", span, span > 0 ? cpu / span : 0,
+                       cores > 0 && span > 0 ? String.format(" of %d (%.1f%%)", cores, 100 * cpu / (span * cores)) : ""));
+    for(int i=0; i<waits.size() && i<10; i++) {
+      String[] wait = waits.get(i);
+      System.out.println("Barrier " + wait[0] + " waited " + wait[2] + " s after its first of "
+                        + wait[3] + " parents for " + wait[1]);
+    }
+    System.out.println("Timeline written to " + trace.getPath());
+  }
+}
@@ -0,0 +1,323 @@
+package io.seqware.pancancer;
+
+import io.seqware.pancancer.TimingLibrary.Timing;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Predicts wall time, memory and core utilisation of a run from the DAG that
+ * CgpSomaticCore builds for an ini file and timings recorded by earlier runs.
+ *
+ * Nothing is executed and no SeqWare engine or CGP tools are needed, only the
+ * classes of the bundle and the SeqWare jar from its lib directory, e.g.
+ *
+ *   java -cp classes:lib/seqware-distribution-1.1.1-full.jar io.seqware.pancancer.WorkflowSimulator \
+ *     -t run1/timings -t run2/timings -s coresAddressable=24 config/CgpSomaticCore.ini
+ *
+ * Jobs are started highest priority first (see {@link CriticalPath}) as soon as
+ * their parents have finished and
+ * their threads and requested memory (maxMemory x threads, as SGE reserves it) fit
+ * in coresAddressable and memHostMbAvailable - memWorkflowOverhead.  Elastic jobs
+ * are assumed to scale linearly with threads from the CPU time recorded, other jobs
+ * take the recorded wall time.  Jobs without any recorded timing, including the
+ * untimed bookkeeping jobs, are treated as instant.
+ */
+public class WorkflowSimulator {
+
+  private static class SimJob {
+    private final GraphJob job;
+    private final int threads;
+    private final int reservedMb;
+    private final double duration;
+    private final double cores;
+    private final int peakMb;
+    private int waitingOn;
+    private double end;
+
+    SimJob(GraphJob job, int threads, int reservedMb, double duration, double cores, int peakMb) {
+      this.job = job;
+      this.threads = threads;
+      this.reservedMb = reservedMb;
+      this.duration = duration;
+      this.cores = cores;
+      this.peakMb = peakMb;
+    }
+  }
+
+  // stable, jobs of equal priority keep the order they became ready in
+  private static final Comparator<SimJob> BY_PRIORITY = new Comparator<SimJob>() {
+    @Override
+    public int compare(SimJob a, SimJob b) {
+      return Integer.compare(b.job.getPriority(), a.job.getPriority());
+    }
+  };
+
+  private final int cores;
+  private final int memoryAvail;
+  private final double bucket;
+  private int untimed = 0;
+  private double wallTime = 0;
+  private double cpuSeconds = 0;
+  private int peakMb = 0;
+  private int peakReservedMb = 0;
+  private final List<double[]> buckets = new ArrayList<double[]>();
+
+  /**
+   * @param cores Cores addressable by the workflow
+   * @param memoryAvail Memory in MB the scheduler may hand out
+   * @param bucket Seconds per row of the utilisation profile
+   */
+  public WorkflowSimulator(int cores, int memoryAvail, double bucket) {
+    this.cores = cores;
+    this.memoryAvail = memoryAvail;
+    this.bucket = bucket;
+  }
+
+  public void simulate(JobGraph graph, TimingLibrary timings) {
+    Map<GraphJob, SimJob> sims = new LinkedHashMap<GraphJob, SimJob>();
+    Map<GraphJob, List<SimJob>> children = new HashMap<GraphJob, List<SimJob>>();
+    for(GraphJob job : graph.getJobs()) {
+      SimJob sim = estimate(job, timings);
+      sim.waitingOn = job.getParents().size();
+      sims.put(job, sim);
+      children.put(job, new ArrayList<SimJob>());
+      for(GraphJob parent : job.getParents()) {
+        children.get(parent).add(sim);
+      }
+    }
+
+    List<SimJob> ready = new ArrayList<SimJob>();
+    for(SimJob sim : sims.values()) {
+      if(sim.waitingOn == 0) {
+        ready.add(sim);
+      }
+    }
+    PriorityQueue<SimJob> running = new PriorityQueue<SimJob>(16, new Comparator<SimJob>() {
+      @Override
+      public int compare(SimJob a, SimJob b) {
+        return Double.compare(a.end, b.end);
+      }
+    });
+
+    double now = 0;
+    int freeCores = cores, freeMb = memoryAvail, usedMb = 0;
+    double busyCores = 0;
+    while(!ready.isEmpty() || !running.isEmpty()) {
+      // start everything that fits, highest priority first
+      Collections.sort(ready, BY_PRIORITY);
+      Iterator<SimJob> it = ready.iterator();
+      while(it.hasNext()) {
+        SimJob sim = it.next();
+        if(sim.threads <= freeCores && sim.reservedMb <= freeMb) {
+          it.remove();
+          freeCores -= sim.threads;
+          freeMb -= sim.reservedMb;
+          usedMb += sim.peakMb;
+          busyCores += sim.cores;
+          sim.end = now + sim.duration;
+          running.add(sim);
+        }
+      }
+      peakMb = Math.max(peakMb, usedMb);
+      peakReservedMb = Math.max(peakReservedMb, memoryAvail - freeMb);
+
+      SimJob done = running.poll();
+      if(done == null) {
+        throw new IllegalStateException("Simulation stalled with " + ready.size() + " jobs unable to start");
+      }
+      record(now, done.end, busyCores);
+      now = done.end;
+      freeCores += done.threads;
+      freeMb += done.reservedMb;
+      usedMb -= done.peakMb;
+      busyCores -= done.cores;
+      for(SimJob child : children.get(done.job)) {
+        if(--child.waitingOn == 0) {
+          ready.add(child);
+        }
+      }
+    }
+    wallTime = now;
+  }
+
+  private SimJob estimate(GraphJob job, TimingLibrary timings) {
+    int threads = job.getThreads() == null ? 1 : job.getThreads();
+    int reservedMb = job.getMaxMemory() == null ? 0 : Integer.valueOf(job.getMaxMemory()) * threads;
+    // a job asking for more than the host has would never start
+    threads = Math.min(threads, cores);
+    reservedMb = Math.min(reservedMb, memoryAvail);
+
+    Timing timing = null;
+    if(job.getTimingId() != null) {
+      timing = timings.lookup(job.getAlg(), job.getProcess(), job.getIndex());
+    }
+    if(timing == null) {
+      untimed++;
+      return new SimJob(job, threads, reservedMb, 0, 0, 0);
+    }
+    double duration = timing.getWallSeconds();
+    int perProcessMb = (int) (timing.getMaxKb() / 1024);
+    int memMb = perProcessMb;
+    if(job.isElastic() && timing.getCpuSeconds() > 0) {
+      // Max_kb is the largest single process, elastic tools run one per thread
+      duration = timing.getCpuSeconds() / threads;
+      memMb = perProcessMb * threads;
+    }
+    double used = duration > 0 ? Math.min(threads, timing.getCpuSeconds() / duration) : 0;
+    return new SimJob(job, threads, reservedMb, duration, used, memMb);
+  }
+
+  // spreads the busy cores between from and to over the utilisation buckets
+  private void record(double from, double to, double busyCores) {
+    cpuSeconds += (to - from) * busyCores;
+    while(from < to) {
+      int b = (int) (from / bucket);
+      while(buckets.size() <= b) {
+        buckets.add(new double[1]);
+      }
+      double bucketEnd = (b + 1) * bucket;
+      double upTo = Math.min(to, bucketEnd);
+      buckets.get(b)[0] += (upTo - from) * busyCores;
+      from = upTo;
+    }
+  }
+
+  public double getWallTime() {
+    return wallTime;
+  }
+
+  public int getPeakMb() {
+    return peakMb;
+  }
+
+  public int getPeakReservedMb() {
+    return peakReservedMb;
+  }
+
+  public int getUntimed() {
+    return untimed;
+  }
+
+  /**
+   * @return Mean fraction of the cores busy over the whole run
+   */
+  public double getUtilisation() {
+    return wallTime > 0 ? cpuSeconds / (wallTime * cores) : 0;
+  }
+
+  /**
+   * Writes 'start_s busy_cores utilisation' for each bucket.
+   */
+  public void writeProfile(PrintWriter out) {
+    out.println("#start_s\tbusy_cores\tutilisation");
+    for(int i=0; i<buckets.size(); i++) {
+      double busy = buckets.get(i)[0] / bucket;
+      out.println(String.format("%.0f\t%.2f\t%.3f", i * bucket, busy, busy / cores));
+    }
+    out.flush();
+  }
+
+  /**
+   * @return key=value pairs of a SeqWare ini file
+   */
+  static Map<String, String> loadIni(File ini) throws IOException {
+    Map<String, String> config = new LinkedHashMap<String, String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ini), "UTF-8"));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        line = line.trim();
+        int eq = line.indexOf('=');
+        if(line.startsWith("#") || eq < 1) {
+          continue;
+        }
+        config.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+      }
+    } finally {
+      reader.close();
+    }
+    return config;
+  }
+
+  private static String hms(double seconds) {
+    long s = Math.round(seconds);
+    return String.format("%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+  }
+
+  public static void main(String[] args) throws Exception {
+    File ini = null;
+    File profile = null;
+    String baseDir = "workflow";
+    double bucket = 600;
+    TimingLibrary timings = new TimingLibrary();
+    Map<String, String> overrides = new LinkedHashMap<String, String>();
+    for(int i=0; i<args.length; i++) {
+      if(args[i].equals("-t")) {
+        timings.load(new File(args[++i]));
+      }
+      else if(args[i].equals("-s")) {
+        String kv = args[++i];
+        int eq = kv.indexOf('=');
+        if(eq < 1) {
+          throw new IllegalArgumentException("Expected key=value for -s: " + kv);
+        }
+        overrides.put(kv.substring(0, eq), kv.substring(eq + 1));
+      }
+      else if(args[i].equals("-b")) {
+        bucket = Double.parseDouble(args[++i]);
+      }
+      else if(args[i].equals("-o")) {
+        profile = new File(args[++i]);
+      }
+      else if(args[i].equals("-w")) {
+        baseDir = args[++i];
+      }
+      else {
+        ini = new File(args[i]);
+      }
+    }
+    if(ini == null) {
+      System.err.println("USAGE: WorkflowSimulator -t timingDir [-t timingDir...] [-s key=value...] [-b bucket_s] [-o profile.tsv] [-w workflowBaseDir] workflow.ini");
+      System.exit(1);
+    }
+
+    Map<String, String> config = loadIni(ini);
+    config.putAll(overrides);
+    JobGraph graph = CgpSomaticCore.buildOffline(config, baseDir);
+
+    int cores = Integer.valueOf(config.get("coresAddressable"));
+    int memoryAvail = Integer.valueOf(config.get("memHostMbAvailable")) - Integer.valueOf(config.get("memWorkflowOverhead"));
+    WorkflowSimulator sim = new WorkflowSimulator(cores, memoryAvail, bucket);
+    sim.simulate(graph, timings);
+
+    System.out.println("Timing records:      " + timings.size());
+    System.out.println("Jobs:                " + graph.getJobs().size() + " (" + sim.getUntimed() + " without timings, treated as instant)");
+    System.out.println("Predicted wall time: " + hms(sim.getWallTime()));
+    System.out.println("Peak memory:         " + sim.getPeakMb() + " MB used, " + sim.getPeakReservedMb() + " MB requested of " + memoryAvail + " MB");
+    System.out.println(String.format("Core utilisation:    %.1f%% of %d cores", sim.getUtilisation() * 100, cores));
+
+    if(profile != null) {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(profile), "UTF-8"));
+      try {
+        sim.writeProfile(out);
+      } finally {
+        out.close();
+      }
+    }
+  }
+}
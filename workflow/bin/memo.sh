@@ -0,0 +1,66 @@
+#!/bin/bash
+
+# Runs a job command and, when it succeeds, records that the job with this
+# fingerprint has completed along with the files it wrote ('size mtime path' per
+# line).  The records are read when the workflow is built so a relaunch into the
+# same outdir skips completed jobs, see Memoiser.java.
+#
+# The paths given are the files the job declares, globs are expanded and a path
+# that doesn't exist (a step of a caller) stands for its directory.  Paths starting
+# with ! are left out, another job declares them.  Without paths all of outdir is
+# searched.  Files count as written when changed after the job started, by ctime
+# as tar -x and cp -l keep the mtime of their source.
+
+set -u
+
+if [[ $# -lt 4 ]]; then
+  echo "USAGE: memo.sh memo_dir outdir fingerprint 'command' [path...] [!path...]" >&2
+  exit 1
+fi
+
+memo_dir=$1
+outdir=$2
+fingerprint=$3
+command=$4
+shift 4
+
+mkdir -p "$memo_dir"
+stamp="$memo_dir/$fingerprint.running"
+# a second early, file times are coarser than a job linking a file takes
+touch -d '1 second ago' "$stamp"
+
+bash -c "$command"
+status=$?
+
+if [[ $status -eq 0 ]]; then
+  prune=(-path "$memo_dir" -o -path "$outdir/timings" -o -path "$outdir/staging" -o -path "$outdir/*/staging")
+  roots=()
+  shopt -s nullglob
+  for path in "$@"; do
+    if [[ "$path" == !* ]]; then
+      prune+=(-o -path "${path#!}")
+      continue
+    fi
+    matches=()
+    for match in $path; do
+      [[ -e "$match" || -L "$match" ]] && matches+=("$match")
+    done
+    if [[ ${#matches[@]} -gt 0 ]]; then
+      roots+=("${matches[@]}")
+    elif [[ -d $(dirname "$path") ]]; then
+      roots+=("$(dirname "$path")")
+    fi
+  done
+  shopt -u nullglob
+  if [[ $# -eq 0 ]]; then
+    roots=("$outdir")
+  fi
+  if [[ ${#roots[@]} -gt 0 ]]; then
+    find "${roots[@]}" \( "${prune[@]}" \) -prune -o \( -type f -o -type l \) -cnewer "$stamp" -print0 \
+      | sort -zu | xargs -0 -r stat -c '%s %Y %n'
+  fi > "$memo_dir/$fingerprint.tmp"
+  mv "$memo_dir/$fingerprint.tmp" "$memo_dir/$fingerprint.done"
+fi
+rm -f "$stamp"
+
+exit $status
@@ -0,0 +1,43 @@
+#!/bin/bash
+
+# Writes result files together with their .md5 (checksum only, as md5sum | awk
+# would) in a single pass, compressing on several threads when pigz is found.
+#
+# USAGE: pack.sh tar threads archive.tar.gz tar_args...
+#        pack.sh copy source dest
+
+set -ue
+set -o pipefail
+
+usage() {
+  echo "USAGE: pack.sh tar threads archive.tar.gz tar_args..." >&2
+  echo "       pack.sh copy source dest" >&2
+  exit 1
+}
+
+# checksum of stdin written to $1.md5 while it is written to $1
+write_md5() {
+  tee "$1" | md5sum | cut -d ' ' -f 1 > "$1.md5"
+}
+
+if [[ $# -lt 3 ]]; then
+  usage
+fi
+
+if [[ "$1" == "copy" ]]; then
+  write_md5 "$3" < "$2"
+  exit 0
+fi
+
+if [[ "$1" != "tar" || $# -lt 4 ]]; then
+  usage
+fi
+threads=$2
+archive=$3
+shift 3
+
+if command -v pigz > /dev/null; then
+  tar -cf - "$@" | pigz -p "$threads" -c | write_md5 "$archive"
+else
+  tar -cf - "$@" | gzip -c | write_md5 "$archive"
+fi
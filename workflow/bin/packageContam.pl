@@ -4,12 +4,19 @@ use strict;
 use warnings FATAL => qw(all);
 use autodie qw(:all);
 
-use File::Path qw(make_path);
-use File::Copy;
 use Capture::Tiny qw(capture);
+use FindBin qw($Bin);
+use Cwd qw(abs_path);
 
 use Bio::DB::Sam;
 
+# compression threads, see pack.sh
+my $threads = 1;
+if(@ARGV && $ARGV[0] eq '-t') {
+  shift @ARGV;
+  $threads = shift @ARGV;
+}
+
 my $inbase = shift @ARGV;
 my $control_bam = shift @ARGV;
 my @tumour_bams = @ARGV;
@@ -28,25 +35,21 @@ my $tumour_count = scalar @tumour_samples;
 for my $i(0..($tumour_count-1)) {
   my $tumour_path = "$inbase/$i/contamination";
 
-  # make each tumour dataset contain the normal data too
-  my $command = "cp $cntl_path/$cntl_sample* $tumour_path/.";
-  my ($stdout, $stderr, $exit) = capture { system($command); };
-  die $stderr if($exit != 0);
   my $tumour_samp = $tumour_samples[$i];
-  
-  $command = "cp -r $tumour_path $inbase/$i/verifyBamId_$tumour_samp";
-  ($stdout, $stderr, $exit) = capture { system($command); };
-  die $stderr if($exit != 0);
 
+  # each tumour dataset contains the normal data too
   my $archive = "$inbase/$tumour_samp.verifyBamId.tar.gz";
-  $command = join ' ', 'tar -C', "$inbase/$i", '-czf', $archive, "verifyBamId_$tumour_samp";
-  ($stdout, $stderr, $exit) = capture { system($command); };
+  my @cntl_files = map { "./$_" } files_in($cntl_path, "$cntl_sample*");
+  my ($stdout, $stderr, $exit) = capture { system("$Bin/pack.sh", 'tar', $threads, $archive,
+                                                  "--transform=s,^\\.,verifyBamId_$tumour_samp,",
+                                                  '-C', abs_path($tumour_path), '.', '-C', abs_path($cntl_path), @cntl_files); };
   die $stderr if($exit != 0);
-  md5file($archive);
 }
 
 sub sample_name {
   my $control_bam = shift;
+  # the workflow passes the sample name instead when it could read the header at build time
+  return $control_bam unless($control_bam =~ m/\.bam$/);
   my @lines = split /\n/, Bio::DB::Sam->new(-bam => $control_bam)->header->text;
   my $sample;
   for(@lines) {
@@ -59,8 +62,10 @@ sub sample_name {
   return $sample;
 }
 
-sub md5file {
-  my $file = shift;
-  my ($stdout, $stderr, $exit) = capture { system(qq{md5sum $file | awk '{print \$1}' > $file.md5}); };
-  die $stderr if($exit != 0);
+# names relative to base of the files matching the pattern, at least one
+sub files_in {
+  my ($base, $pattern) = @_;
+  my @files = map { substr $_, length($base) + 1 } glob "$base/$pattern";
+  die "No files found for $base/$pattern\n" unless(scalar @files);
+  return @files;
 }
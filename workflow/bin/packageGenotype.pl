@@ -4,12 +4,18 @@ use strict;
 use warnings FATAL => qw(all);
 use autodie qw(:all);
 
-use File::Path qw(make_path);
-use File::Copy;
 use Capture::Tiny qw(capture);
+use FindBin qw($Bin);
 
 use Bio::DB::Sam;
 
+# compression threads, see pack.sh
+my $threads = 1;
+if(@ARGV && $ARGV[0] eq '-t') {
+  shift @ARGV;
+  $threads = shift @ARGV;
+}
+
 my $inbase = shift @ARGV;
 my $control_bam = shift @ARGV;
 my @tumour_bams = @ARGV;
@@ -27,30 +33,16 @@ my $basepath = "$inbase/genotype";
 my $tumour_count = scalar @tumour_samples;
 for my $i(0..($tumour_count-1)) {
   my $tumour_samp = $tumour_samples[$i];
-  my $destdir = "$inbase/genotype_$tumour_samp";
-  make_path $destdir;
-
-  my $command = "cp $basepath/${tumour_samp}.full_gen*.tsv $destdir/.";
-  my ($stdout, $stderr, $exit) = capture { system($command); };
-  die $stderr if($exit != 0);
-
-  $command = "cp $basepath/${cntl_sample}.full_gen*.tsv $destdir/.";
-  ($stdout, $stderr, $exit) = capture { system($command); };
-  die $stderr if($exit != 0);
-
-  $command = "cp $basepath/${tumour_samp}_vs_${cntl_sample}.genotype.txt $destdir/.";
-  ($stdout, $stderr, $exit) = capture { system($command); };
-  die $stderr if($exit != 0);
-
-  my $archive = "$inbase/$tumour_samp.genotype.tar.gz";
-  $command = join ' ', 'tar -C', "$inbase", '-czf', $archive, "genotype_$tumour_samp";
-  ($stdout, $stderr, $exit) = capture { system($command); };
-  die $stderr if($exit != 0);
-  md5file($archive);
+  my @files = (files_in($basepath, "${tumour_samp}.full_gen*.tsv"),
+               files_in($basepath, "${cntl_sample}.full_gen*.tsv"),
+               files_in($basepath, "${tumour_samp}_vs_${cntl_sample}.genotype.txt"));
+  pack_files("$inbase/$tumour_samp.genotype.tar.gz", $basepath, "genotype_$tumour_samp", @files);
 }
 
 sub sample_name {
   my $control_bam = shift;
+  # the workflow passes the sample name instead when it could read the header at build time
+  return $control_bam unless($control_bam =~ m/\.bam$/);
   my @lines = split /\n/, Bio::DB::Sam->new(-bam => $control_bam)->header->text;
   my $sample;
   for(@lines) {
@@ -63,8 +55,17 @@ sub sample_name {
   return $sample;
 }
 
-sub md5file {
-  my $file = shift;
-  my ($stdout, $stderr, $exit) = capture { system(qq{md5sum $file | awk '{print \$1}' > $file.md5}); };
+# tar.gz of the files under base, each stored as prefix/file
+sub pack_files {
+  my ($archive, $base, $prefix, @files) = @_;
+  my ($stdout, $stderr, $exit) = capture { system("$Bin/pack.sh", 'tar', $threads, $archive, '-C', $base, "--transform=s,^,$prefix/,", @files); };
   die $stderr if($exit != 0);
 }
+
+# names relative to base of the files matching the pattern, at least one
+sub files_in {
+  my ($base, $pattern) = @_;
+  my @files = map { substr $_, length($base) + 1 } glob "$base/$pattern";
+  die "No files found for $base/$pattern\n" unless(scalar @files);
+  return @files;
+}
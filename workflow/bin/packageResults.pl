@@ -3,13 +3,21 @@
 use strict;
 use autodie qw(:all);
 use Capture::Tiny qw(capture);
+use FindBin qw($Bin);
 
 # Will process the specified folder, expects to find a *.vcf.gz and *.vcf.gz.tbi file
 # then tar.gz whole folder (content is not renamed in anyway)
 # also generates the json QC and timing metrics files
 
 if(@ARGV < 5) {
-  die "USAGE: ./packageResults.pl output_folder tumour.bam to_process type primary_vcf_extension\n"
+  die "USAGE: ./packageResults.pl [-t threads] output_folder tumour.bam|sample to_process type primary_vcf_extension\n"
+}
+
+# compression threads, see pack.sh
+my $threads = 1;
+if($ARGV[0] eq '-t') {
+  shift @ARGV;
+  $threads = shift @ARGV;
 }
 
 my $in_output_folder = shift @ARGV;
@@ -29,15 +37,16 @@ sub tar_output {
   my ($output_folder, $aliquot_id, $type, $to_process) = @_;
   # tar --exclude=*/logs -zcf ascat.tar.gz outdir/ascat
   $to_process =~ s|/$||; # make sure not trailing / as will mess up tar
-  my $tar = sprintf 'tar --exclude=*/logs -zcf %s.tar.gz %s', "$output_folder/$aliquot_id.$in_workflow_name.$in_currdate.$in_somatic_or_germline.$type", $to_process;
-  my ($stdout, $stderr, $exit) = capture { system($tar); };
+  my $archive = "$output_folder/$aliquot_id.$in_workflow_name.$in_currdate.$in_somatic_or_germline.$type.tar.gz";
+  my ($stdout, $stderr, $exit) = capture { system("$Bin/pack.sh", 'tar', $threads, $archive, '--exclude=*/logs', $to_process); };
   die $stderr if($exit != 0);
-  md5file("$output_folder/$aliquot_id.$in_workflow_name.$in_currdate.$in_somatic_or_germline.$type.tar.gz");
 }
 
 # code duplication in qc_and_metrics.pl
 sub get_aliquot_id_from_bam {
   my $bam = shift;
+  # the workflow passes the sample name instead when it could read the header at build time
+  return $bam unless($bam =~ m/\.bam$/);
   # samtools view -H PD13491a/PD13491a.bam | grep '^@RG' | perl -ne 'm/\tSM:([^\t]+)/; $x{$1}=1; END{print join("\n",keys %x),"\n";};'
   die "BAM file does not exist: $bam" unless(-e $bam);
   my $command = sprintf q{samtools view -H %s | grep '^@RG'}, $bam;
@@ -62,7 +71,8 @@ sub get_aliquot_id_from_bam {
 sub copy_rename_vcfs {
   my ($output_folder, $aliquot_id, $type, $to_process, $base_vcf) = @_;
   for my $f_type(($base_vcf, "$base_vcf.tbi")) {
-    my $source = "$to_process/*".$f_type;
+    my @sources = glob "$to_process/*".$f_type;
+    die "Expected one $to_process/*$f_type, found ".scalar @sources."\n" unless(scalar @sources == 1);
     my $dest = "$output_folder/$aliquot_id.$in_workflow_name.$in_currdate.$in_somatic_or_germline.$type";
     if($f_type =~ m/\.vcf\.gz$/) {
       $dest .= '.vcf.gz';
@@ -73,15 +83,8 @@ sub copy_rename_vcfs {
     else {
       die "Unexpected file extension $f_type\n";
     }
-    my ($stdout, $stderr, $exit) = capture { system("cp $source $dest"); };
+    my ($stdout, $stderr, $exit) = capture { system("$Bin/pack.sh", 'copy', $sources[0], $dest); };
     die $stderr if($exit != 0);
-    md5file($dest);
   }
 }
 
-sub md5file {
-  my $file = shift;
-  my ($stdout, $stderr, $exit) = capture { system(qq{md5sum $file | awk '{print \$1}' > $file.md5}); };
-  die $stderr if($exit != 0);
-}
-
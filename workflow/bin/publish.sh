@@ -0,0 +1,77 @@
+#!/bin/bash
+
+# Places result files under their final names and lists them in a manifest so
+# uploads don't need to glob the output directory or checksum files again.
+#
+# USAGE: publish.sh manifest source dest [source dest]...
+#
+# Each source (and source.md5 when present) is hard linked to dest, falling back
+# to a reflink and only then to a copy, then renamed into place so dest is never
+# seen part written.  When source and dest are the same file it is only listed.
+# Manifest lines are 'file size md5' (tab separated, file relative to the
+# manifest), the md5 is taken from source.md5 when present.
+
+set -ue
+set -o pipefail
+
+usage() {
+  echo "USAGE: publish.sh manifest source dest [source dest]..." >&2
+  exit 1
+}
+
+# hard link, reflink or copy $1 to $2 via a temporary name
+place() {
+  local tmp
+  tmp="$2.publish.$$"
+  rm -f "$tmp"
+  ln -f "$1" "$tmp" 2> /dev/null \
+    || cp --reflink=always "$1" "$tmp" 2> /dev/null \
+    || cp "$1" "$tmp"
+  mv -f "$tmp" "$2"
+}
+
+# replaces any earlier line for the file so a rerun doesn't list it twice
+record() {
+  local file=$1
+  local size=$2
+  local md5=$3
+  (
+    flock 9
+    touch "$manifest"
+    awk -F '\t' -v f="$file" '$1 != f' "$manifest" > "$hidden.tmp"
+    printf '%s\t%s\t%s\n' "$file" "$size" "$md5" >> "$hidden.tmp"
+    mv -f "$hidden.tmp" "$manifest"
+  ) 9> "$hidden.lock"
+}
+
+if [[ $# -lt 3 || $(($# % 2)) -ne 1 ]]; then
+  usage
+fi
+
+manifest=$1
+shift
+base=$(dirname "$(readlink -m "$manifest")")
+# kept out of the globs used to collect results
+hidden=$base/.$(basename "$manifest")
+
+while [[ $# -gt 0 ]]; do
+  source=$1
+  dest=$2
+  shift 2
+  if [[ ! -f "$source" ]]; then
+    echo "ERROR: $source not found" >&2
+    exit 1
+  fi
+  if [[ ! "$source" -ef "$dest" ]]; then
+    place "$source" "$dest"
+    if [[ -f "$source.md5" ]]; then
+      place "$source.md5" "$dest.md5"
+    fi
+  fi
+  if [[ -f "$dest.md5" ]]; then
+    md5=$(cut -d ' ' -f 1 "$dest.md5")
+  else
+    md5=$(md5sum "$dest" | cut -d ' ' -f 1)
+  fi
+  record "$(realpath --relative-to="$base" "$dest")" "$(stat -L -c '%s' "$dest")" "$md5"
+done
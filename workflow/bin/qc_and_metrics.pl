@@ -7,10 +7,11 @@
 use strict;
 use autodie qw(:all);
 use Capture::Tiny qw(capture);
+use FindBin qw($Bin);
 use JSON;
 
 if ( @ARGV < 2 ) {
-  die "USAGE: rootOfOutdir control.bam tumour1.bam [tumour2.bam...]";
+  die "USAGE: rootOfOutdir control.bam|sample tumour1.bam|sample [tumour2.bam|sample...]";
 }
 
 my $base_dir = shift @ARGV;
@@ -37,10 +38,10 @@ sub qc_data {
   for my $bam (@bams) {
     my $aliqout_id = get_aliquot_id_from_bam($bam);
     my $to_process = "$base_dir/$count";
-    $full_qc{$aliqout_id}{'sv'} = _qc_brass("$to_process/brass");
-    $full_qc{$aliqout_id}{'snv_mnv'} = _qc_caveman("$to_process/caveman");
-    $full_qc{$aliqout_id}{'indel'} = _qc_pindel("$to_process/pindel");
-    $full_qc{$aliqout_id}{'cnv'} = _qc_ascat("$to_process/ascat");
+    $full_qc{$aliqout_id}{'sv'} = _qc_stats($to_process, 'brass');
+    $full_qc{$aliqout_id}{'snv_mnv'} = _qc_stats($to_process, 'caveman');
+    $full_qc{$aliqout_id}{'indel'} = _qc_stats($to_process, 'pindel');
+    $full_qc{$aliqout_id}{'cnv'} = _qc_stats($to_process, 'ascat');
     $full_qc{$aliqout_id}{'contamination'} = _qc_contam("$to_process/contamination");
     $count++;
   }
@@ -75,6 +76,8 @@ sub _qc_genotypes {
 # code duplication in packageResults.pl
 sub get_aliquot_id_from_bam {
   my $bam = shift;
+  # the workflow passes the sample name instead when it could read the header at build time
+  return $bam unless($bam =~ m/\.bam$/);
 # samtools view -H PD13491a/PD13491a.bam | grep '^@RG' | perl -ne 'm/\tSM:([^\t]+)/; $x{$1}=1; END{print join("\n",keys %x),"\n";};'
   die "BAM file does not exist: $bam" unless ( -e $bam );
 
@@ -190,95 +193,16 @@ sub _qc_contam {
   return \%qc;
 }
 
-sub _qc_brass {
-  my $to_process = shift;
-  my %qc = ( 'caller' => 'BRASS' );
-  my ($stdout, $stderr, $exit) = capture { system([0,1], qq{grep -cv '^#' $to_process/intermediates/*.groups.filtered.bedpe}); };
-  die "Error occurred while counting $to_process/intermediates/*.groups.filtered.bedpe" if ($stderr);
-  chomp $stdout;
-  $stdout =~ m/^([[:digit:]]+)/;
-  $qc{'total_groups'} = $1;
-
-  ($stdout, $stderr, $exit) = capture { system([0,1], qq{grep -cv '^#' $to_process/*.annot.bedpe}); };
-  die "Error occurred while counting $to_process/*.annot.bedpe" if ($stderr);
-  chomp $stdout;
-  $stdout =~ m/^([[:digit:]]+)/;
-  $qc{'filtered_groups'} = $1;
-  return \%qc;
-}
-
-sub _qc_ascat {
-  my $to_process = shift;
-  my %qc = ( 'caller' => 'ASCAT' );
-  my ($stdout, $stderr, $exit) = capture { system(qq{grep -F 'WARNING ASCAT failed to generate a solution' $to_process/*.samplestatistics.csv | wc -l }); };
-  die "Error occurred while checking CN state $to_process/*.samplestatistics.csv" if ($stderr);
-  chomp $stdout;
-  $qc{'solution_possible'} = $stdout ? 0 : 1;
-  if ( $qc{'solution_possible'} ) {
-    ($stdout, $stderr, $exit) = capture { system(qq{cat $to_process/*.samplestatistics.csv}); };
-    die "Error occurred while capturing ASCAT stats $to_process/*.samplestatistics.csv" if ($stderr);
-    for ( split /\n/, $stdout ) {
-      my ( $key, $value ) = split /\s+/, $_;
-      $qc{$key} = $value;
-    }
-  }
-  else {
-    $qc{'NormalContamination'} = q{.};
-    $qc{'Ploidy'} = q{.};
-    $qc{'rho'} = q{.};
-    $qc{'psi'} = q{.};
-    $qc{'goodnessOfFit'} = q{.};
+# counts written by qc_stats.pl as each caller is packaged, generated here if missing
+sub _qc_stats {
+  my ($to_process, $caller) = @_;
+  my $json = "$to_process/qc/$caller.json";
+  unless(-e $json) {
+    my ($stdout, $stderr, $exit) = capture { system("$Bin/qc_stats.pl", $caller, "$to_process/$caller", $json); };
+    die "STDOUT: $stdout\n\nSTDERR: $stderr\n" if ( $exit != 0 );
   }
-  return \%qc;
-}
-
-sub _qc_pindel {
-  my $to_process = shift;
-  my %qc = ( 'caller' => 'cgpPindel' );
-  my ($stdout, $stderr, $exit) = capture { system(qq{zgrep -v '^#' $to_process/*.flagged.vcf.gz | wc -l}); };
-  die "Error occurred while counting VCF records in $to_process/*.flagged.vcf.gz" if ($stderr);
-  chomp $stdout;
-  $qc{'all_indel'} = $stdout;
-
-  ($stdout, $stderr, $exit) = capture { system(qq{zgrep -v '^#' $to_process/*.flagged.vcf.gz | grep -Fw PASS | wc -l}); };
-  die "Error occurred while counting passed VCF records in $to_process/*.flagged.vcf.gz" if ($stderr);
-  chomp $stdout;
-  $qc{'passed_indel'} = $stdout;
-
-  ($stdout, $stderr, $exit) = capture { system(qq{wc -l $to_process/*.germline.bed}); };
-  die "Error occurred while counting records in $to_process/*.germline.bed" if ($stderr);
-  chomp $stdout;
-  $stdout =~ m/^([[:digit:]]+)/;
-  $qc{'likely_germline'} = $1;
-
-  return \%qc;
-}
-
-sub _qc_caveman {
-  my $to_process = shift;
-  # I know that grep can cout things, but if it gets 0 it gives non-zero exit
-  # for this reason pipe to wc and check stderr for messages
-  my %qc = ( 'caller' => 'CaVEMan' );
-  my ($stdout, $stderr, $exit) = capture { system(qq{zgrep -v '^#' $to_process/*.flagged.muts.vcf.gz | wc -l}); };
-  die "Error occurred while counting VCF records in $to_process/*.flagged.muts.vcf.gz" if ($stderr);
-  chomp $stdout;
-  $qc{'all_somatic'} = $stdout;
-
-  ($stdout, $stderr, $exit) = capture { system(qq{zgrep -v '^#' $to_process/*.flagged.muts.vcf.gz | grep -Fw PASS | wc -l}); };
-  die "Error occurred while counting passed VCF records in $to_process/*.flagged.muts.vcf.gz" if ($stderr);
-  chomp $stdout;
-  $qc{'passed_somatic'} = $stdout;
-
-  ($stdout, $stderr, $exit) = capture { system(qq{zgrep -v '^#' $to_process/*.snps.ids.vcf.gz | wc -l}); };
-  die "Error occurred while counting VCF records in $to_process/*.snps.ids.vcf.gz" if ($stderr);
-  chomp $stdout;
-  $qc{'all_germline'} = $stdout;
-
-  # need to check ASCAT was real input
-  ($stdout, $stderr, $exit) = capture { system(qq{grep -F 'WARNING ASCAT failed to generate a solution' $to_process/../ascat/*.samplestatistics.csv | wc -l }); };
-  die "Error occurred while checking CN state $to_process/../ascat/*.samplestatistics.csv" if ($stderr);
-  chomp $stdout;
-  $qc{'real_copynumber'} = $stdout ? 0 : 1;
-
-  return \%qc;
+  open my $fh, '<', $json;
+  my $encoded = do { local $/; <$fh> };
+  close $fh;
+  return decode_json $encoded;
 }
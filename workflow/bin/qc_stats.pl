@@ -0,0 +1,136 @@
+#!/usr/bin/perl
+
+use strict;
+use warnings FATAL => qw(all);
+use autodie qw(:all);
+
+use File::Basename qw(dirname);
+use File::Path qw(make_path);
+use JSON;
+
+# QC counts for the output of one caller, read by qc_and_metrics.pl.  Each file is
+# decompressed once with every count for it taken in the same pass.
+
+my %callers = ( 'ascat' => \&_qc_ascat,
+                'pindel' => \&_qc_pindel,
+                'brass' => \&_qc_brass,
+                'caveman' => \&_qc_caveman, );
+
+if(@ARGV != 3 || !exists $callers{$ARGV[0]}) {
+  die "USAGE: ./qc_stats.pl ascat|pindel|brass|caveman caller_outdir out.json\n";
+}
+
+my ($caller, $to_process, $out_json) = @ARGV;
+
+my $qc = $callers{$caller}->($to_process);
+make_path(dirname($out_json));
+open my $JOUT, '>', "$out_json.tmp";
+print $JOUT encode_json($qc),"\n";
+close $JOUT;
+rename "$out_json.tmp", $out_json;
+
+# counts lines not starting with '#' and, of those, lines with PASS as a word
+# (as grep -Fw PASS would) over all files matching the pattern
+sub count_records {
+  my ($pattern, $compressed) = @_;
+  my @files = glob $pattern;
+  die "No files found for $pattern\n" unless(scalar @files);
+  my ($all, $passed) = (0, 0);
+  for my $file(@files) {
+    my $fh;
+    if($compressed) {
+      open $fh, '-|', 'gzip', '-dc', $file;
+    }
+    else {
+      open $fh, '<', $file;
+    }
+    while(my $line = <$fh>) {
+      next if(index($line, '#') == 0);
+      $all++;
+      $passed++ if(index($line, 'PASS') >= 0 && $line =~ m/(?<![[:alnum:]_])PASS(?![[:alnum:]_])/);
+    }
+    close $fh;
+  }
+  # strings, as the counts were captured from wc and grep before
+  return ("$all", "$passed");
+}
+
+sub count_lines {
+  my $pattern = shift;
+  my @files = glob $pattern;
+  die "No files found for $pattern\n" unless(scalar @files);
+  my $lines = 0;
+  for my $file(@files) {
+    open my $fh, '<', $file;
+    $lines++ while(<$fh>);
+    close $fh;
+  }
+  return "$lines";
+}
+
+# ASCAT samplestatistics as key => value, undef when ASCAT found no solution
+sub ascat_stats {
+  my $to_process = shift;
+  my @files = glob "$to_process/*.samplestatistics.csv";
+  die "No files found for $to_process/*.samplestatistics.csv\n" unless(scalar @files);
+  my %stats;
+  for my $file(@files) {
+    open my $fh, '<', $file;
+    while(my $line = <$fh>) {
+      if(index($line, 'WARNING ASCAT failed to generate a solution') >= 0) {
+        close $fh;
+        return undef;
+      }
+      chomp $line;
+      my ($key, $value) = split /\s+/, $line;
+      $stats{$key} = $value;
+    }
+    close $fh;
+  }
+  return \%stats;
+}
+
+sub _qc_ascat {
+  my $to_process = shift;
+  my %qc = ( 'caller' => 'ASCAT' );
+  my $stats = ascat_stats($to_process);
+  if(defined $stats) {
+    $qc{'solution_possible'} = 1;
+    %qc = (%qc, %{$stats});
+  }
+  else {
+    $qc{'solution_possible'} = 0;
+    $qc{'NormalContamination'} = q{.};
+    $qc{'Ploidy'} = q{.};
+    $qc{'rho'} = q{.};
+    $qc{'psi'} = q{.};
+    $qc{'goodnessOfFit'} = q{.};
+  }
+  return \%qc;
+}
+
+sub _qc_pindel {
+  my $to_process = shift;
+  my %qc = ( 'caller' => 'cgpPindel' );
+  @qc{'all_indel', 'passed_indel'} = count_records("$to_process/*.flagged.vcf.gz", 1);
+  $qc{'likely_germline'} = count_lines("$to_process/*.germline.bed");
+  return \%qc;
+}
+
+sub _qc_brass {
+  my $to_process = shift;
+  my %qc = ( 'caller' => 'BRASS' );
+  ($qc{'total_groups'}) = count_records("$to_process/intermediates/*.groups.filtered.bedpe", 0);
+  ($qc{'filtered_groups'}) = count_records("$to_process/*.annot.bedpe", 0);
+  return \%qc;
+}
+
+sub _qc_caveman {
+  my $to_process = shift;
+  my %qc = ( 'caller' => 'CaVEMan' );
+  @qc{'all_somatic', 'passed_somatic'} = count_records("$to_process/*.flagged.muts.vcf.gz", 1);
+  ($qc{'all_germline'}) = count_records("$to_process/*.snps.ids.vcf.gz", 1);
+  # need to check ASCAT was real input
+  $qc{'real_copynumber'} = defined ascat_stats("$to_process/../ascat") ? 1 : 0;
+  return \%qc;
+}
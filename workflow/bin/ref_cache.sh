@@ -0,0 +1,162 @@
+#!/bin/bash
+
+# Host level cache of unpacked reference bundles shared by workflow runs.
+#
+# USAGE: ref_cache.sh link cache_dir keep lease source target_dir
+#        ref_cache.sh release cache_dir lease
+#
+# link makes target_dir look as if 'tar -C target_dir -zxf source' had been run.
+# Bundles are unpacked once into cache_dir/bundles/<md5 of the archive>, made
+# read-only and exposed to the run as a tree of directories and symlinks so
+# several bundles can be merged into one reference_files directory.  The source
+# (URL, or local path with size and mtime) is mapped to the checksum in
+# cache_dir/index so a source seen before is neither fetched nor read again.
+#
+# lease identifies the run (e.g. its output directory).  Bundles leased by a run
+# that has not been released (or touched in the last 7 days) are never evicted,
+# others are removed least recently used first while more than keep are cached.
+
+set -ue
+set -o pipefail
+
+lease_days=7
+
+usage() {
+  echo "USAGE: ref_cache.sh link cache_dir keep lease source target_dir" >&2
+  echo "       ref_cache.sh release cache_dir lease" >&2
+  exit 1
+}
+
+hash_of() {
+  printf '%s' "$1" | sha1sum | cut -d ' ' -f 1
+}
+
+# fetch the archive to stdout
+fetch() {
+  if [[ "$1" == /* ]]; then
+    cat "$1"
+  else
+    curl -sSL "$1"
+  fi
+}
+
+# leases a bundle to this run, caller holds the lock so it can't be evicted first
+take_lease() {
+  mkdir -p "$cache/leases/$1"
+  touch "$cache/leases/$1/$lease" "$cache/used/$1"
+}
+
+# unpack the source into a new bundle leased to this run, prints the checksum
+unpack() {
+  local source=$1
+  local tmp
+  tmp=$(mktemp -d "$cache/tmp.XXXXXX")
+  mkfifo "$tmp.fifo"
+  md5sum < "$tmp.fifo" | cut -d ' ' -f 1 > "$tmp.md5" &
+  local md5pid=$!
+  # tar may stop before the end of the stream, drain it so the checksum covers it all
+  fetch "$source" | tee "$tmp.fifo" | { tar -C "$tmp" -zxf -; cat > /dev/null; }
+  wait $md5pid
+  local sum
+  sum=$(cat "$tmp.md5")
+  rm -f "$tmp.fifo" "$tmp.md5"
+
+  (
+    flock 9
+    if [[ -d "$cache/bundles/$sum" ]]; then
+      # same archive from another source
+      rm -rf "$tmp"
+    else
+      # a read-only directory can't be moved to another parent by its owner
+      mv "$tmp" "$cache/bundles/$sum"
+      chmod -R a-w "$cache/bundles/$sum"
+    fi
+    take_lease "$sum"
+  ) 9> "$cache/.lock"
+  echo "$sum"
+}
+
+# removes least recently used bundles without a live lease, caller holds the lock
+evict() {
+  local keep=$1
+  local current=$2
+  local count
+  # left by runs killed while unpacking
+  find "$cache" -maxdepth 1 -name 'tmp.*' -mmin +1440 -exec rm -rf {} +
+  count=$(ls "$cache/bundles" | wc -l)
+  for sum in $(ls -tr "$cache/used"); do
+    if [[ $count -le $keep ]]; then
+      break
+    fi
+    if [[ "$sum" == "$current" || ! -d "$cache/bundles/$sum" ]]; then
+      continue
+    fi
+    if [[ -d "$cache/leases/$sum" && -n $(find "$cache/leases/$sum" -type f -mtime -$lease_days) ]]; then
+      continue
+    fi
+    echo "Evicting reference bundle $sum"
+    grep -lx "$sum" "$cache"/index/* 2> /dev/null | xargs -r rm -f
+    chmod -R u+w "$cache/bundles/$sum"
+    rm -rf "$cache/bundles/$sum" "$cache/leases/$sum" "$cache/used/$sum"
+    count=$((count - 1))
+  done
+}
+
+if [[ $# -lt 3 ]]; then
+  usage
+fi
+
+action=$1
+cache=$2
+mkdir -p "$cache/bundles" "$cache/index" "$cache/leases" "$cache/used" "$cache/locks"
+
+if [[ "$action" == "release" ]]; then
+  lease=$(hash_of "$(readlink -m "$3")")
+  ( flock 9; rm -f "$cache"/leases/*/"$lease" ) 9> "$cache/.lock"
+  exit 0
+fi
+
+if [[ "$action" != "link" || $# -ne 6 ]]; then
+  usage
+fi
+
+keep=$3
+lease=$(hash_of "$(readlink -m "$4")")
+source=$5
+target=$6
+
+identity=$source
+if [[ "$source" == /* ]]; then
+  identity=$(readlink -f "$source"):$(stat -L -c '%s:%Y' "$source")
+fi
+key=$(hash_of "$identity")
+
+# one run unpacks a source while any others starting with it wait
+exec 8> "$cache/locks/$key.lock"
+flock 8
+sum=""
+if [[ -f "$cache/index/$key" ]]; then
+  sum=$(cat "$cache/index/$key")
+  # checked and leased under the lock evict holds, so another run can't remove it in between
+  if ! ( flock 9; [[ -d "$cache/bundles/$sum" ]] && take_lease "$sum" ) 9> "$cache/.lock"; then
+    sum=""
+  fi
+fi
+if [[ -z "$sum" ]]; then
+  echo "Unpacking $source into reference cache $cache"
+  sum=$(unpack "$source")
+  echo "$sum" > "$cache/index/$key"
+else
+  echo "Using cached reference bundle $sum for $source"
+fi
+
+( flock 9; evict "$keep" "$sum" ) 9> "$cache/.lock"
+flock -u 8
+
+mkdir -p "$target"
+for entry in "$cache/bundles/$sum"/*; do
+  cp -rs --remove-destination "$entry" "$target/"
+done
+# cp gives the directories of the run the modes of the bundle, the run must be able to remove them (the
+# bundle files the links point to stay read-only)
+chmod -R u+w "$target"
@@ -0,0 +1,121 @@
+#!/bin/bash
+
+# Streams a reference archive straight into tar and marks each top level entry
+# (file or directory below prefix) as ready once tar has moved past it, so jobs
+# only needing part of the reference can start before the rest is unpacked.
+#
+# USAGE: ref_stream.sh extract source target_dir ready_dir tag [prefix]
+#        ref_stream.sh wait ready_dir tag since_file entry...
+#
+# extract writes ready_dir/tag/<entry> for each entry and ready_dir/tag.done or
+# ready_dir/tag.failed at the end.  This relies on the archive holding the
+# contents of each directory together, as tar writes them.
+#
+# wait returns once all entries are marked more recently than since_file and
+# fails if the extract failed or finished without them.
+
+set -ue
+set -o pipefail
+
+# give up waiting after 12 hours, e.g. when the extract job was killed
+max_wait=43200
+
+usage() {
+  echo "USAGE: ref_stream.sh extract source target_dir ready_dir tag [prefix]" >&2
+  echo "       ref_stream.sh wait ready_dir tag since_file entry..." >&2
+  exit 1
+}
+
+fetch() {
+  if [[ "$1" == /* ]]; then
+    cat "$1"
+  else
+    curl -sSL "$1"
+  fi
+}
+
+# reads the member names listed by tar
+mark() {
+  local current=""
+  local path rel top
+  while read -r path; do
+    path=${path#./}
+    rel=${path#$prefix}
+    top=${rel%%/*}
+    if [[ -z "$top" || "$top" == "$current" ]]; then
+      continue
+    fi
+    if [[ -n "$current" ]]; then
+      touch "$ready/$current"
+    fi
+    if [[ -e "$ready/$top" ]]; then
+      echo "ERROR: $top is not held together in the archive, can't mark it ready" >&2
+      return 1
+    fi
+    current=$top
+  done
+  if [[ -n "$current" ]]; then
+    touch "$ready/$current"
+  fi
+}
+
+if [[ $# -lt 4 ]]; then
+  usage
+fi
+
+action=$1
+
+if [[ "$action" == "extract" ]]; then
+  if [[ $# -lt 5 || $# -gt 6 ]]; then
+    usage
+  fi
+  source=$2
+  target=$3
+  ready_dir=$4
+  tag=$5
+  prefix=${6:-}
+  ready=$ready_dir/$tag
+
+  rm -rf "$ready" "$ready_dir/$tag.done" "$ready_dir/$tag.failed"
+  mkdir -p "$target" "$ready"
+  trap 'if [[ ! -e "$ready_dir/$tag.done" ]]; then touch "$ready_dir/$tag.failed"; fi' EXIT
+
+  fetch "$source" | tar -C "$target" -zxvf - | mark
+  touch "$ready_dir/$tag.done"
+  exit 0
+fi
+
+if [[ "$action" != "wait" || $# -lt 5 ]]; then
+  usage
+fi
+ready_dir=$2
+tag=$3
+since=$4
+shift 4
+
+waited=0
+while true; do
+  missing=""
+  for entry in "$@"; do
+    if [[ ! "$ready_dir/$tag/$entry" -nt "$since" ]]; then
+      missing="$missing $entry"
+    fi
+  done
+  if [[ -z "$missing" ]]; then
+    exit 0
+  fi
+  if [[ "$ready_dir/$tag.failed" -nt "$since" ]]; then
+    echo "ERROR: extracting the $tag reference failed" >&2
+    exit 1
+  fi
+  if [[ "$ready_dir/$tag.done" -nt "$since" ]]; then
+    echo "ERROR: not found in the $tag reference:$missing" >&2
+    exit 1
+  fi
+  if [[ $waited -ge $max_wait ]]; then
+    echo "ERROR: gave up waiting for$missing of the $tag reference" >&2
+    exit 1
+  fi
+  sleep 10
+  waited=$((waited + 10))
+done
@@ -0,0 +1,20 @@
+#!/bin/bash
+
+set -ue
+
+# Runs a per-index CGP step for each index in a shard, in order.
+# USAGE: run_shard.sh 1,5,9 caveman.pl -p split ...
+# the command is executed once per index with '-i <index>' appended
+
+if [[ $# -lt 2 ]]; then
+  echo "USAGE: run_shard.sh index[,index...] command..." >&2
+  exit 1
+fi
+
+indices=$1
+shift
+
+for index in ${indices//,/ }
+do
+  "$@" -i $index
+done
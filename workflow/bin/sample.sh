@@ -0,0 +1,79 @@
+#!/bin/bash
+
+# Samples the resource use of a process and everything below it from /proc until
+# the process exits, started by timed.sh when TIMED_SAMPLE_S is set.
+#
+# USAGE: sample.sh pid interval_s out.tsv
+#
+# One line per sample, tab separated:
+#   t_s      seconds since sampling started
+#   cpu_pct  CPU used since the previous sample, 100 per busy core
+#   rss_kb   resident memory of all processes
+#   read_b   bytes read from storage so far (/proc/PID/io read_bytes)
+#   write_b  bytes written to storage so far
+#   threads  threads of all processes
+# CPU time and I/O of exited children count once they have been waited for, as
+# the kernel adds them to the parent.
+
+set -u
+
+if [[ $# -ne 3 ]]; then
+  echo "USAGE: sample.sh pid interval_s out.tsv" >&2
+  exit 1
+fi
+
+root=$1
+interval=$2
+out=$3
+
+ticks=$(getconf CLK_TCK)
+page_kb=$(( $(getconf PAGESIZE) / 1024 ))
+
+# pids of root and its descendants
+tree() {
+  ps -e -o pid=,ppid= | awk -v root="$root" '
+    { parent[$1] = $2 }
+    END {
+      keep[root] = 1; found = 1
+      while(found) {
+        found = 0
+        for(p in parent) if(!(p in keep) && (parent[p] in keep)) { keep[p] = 1; found = 1 }
+      }
+      for(p in keep) print p
+    }'
+}
+
+echo -e "#t_s\tcpu_pct\trss_kb\tread_b\twrite_b\tthreads" > "$out"
+start=$(date +%s.%N)
+last_t=$start
+last_cpu=
+while kill -0 "$root" 2> /dev/null; do
+  now=$(date +%s.%N)
+  cpu=0; rss=0; read_b=0; write_b=0; threads=0
+  for pid in $(tree); do
+    # fields after the command name, which may contain spaces: utime is 12th, rss 22nd
+    stat=$(cat /proc/$pid/stat 2> /dev/null) || continue
+    set -- ${stat##*) }
+    cpu=$(( cpu + ${12} + ${13} + ${14} + ${15} ))
+    threads=$(( threads + ${18} ))
+    rss=$(( rss + ${22} * page_kb ))
+    if [[ -r /proc/$pid/io ]]; then
+      while read -r key value; do
+        case $key in
+          read_bytes:) read_b=$(( read_b + value )) ;;
+          write_bytes:) write_b=$(( write_b + value )) ;;
+        esac
+      done < /proc/$pid/io
+    fi
+  done
+  pct=0
+  if [[ -n $last_cpu ]]; then
+    pct=$(awk -v c=$(( cpu - last_cpu )) -v t=$ticks -v dt="$(awk -v a="$now" -v b="$last_t" 'BEGIN {print a - b}')" \
+      'BEGIN {printf "%d", (dt > 0 && c > 0) ? 100 * c / t / dt : 0}')
+  fi
+  last_cpu=$cpu
+  last_t=$now
+  printf '%d\t%d\t%d\t%d\t%d\t%d\n' "$(awk -v a="$now" -v b="$start" 'BEGIN {printf "%d", a - b}')" \
+    "$pct" "$rss" "$read_b" "$write_b" "$threads" >> "$out"
+  sleep "$interval"
+done
@@ -0,0 +1,187 @@
+#!/bin/bash
+
+# Copies an input BAM and its indexes to node-local scratch so the many jobs
+# reading them don't each go back to a shared filesystem.
+#
+# USAGE: stage_bam.sh link src_bam outdir
+#        stage_bam.sh copy src_bam outdir stage_dir streams
+#        stage_bam.sh release src_bam outdir stage_dir
+#
+# link replaces 'ln -s src_bam* outdir/': each file gets outdir/<name> pointing
+# to outdir/staging/<name>, which points to the source.  Readers always open the
+# outer link, so copy can move them to the local copy by swapping the inner one.
+#
+# copy writes every src_bam* file to stage_dir/<hash of outdir> with streams dd
+# processes each reading its own segment.  The checksum of each segment as read
+# from the source is compared to the segment read back from scratch, and the
+# whole file to src.md5 when the source has one.  Once all files are verified the
+# inner links are swapped, indexes first, jobs already reading keep the source
+# open.  Too little space or a failed copy only leaves the links on the source,
+# the workflow reads the BAM from there as it would without staging.
+#
+# release points the inner links back to the source and removes the copies.
+
+set -u
+set -o pipefail
+
+# 4MB blocks, segments are whole blocks
+bs=4194304
+
+usage() {
+  echo "USAGE: stage_bam.sh link src_bam outdir" >&2
+  echo "       stage_bam.sh copy src_bam outdir stage_dir streams" >&2
+  echo "       stage_bam.sh release src_bam outdir stage_dir" >&2
+  exit 1
+}
+
+hash_of() {
+  printf '%s' "$1" | sha1sum | cut -d ' ' -f 1
+}
+
+# atomically points link at target
+swap() {
+  ln -sfn "$2" "$1.tmp" && mv -T "$1.tmp" "$1"
+}
+
+link_source() {
+  mkdir -p "$outdir/staging"
+  local f name
+  for f in "$src"*; do
+    name=$(basename "$f")
+    swap "$outdir/staging/$name" "$f"
+    [[ -L "$outdir/$name" ]] || ln -sfn "staging/$name" "$outdir/$name"
+  done
+}
+
+# copies one segment of blocks, fails when it doesn't read back as written
+copy_segment() {
+  local from=$1 to=$2 first=$3 blocks=$4
+  local fifo="$to.$first.fifo"
+  mkfifo "$fifo"
+  md5sum < "$fifo" | cut -d ' ' -f 1 > "$to.$first.md5" &
+  local md5pid=$!
+  dd if="$from" bs=$bs skip=$first count=$blocks 2> /dev/null | tee "$fifo" \
+    | dd of="$to" bs=$bs seek=$first conv=notrunc iflag=fullblock 2> /dev/null
+  local status=$?
+  wait $md5pid
+  rm -f "$fifo"
+  if [[ $status -eq 0 ]]; then
+    local read_back
+    read_back=$(dd if="$to" bs=$bs skip=$first count=$blocks 2> /dev/null | md5sum | cut -d ' ' -f 1)
+    [[ "$read_back" == "$(cat "$to.$first.md5")" ]] || status=1
+  fi
+  rm -f "$to.$first.md5"
+  return $status
+}
+
+# copies one file to scratch, the copy is left only once verified
+copy_file() {
+  local from=$1 to=$2
+  local stamp size blocks per first pids status
+  stamp="$(stat -L -c '%s %Y' "$from")"
+  # staged by an earlier attempt of this run
+  if [[ -f "$to" && -f "$to.ok" && "$(cat "$to.ok")" == "$stamp" ]]; then
+    return 0
+  fi
+  rm -f "$to" "$to.ok"
+  size=${stamp% *}
+  blocks=$(( (size + bs - 1) / bs ))
+  per=$(( (blocks + streams - 1) / streams ))
+  [[ $per -gt 0 ]] || per=1
+  : > "$to.part"
+  pids=()
+  for (( first=0; first<blocks; first+=per )); do
+    copy_segment "$from" "$to.part" $first $per &
+    pids+=($!)
+  done
+  status=0
+  for pid in "${pids[@]}"; do
+    wait $pid || status=1
+  done
+  if [[ $status -ne 0 ]]; then
+    echo "stage_bam.sh: copy of $from failed" >&2
+    rm -f "$to.part"
+    return 1
+  fi
+  if [[ -f "$from.md5" ]]; then
+    if [[ "$(md5sum < "$to.part" | cut -d ' ' -f 1)" != "$(cut -d ' ' -f 1 "$from.md5")" ]]; then
+      echo "stage_bam.sh: copy of $from does not match $from.md5" >&2
+      rm -f "$to.part"
+      return 1
+    fi
+  fi
+  # indexes must not look older than the BAM
+  touch -r "$from" "$to.part"
+  chmod a-w "$to.part"
+  mv "$to.part" "$to"
+  echo "$stamp" > "$to.ok"
+}
+
+if [[ $# -lt 3 ]]; then
+  usage
+fi
+
+mode=$1
+src=$2
+outdir=$(readlink -f "$3")
+
+case $mode in
+  link)
+    [[ $# -eq 3 ]] || usage
+    link_source
+    ;;
+  copy)
+    [[ $# -eq 5 ]] || usage
+    streams=$5
+    [[ $streams -gt 0 ]] || streams=1
+    stage="$4/$(hash_of "$outdir")"
+    # a relaunch may find links to copies of a run that was never released
+    link_source
+    mkdir -p "$stage" || { echo "stage_bam.sh: can't create $stage, reading $src in place" >&2; exit 0; }
+
+    need=0
+    for f in "$src"*; do
+      to="$stage/$(basename "$f")"
+      [[ -f "$to.ok" ]] && continue
+      need=$(( need + $(stat -L -c '%s' "$f") ))
+    done
+    free=$(( $(df -Pk "$stage" | awk 'NR == 2 {print $4}') * 1024 ))
+    # leave 5% for the jobs writing to the same scratch
+    if [[ $(( need + need / 20 )) -gt $free ]]; then
+      echo "stage_bam.sh: $need bytes needed in $stage, $free free, reading $src in place" >&2
+      exit 0
+    fi
+
+    start=$(date +%s)
+    for f in "$src"*; do
+      if ! copy_file "$f" "$stage/$(basename "$f")"; then
+        echo "stage_bam.sh: reading $src in place" >&2
+        exit 0
+      fi
+    done
+    # the BAM last, a reader opening it then finds its index local too
+    for f in "$src"?*; do
+      [[ -e "$f" ]] && swap "$outdir/staging/$(basename "$f")" "$stage/$(basename "$f")"
+    done
+    swap "$outdir/staging/$(basename "$src")" "$stage/$(basename "$src")"
+    echo "stage_bam.sh: $src staged in $stage in $(( $(date +%s) - start ))s"
+    ;;
+  release)
+    [[ $# -eq 4 ]] || usage
+    stage="$4/$(hash_of "$outdir")"
+    if [[ -d "$outdir/staging" ]]; then
+      for f in "$src"*; do
+        swap "$outdir/staging/$(basename "$f")" "$f"
+      done
+    fi
+    for f in "$src"*; do
+      to="$stage/$(basename "$f")"
+      rm -f "$to" "$to.ok" "$to.part"
+    done
+    rmdir "$stage" 2> /dev/null
+    exit 0
+    ;;
+  *)
+    usage
+    ;;
+esac
@@ -0,0 +1,95 @@
+#!/bin/bash
+
+# Runs a command under GNU time and records how it went.
+#  - timing_file gets the Wall_s/User_s/System_s/Max_kb lines read by qc_and_metrics.pl
+#  - telemetry/<timing_file>.json (same dir) gets a structured record with the job
+#    identity, start/end epoch, exit status, CPU, peak RSS and file system I/O
+#  - telemetry/<timing_file>.running holds the start epoch and host while the command
+#    runs, see ProgressMonitor.java
+#  - when sampling (seconds in sample_s next to timing_file, written by the first
+#    job from sampleInterval, or TIMED_SAMPLE_S), telemetry/<timing_file>.samples.tsv
+#    gets CPU, RSS, I/O and threads over time (bin/sample.sh) and the record gets
+#    their p50/p90/p99/max
+# The exit status of the command is preserved.
+
+set -u
+
+if [[ $# -lt 6 ]]; then
+  echo "USAGE: timed.sh timing_file tumour alg process index command..." >&2
+  exit 1
+fi
+
+timing_file=$1
+tumour=$2
+alg=$3
+process=$4
+index=$5
+shift 5
+
+record_dir="$(dirname "$timing_file")/telemetry"
+record_stub="$record_dir/$(basename "$timing_file")"
+mkdir -p "$record_dir"
+
+start=$(date +%s.%N)
+echo "$start $(hostname)" > "$record_stub.running"
+sample_s=${TIMED_SAMPLE_S:-$(cat "$(dirname "$timing_file")/sample_s" 2> /dev/null)}
+[[ $sample_s =~ ^[1-9][0-9]*$ ]] || sample_s=0
+time_format="Wall_s %e\nUser_s %U\nSystem_s %S\nMax_kb %M\nFs_in %I\nFs_out %O"
+if [[ $sample_s != 0 ]]; then
+  # stdin of the command is /dev/null once in the background, none of the tools read it
+  /usr/bin/time --format="$time_format" --output="$record_stub.time" "$@" &
+  timed_pid=$!
+  "$(dirname "$0")/sample.sh" $timed_pid "$sample_s" "$record_stub.samples.tsv" &
+  sampler_pid=$!
+  wait $timed_pid
+  status=$?
+  kill $sampler_pid 2> /dev/null
+  wait $sampler_pid 2> /dev/null
+else
+  /usr/bin/time --format="$time_format" --output="$record_stub.time" "$@"
+  status=$?
+fi
+end=$(date +%s.%N)
+
+grep -E '^(Wall_s|User_s|System_s|Max_kb) ' "$record_stub.time" > "$timing_file" 2> /dev/null
+
+value() {
+  local found
+  found=$(awk -v key="$1" '$1 == key {print $2}' "$record_stub.time" 2> /dev/null)
+  echo "${found:-0}"
+}
+
+# [p50,p90,p99,max] of the numbers on stdin
+percentiles() {
+  sort -n | awk '{ v[NR] = $1 }
+    END {
+      if(NR == 0) { printf "[]"; exit }
+      printf "[%d,%d,%d,%d]", v[int((NR - 1) * 0.5) + 1], v[int((NR - 1) * 0.9) + 1], v[int((NR - 1) * 0.99) + 1], v[NR]
+    }'
+}
+
+# bytes per second between samples from the cumulative column $1
+rates() {
+  awk -F'\t' -v col="$1" '!/^#/ { if(seen && $1 > last_t) print int(($col - last_b) / ($1 - last_t)); last_t = $1; last_b = $col; seen = 1 }' "$samples"
+}
+
+sampled=""
+samples="$record_stub.samples.tsv"
+if [[ $sample_s != 0 && -f $samples ]]; then
+  # the first sample has no CPU interval behind it
+  sampled=",\"sample_s\":$sample_s,\"samples\":$(grep -vc '^#' "$samples")"
+  sampled+=",\"cpu_pct\":$(awk -F'\t' '!/^#/ && seen++ {print $2}' "$samples" | percentiles)"
+  sampled+=",\"rss_kb\":$(awk -F'\t' '!/^#/ {print $3}' "$samples" | percentiles)"
+  sampled+=",\"read_bps\":$(rates 4 | percentiles)"
+  sampled+=",\"write_bps\":$(rates 5 | percentiles)"
+  sampled+=",\"threads\":$(awk -F'\t' '!/^#/ {print $6}' "$samples" | percentiles)"
+fi
+
+# Fs_in/Fs_out are counted in 512 byte blocks
+cat > "$record_stub.json.tmp" <<JSON
+{"tumour":$tumour,"alg":"$alg","process":"$process","index":$index,"host":"$(hostname)","start_s":$start,"end_s":$end,"exit":$status,"wall_s":$(value Wall_s),"user_s":$(value User_s),"system_s":$(value System_s),"max_rss_kb":$(value Max_kb),"read_bytes":$(( $(value Fs_in) * 512 )),"write_bytes":$(( $(value Fs_out) * 512 ))$sampled}
+JSON
+mv "$record_stub.json.tmp" "$record_stub.json"
+rm -f "$record_stub.time" "$record_stub.running"
+
+exit $status